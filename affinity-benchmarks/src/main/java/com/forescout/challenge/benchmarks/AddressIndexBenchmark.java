@@ -0,0 +1,101 @@
+package com.forescout.challenge.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.engine.AddressIndex;
+import com.forescout.challenge.impl.engine.RuleSet;
+import com.forescout.challenge.impl.engine.RuleSetHolder;
+
+/**
+ * Latency of changing one rule: updating an {@link AddressIndex} in place
+ * against compiling the whole collection of rules again, and publishing it
+ * through a {@link RuleSetHolder}, over rules generated with
+ * production-like distributions. Both engines rank on the four attributes
+ * with the same comparison, the classify benchmarks give the cost of a
+ * lookup in each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddressIndexBenchmark {
+
+	private static final int CHURN = 1024;
+	private static final int PACKETS = 1024;
+
+	@Param({"100000"})
+	public int rules;
+
+	private List<IRoutingRule> ruleList;
+	private List<IRoutingRule> churn;
+	private AddressIndex index;
+	private RuleSet ruleSet;
+	private RuleSetHolder holder;
+	private IPacket[] packets;
+	private AttributeKey[] priority;
+	private int next;
+	private int nextPacket;
+
+	@Setup
+	public void setUp() {
+		RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(43));
+		ruleList = generator.createRules(rules);
+		churn = generator.createRules(CHURN);
+		index = new AddressIndex(ruleList);
+		ruleSet = RuleSet.compile(ruleList);
+		holder = new RuleSetHolder(ruleList);
+		packets = generator.createPackets(PACKETS).toArray(new IPacket[PACKETS]);
+		priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+	}
+
+	@Benchmark
+	public boolean addAndRemoveOneRule() {
+		IRoutingRule rule = churn.get(next++ & (CHURN - 1));
+		index.add(rule);
+		return index.remove(rule);
+	}
+
+	@Benchmark
+	public RuleSet compileAllRules() {
+		return RuleSet.compile(ruleList);
+	}
+
+	@Benchmark
+	public RuleSetHolder.Snapshot publishAllRules() {
+		return holder.publish(ruleList);
+	}
+
+	@Benchmark
+	public IRoutingRule classifyIndex() {
+		IPacket packet = packets[nextPacket++ & (PACKETS - 1)];
+		return index.classify(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+				packet.getProtocolCode(), priority);
+	}
+
+	@Benchmark
+	public int classifyRuleSet() {
+		IPacket packet = packets[nextPacket++ & (PACKETS - 1)];
+		return ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+				packet.getProtocolCode(), priority);
+	}
+
+}
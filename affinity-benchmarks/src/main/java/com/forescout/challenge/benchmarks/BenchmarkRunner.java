@@ -0,0 +1,26 @@
+package com.forescout.challenge.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that every result reports
+ * the allocation rate next to the throughput. Accepts the JMH command line
+ * options, e.g. {@code java -jar target/benchmarks.jar PacketBenchmark -p rules=1000}
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
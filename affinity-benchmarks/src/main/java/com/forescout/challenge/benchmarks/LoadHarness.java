@@ -0,0 +1,277 @@
+package com.forescout.challenge.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.engine.BitVectorClassifier;
+import com.forescout.challenge.impl.engine.CompiledClassifier;
+import com.forescout.challenge.impl.engine.DecisionTreeClassifier;
+import com.forescout.challenge.impl.engine.FlowCache;
+import com.forescout.challenge.impl.engine.RuleSet;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Drives generated rules and packets through a classification engine from
+ * many threads at a fixed rate for a fixed duration, and reports the latency
+ * percentiles, the throughput, the allocation rate and the GC pauses.
+ *
+ * Every thread classifies packets on a schedule: the latency of a packet is
+ * measured from the time it was scheduled rather than from the time it was
+ * classified, so that stalls delaying the packets behind them are counted,
+ * as they would be by the senders of these packets (coordinated omission).
+ *
+ * Run with {@code java -cp target/benchmarks.jar com.forescout.challenge.benchmarks.LoadHarness}
+ * and options {@code --engine object|ruleset|tree|bitvector|cache --rules 100000
+ * --threads 4 --rate 100000 --duration 30 --warmup 10}, the rate being the
+ * total number of packets per second over all threads.
+ */
+public class LoadHarness {
+
+	private static final int PACKETS = 1 << 16;
+	private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+	/**
+	 * Classifies a packet, as done by one of the engines
+	 */
+	interface Classifier {
+		/**
+		 * @return The id or the slot of the closest rule, -1 if none
+		 */
+		int classify(IPacket packet);
+	}
+
+	enum Engine {
+		object, ruleset, tree, bitvector, cache
+	}
+
+	private final Engine engine;
+	private final int rules;
+	private final int threads;
+	private final long rate;
+	private final long durationNanos;
+	private final long warmupNanos;
+
+	private final Recorder recorder = new Recorder(HIGHEST_LATENCY, 3);
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final Histogram gcPauses = new Histogram(HIGHEST_LATENCY, 3);
+	private long gcPauseNanos;
+	private volatile long measureStart;
+
+	/**
+	 * Receives a sum of the decisions of every thread, so that classifying is
+	 * not optimized away
+	 */
+	final AtomicLong sink = new AtomicLong();
+
+	LoadHarness(Map<String, String> options) {
+		engine = Engine.valueOf(options.getOrDefault("engine", "ruleset"));
+		rules = Integer.parseInt(options.getOrDefault("rules", "10000"));
+		threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+		rate = Long.parseLong(options.getOrDefault("rate", "100000"));
+		durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+		warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+		if (threads < 1 || rate < threads)
+			throw new IllegalArgumentException("At least one thread and one packet per second and thread are needed");
+	}
+
+	private Classifier createClassifier(List<IRoutingRule> ruleList) {
+		AttributeKey[] keys = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+		if (engine == Engine.object)
+			return packet -> {
+				IRoutingRule rule = packet.getClosestAffinityNetwork(ruleList, IRoutingRule.defaultAttributesPriority);
+				return rule == null ? -1 : rule.getId();
+			};
+
+		RuleSet ruleSet = RuleSet.compile(ruleList);
+		CompiledClassifier compiled;
+		switch (engine) {
+			case tree:
+				compiled = new DecisionTreeClassifier(ruleSet);
+				break;
+			case bitvector:
+				compiled = new BitVectorClassifier(ruleSet);
+				break;
+			case cache:
+				compiled = new FlowCache(new DecisionTreeClassifier(ruleSet), PACKETS / 4);
+				break;
+			default:
+				compiled = ruleSet;
+		}
+		return packet -> compiled.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+				packet.getProtocolCode(), keys);
+	}
+
+	void run() throws InterruptedException {
+		// Source pools are matched by Contains, so that the object model can rank every packet
+		RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(1).anyRatios(0, 0.05, 0.2, 0.1));
+		List<IRoutingRule> ruleList = generator.createRules(rules);
+		IPacket[] packets = generator.createPackets(PACKETS).toArray(new IPacket[PACKETS]);
+		System.out.printf("Compiling %d rules for the %s engine%n", rules, engine);
+		Classifier classifier = createClassifier(ruleList);
+
+		listenToGcPauses();
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		measureStart = start + warmupNanos;
+		long end = measureStart + durationNanos;
+		long interval = TimeUnit.SECONDS.toNanos(threads) / rate;
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			// Threads are staggered over one interval, so that the packets are evenly spread
+			long first = start + interval * t / threads;
+			workers[t] = new Thread(() -> work(classifier, packets, thread, first, interval, end), "load-" + t);
+			workers[t].start();
+		}
+
+		System.out.printf("Warming up for %d s, then measuring for %d s%n",
+				TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+		Histogram total = new Histogram(HIGHEST_LATENCY, 3);
+		sleepUntil(measureStart);
+		recorder.getIntervalHistogram();
+		Histogram intervalHistogram = null;
+		for (long second = measureStart + TimeUnit.SECONDS.toNanos(1); second <= end; second += TimeUnit.SECONDS.toNanos(1)) {
+			sleepUntil(second);
+			intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+			total.add(intervalHistogram);
+			System.out.printf("%4d s  %9d ops/s  p50 %8.1f us  p99 %8.1f us  max %8.1f us%n",
+					TimeUnit.NANOSECONDS.toSeconds(second - measureStart), intervalHistogram.getTotalCount(),
+					micros(intervalHistogram.getValueAtPercentile(50)), micros(intervalHistogram.getValueAtPercentile(99)),
+					micros(intervalHistogram.getMaxValue()));
+		}
+		for (Thread worker : workers)
+			worker.join();
+		total.add(recorder.getIntervalHistogram());
+		report(total);
+	}
+
+	private void work(Classifier classifier, IPacket[] packets, int thread, long first, long interval, long end) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedAtStart = -1;
+		long count = 0;
+		long sink = 0;
+		for (long i = 0; ; i++) {
+			long scheduled = first + i * interval;
+			if (scheduled >= end)
+				break;
+			if (allocatedAtStart < 0 && scheduled >= measureStart)
+				allocatedAtStart = allocatedBytes(threadBean, threadId);
+			sleepUntil(scheduled);
+
+			sink += classifier.classify(packets[(int) ((i * threads + thread) & (PACKETS - 1))]);
+
+			if (scheduled >= measureStart) {
+				recorder.recordValue(Math.min(System.nanoTime() - scheduled, HIGHEST_LATENCY));
+				count++;
+			}
+		}
+		operations.addAndGet(count);
+		if (allocatedAtStart >= 0)
+			allocatedBytes.addAndGet(allocatedBytes(threadBean, threadId) - allocatedAtStart);
+		this.sink.addAndGet(sink);
+	}
+
+	private static long allocatedBytes(ThreadMXBean threadBean, long threadId) {
+		if (threadBean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId);
+		return 0;
+	}
+
+	/**
+	 * Parks until shortly before the given time, then spins, so that packets
+	 * are sent on time
+	 */
+	private static void sleepUntil(long time) {
+		long remaining;
+		while ((remaining = time - System.nanoTime()) > 0) {
+			if (remaining > TimeUnit.MICROSECONDS.toNanos(100))
+				LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+		}
+	}
+
+	/**
+	 * Records the duration of every stop-the-world collection ending while
+	 * measuring. Collectors running concurrently with the application, whose
+	 * cycles are not pauses, are ignored.
+	 */
+	private void listenToGcPauses() {
+		NotificationListener listener = (Notification notification, Object handback) -> {
+			if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+				return;
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+			if (info.getGcName().contains("Cycles") || info.getGcName().contains("Concurrent"))
+				return;
+			if (System.nanoTime() >= measureStart) {
+				long pause = TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+				synchronized (gcPauses) {
+					gcPauses.recordValue(Math.min(pause, HIGHEST_LATENCY));
+					gcPauseNanos += pause;
+				}
+			}
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter)
+				((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+		}
+	}
+
+	private void report(Histogram latency) {
+		double seconds = durationNanos / 1e9;
+		long ops = operations.get();
+		System.out.printf("%nEngine %s, %d rules, %d threads, target %d ops/s, %.0f s%n", engine, rules, threads, rate, seconds);
+		System.out.printf("Throughput   %12.0f ops/s%n", ops / seconds);
+		System.out.printf("Latency      p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us (from the scheduled time)%n",
+				micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99)),
+				micros(latency.getValueAtPercentile(99.9)), micros(latency.getMaxValue()));
+		System.out.printf("Allocation   %12.1f MB/s, %.1f bytes/op%n",
+				allocatedBytes.get() / seconds / (1 << 20), ops == 0 ? 0.0 : (double) allocatedBytes.get() / ops);
+		synchronized (gcPauses) {
+			System.out.printf("GC pauses    %d, total %.1f ms, max %.1f ms%n", gcPauses.getTotalCount(),
+					gcPauseNanos / 1e6,
+					gcPauses.getMaxValue() / 1e6);
+		}
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+	/**
+	 * Reads options of the form {@code --name value}
+	 */
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+				throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+			options.put(args[i].substring(2), args[++i]);
+		}
+		return options;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		new LoadHarness(parseOptions(args)).run();
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.forescout.challenge.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.engine.CompiledClassifier;
+import com.forescout.challenge.impl.engine.DecisionTreeClassifier;
+import com.forescout.challenge.impl.engine.RoutingMetrics;
+import com.forescout.challenge.impl.engine.RuleSet;
+
+/**
+ * Cost of {@link RoutingMetrics} on the lookups of a decision tree: the
+ * bare engine, the engine instrumented with metrics disabled, and enabled.
+ * Runs on 4 threads, so that the counters are updated concurrently.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark {
+
+	private static final int PACKETS = 1024;
+
+	@Param({"none", "disabled", "enabled"})
+	public String metrics;
+
+	private CompiledClassifier engine;
+	private AttributeKey[] priority;
+	private IPacket[] packets;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Setup
+	public void setUp() {
+		RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(71));
+		List<IRoutingRule> ruleList = generator.createRules(10000);
+		engine = new DecisionTreeClassifier(RuleSet.compile(ruleList));
+		if (!metrics.equals("none")) {
+			RoutingMetrics routingMetrics = new RoutingMetrics();
+			routingMetrics.setEnabled(metrics.equals("enabled"));
+			engine = routingMetrics.instrument("tree", engine);
+		}
+		priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+		packets = generator.createPackets(PACKETS).toArray(new IPacket[0]);
+	}
+
+	@Benchmark
+	public int lookup(Cursor cursor) {
+		IPacket packet = packets[cursor.next++ & (PACKETS - 1)];
+		return engine.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority);
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.forescout.challenge.benchmarks;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.engine.RandomRules;
+
+/**
+ * Throughput of {@link IPacket#getClosestAffinityNetwork} over random rules
+ * and packets drawn from a small address space, so that rules overlap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	private static final int PACKETS = 1024;
+
+	/**
+	 * Evaluates the destination before the source, as the default priority
+	 * does: ranking a source pool under the Any operator by the pool entry
+	 * containing the packet fails when there is none
+	 */
+	private static final LinkedHashSet<AttributeKey> CUSTOM_PRIORITY = new LinkedHashSet<>(Arrays.asList(
+			AttributeKey.protocol,
+			AttributeKey.dstPort,
+			AttributeKey.dstAddress,
+			AttributeKey.srcAddresses));
+
+	@Param({"10", "1000", "10000", "100000"})
+	public int rules;
+
+	/**
+	 * Any: every attribute matches any packet. Matches: the single attributes
+	 * match the packet and the source pool matches any packet. Contains: as
+	 * Matches, and the source pool must contain the packet source.
+	 */
+	@Param({"Any", "Matches", "Contains"})
+	public AttributeOperator operator;
+
+	@Param({"default", "custom"})
+	public String priority;
+
+	private List<IRoutingRule> ruleList;
+	private LinkedHashSet<AttributeKey> attributesPriority;
+	private IPacket[] packets;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		ruleList = RandomRules.createRules(random, rules);
+		AttributeOperator singleOperator = operator == AttributeOperator.Any ? AttributeOperator.Any : AttributeOperator.Matches;
+		AttributeOperator srcOperator = operator == AttributeOperator.Contains ? AttributeOperator.Contains : AttributeOperator.Any;
+		for (IRoutingRule rule : ruleList) {
+			rule.getSrcAddresses().setOperator(srcOperator);
+			rule.getDstAddress().setOperator(singleOperator);
+			rule.getDstPort().setOperator(singleOperator);
+			rule.getProtocol().setOperator(singleOperator);
+		}
+		attributesPriority = priority.equals("custom") ? CUSTOM_PRIORITY : IRoutingRule.defaultAttributesPriority;
+
+		packets = new IPacket[PACKETS];
+		for (int i = 0; i < PACKETS; i++)
+			packets[i] = RandomRules.createPacket(random);
+	}
+
+	@Benchmark
+	public IRoutingRule getClosestAffinityNetwork() {
+		IPacket packet = packets[next++ & (PACKETS - 1)];
+		return packet.getClosestAffinityNetwork(ruleList, attributesPriority);
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.forescout.challenge.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import com.forescout.challenge.impl.RoutingRule;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.engine.OffHeapRuleTable;
+import com.forescout.challenge.impl.engine.RuleSet;
+import com.forescout.challenge.impl.engine.RuleTableSnapshot;
+import com.forescout.challenge.impl.loader.RuleFileLoader;
+
+/**
+ * Cold start time of a node: building the rules from a text file, one
+ * {@link RoutingRule} per line compiled into a {@link RuleSet}, against
+ * streaming the same file into a table with {@link RuleFileLoader}, and
+ * mapping a {@link RuleTableSnapshot} of the same rules, with and without
+ * checking its checksum. Every operation is timed once per iteration.
+ *
+ * The text file is in the format read by {@link RuleFileLoader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int rules;
+
+	private Path directory;
+	private Path text;
+	private Path snapshot;
+
+	@Setup
+	public void setUp() throws IOException {
+		RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(53));
+		List<IRoutingRule> ruleList = generator.createRules(rules);
+		directory = Files.createTempDirectory("snapshot");
+		text = directory.resolve("rules.txt");
+		try (BufferedWriter writer = Files.newBufferedWriter(text, StandardCharsets.US_ASCII)) {
+			for (IRoutingRule rule : ruleList) {
+				writer.write(format(rule));
+				writer.newLine();
+			}
+		}
+		snapshot = directory.resolve("rules.snapshot");
+		RuleTableSnapshot.write(OffHeapRuleTable.compile(ruleList), snapshot);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(text);
+		Files.deleteIfExists(snapshot);
+		Files.deleteIfExists(directory);
+	}
+
+	@SuppressWarnings("unchecked")
+	static String format(IRoutingRule rule) {
+		String srcPool = ((Collection<Attribute<?>>) rule.getSrcAddresses().getArgument()).stream()
+				.map(srcAddress -> (String) srcAddress.getArgument())
+				.collect(Collectors.joining(","));
+		return String.join(" ", srcPool,
+				(String) rule.getDstAddress().getArgument(),
+				(String) rule.getProtocol().getArgument(),
+				rule.getDstPort().getArgument().toString(),
+				rule.getSrcAddresses().getOperator().name(),
+				rule.getDstAddress().getOperator().name(),
+				rule.getDstPort().getOperator().name(),
+				rule.getProtocol().getOperator().name());
+	}
+
+	@Benchmark
+	public RuleSet buildFromText() throws IOException {
+		List<IRoutingRule> ruleList = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.US_ASCII)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				RoutingRule rule = new RoutingRule(new HashSet<>(Arrays.asList(fields[0].split(","))),
+						fields[1], fields[2], PortRange.parse(fields[3], true));
+				rule.getSrcAddresses().setOperator(AttributeOperator.valueOf(fields[4]));
+				rule.getDstAddress().setOperator(AttributeOperator.valueOf(fields[5]));
+				rule.getDstPort().setOperator(AttributeOperator.valueOf(fields[6]));
+				rule.getProtocol().setOperator(AttributeOperator.valueOf(fields[7]));
+				ruleList.add(rule);
+			}
+		}
+		return RuleSet.compile(ruleList);
+	}
+
+	@Benchmark
+	public OffHeapRuleTable loadText() throws IOException {
+		return RuleFileLoader.load(text);
+	}
+
+	@Benchmark
+	public OffHeapRuleTable loadSnapshot() throws IOException {
+		return RuleTableSnapshot.load(snapshot);
+	}
+
+	@Benchmark
+	public OffHeapRuleTable loadSnapshotUnverified() throws IOException {
+		return RuleTableSnapshot.load(snapshot, false);
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.forescout.challenge.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.attributes.values.Pair;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+
+/**
+ * Throughput of the parsing and matching primitives called for every rule
+ * on every packet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilityBenchmark {
+
+	private static final String[] CIDRS = {"10.2.1.1/32", "192.168.0.0/16", "172.0.0.0/8", "10.1.1.0/24"};
+	private static final String[] PORTS = {"21", "1-1024", "512-1024", "60000"};
+
+	private final long ip = Utility.string2Ip("10.1.1.7");
+	private int next;
+
+	@Benchmark
+	public boolean isIpInsideNet() {
+		return Utility.isIpInsideNet(ip, CIDRS[next++ & 3]);
+	}
+
+	@Benchmark
+	public Pair<Long, Integer> cidrStringToNetAndMask() {
+		return Utility.cidrStringToNetAndMask(CIDRS[next++ & 3]);
+	}
+
+	@Benchmark
+	public PortRange parsePortRange() {
+		return PortRange.parse(PORTS[next++ & 3]);
+	}
+
+}
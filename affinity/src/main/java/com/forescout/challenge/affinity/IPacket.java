@@ -37,6 +37,15 @@ public interface IPacket {
      */
     String getProtocol();
 
+    /**
+     * The communication protocol this packet is of, as coded by
+     * {@link ProtocolTable}
+     * @return
+     */
+    default int getProtocolCode() {
+        return ProtocolTable.code(getProtocol());
+    }
+
     /**
      * Returns the {@link RoutingRule} with the highest matching score. The
      * destination network address can be obtained from the dstAddress property
@@ -0,0 +1,250 @@
+package com.forescout.challenge.affinity;
+
+/**
+ * Parsers of IPv4 addresses, CIDR networks and port ranges, reading the
+ * characters of a {@link CharSequence} or the ASCII bytes of a byte array
+ * between two indexes. They create no object: results are returned as
+ * primitives, several values being packed in a long, and errors as
+ * {@link #INVALID}.
+ *
+ * The accepted forms are strict: four decimal octets from 0 to 255 of one
+ * to three digits, masks of one or two digits from 0 to 32, and ports of one
+ * to five digits from 0 to 65535.
+ */
+public final class Parsers {
+
+    /**
+     * Returned when the characters do not have the expected form
+     */
+    public static final long INVALID = -1L;
+
+    private Parsers() {
+    }
+
+    /**
+     * Parses an IPv4 address in dotted decimal form
+     * @return the address, from 0 to 2^32 - 1, or {@link #INVALID}
+     */
+    public static long parseIp(CharSequence s, int from, int to) {
+        long ip = 0;
+        int i = from;
+        for ( int octet = 0; octet < 4; octet++ ) {
+            if ( octet > 0 ) {
+                if ( i == to || s.charAt(i) != '.' ) {
+                    return INVALID;
+                }
+                i++;
+            }
+            int value = 0;
+            int digits = 0;
+            while ( i < to && digits < 4 && isDigit(s.charAt(i)) ) {
+                value = value * 10 + s.charAt(i++) - '0';
+                digits++;
+            }
+            if ( digits == 0 || digits > 3 || value > 255 ) {
+                return INVALID;
+            }
+            ip = ip << 8 | value;
+        }
+        return i == to ? ip : INVALID;
+    }
+
+    /**
+     * Parses an IPv4 address in dotted decimal form
+     * @return the address, from 0 to 2^32 - 1, or {@link #INVALID}
+     */
+    public static long parseIp(byte[] b, int from, int to) {
+        long ip = 0;
+        int i = from;
+        for ( int octet = 0; octet < 4; octet++ ) {
+            if ( octet > 0 ) {
+                if ( i == to || b[i] != '.' ) {
+                    return INVALID;
+                }
+                i++;
+            }
+            int value = 0;
+            int digits = 0;
+            while ( i < to && digits < 4 && isDigit(b[i]) ) {
+                value = value * 10 + b[i++] - '0';
+                digits++;
+            }
+            if ( digits == 0 || digits > 3 || value > 255 ) {
+                return INVALID;
+            }
+            ip = ip << 8 | value;
+        }
+        return i == to ? ip : INVALID;
+    }
+
+    /**
+     * Parses the mask bits of a CIDR network
+     * @return the mask, from 0 to 32, or -1
+     */
+    public static int parseMaskBits(CharSequence s, int from, int to) {
+        if ( to - from < 1 || to - from > 2 ) {
+            return -1;
+        }
+        int mask = 0;
+        for ( int i = from; i < to; i++ ) {
+            if ( !isDigit(s.charAt(i)) ) {
+                return -1;
+            }
+            mask = mask * 10 + s.charAt(i) - '0';
+        }
+        return mask <= 32 ? mask : -1;
+    }
+
+    /**
+     * Parses the mask bits of a CIDR network
+     * @return the mask, from 0 to 32, or -1
+     */
+    public static int parseMaskBits(byte[] b, int from, int to) {
+        if ( to - from < 1 || to - from > 2 ) {
+            return -1;
+        }
+        int mask = 0;
+        for ( int i = from; i < to; i++ ) {
+            if ( !isDigit(b[i]) ) {
+                return -1;
+            }
+            mask = mask * 10 + b[i] - '0';
+        }
+        return mask <= 32 ? mask : -1;
+    }
+
+    /**
+     * Parses a network in CIDR notation, e.g. 10.0.0.0/8
+     * @param maskRequired if false, an address without mask is a /32 network
+     * @return the network and the mask packed as by {@link Utility#cidrStringToPackedNetAndMask(String)},
+     * or {@link #INVALID}
+     */
+    public static long parseCidr(CharSequence s, int from, int to, boolean maskRequired) {
+        int slash = indexOf(s, '/', from, to);
+        if ( slash == to && maskRequired ) {
+            return INVALID;
+        }
+        long net = parseIp(s, from, slash);
+        int mask = slash == to ? 32 : parseMaskBits(s, slash + 1, to);
+        return net == INVALID || mask < 0 ? INVALID : net << 6 | mask;
+    }
+
+    /**
+     * Parses a network in CIDR notation, e.g. 10.0.0.0/8
+     * @param maskRequired if false, an address without mask is a /32 network
+     * @return the network and the mask packed as by {@link Utility#cidrStringToPackedNetAndMask(String)},
+     * or {@link #INVALID}
+     */
+    public static long parseCidr(byte[] b, int from, int to, boolean maskRequired) {
+        int slash = indexOf(b, (byte) '/', from, to);
+        if ( slash == to && maskRequired ) {
+            return INVALID;
+        }
+        long net = parseIp(b, from, slash);
+        int mask = slash == to ? 32 : parseMaskBits(b, slash + 1, to);
+        return net == INVALID || mask < 0 ? INVALID : net << 6 | mask;
+    }
+
+    /**
+     * Parses a port
+     * @return the port, from 0 to 65535, or -1
+     */
+    public static int parsePort(CharSequence s, int from, int to) {
+        if ( to - from < 1 || to - from > 5 ) {
+            return -1;
+        }
+        int port = 0;
+        for ( int i = from; i < to; i++ ) {
+            if ( !isDigit(s.charAt(i)) ) {
+                return -1;
+            }
+            port = port * 10 + s.charAt(i) - '0';
+        }
+        return port <= 0xFFFF ? port : -1;
+    }
+
+    /**
+     * Parses a port
+     * @return the port, from 0 to 65535, or -1
+     */
+    public static int parsePort(byte[] b, int from, int to) {
+        if ( to - from < 1 || to - from > 5 ) {
+            return -1;
+        }
+        int port = 0;
+        for ( int i = from; i < to; i++ ) {
+            if ( !isDigit(b[i]) ) {
+                return -1;
+            }
+            port = port * 10 + b[i] - '0';
+        }
+        return port <= 0xFFFF ? port : -1;
+    }
+
+    /**
+     * Parses a single port, or a range of ports separated by a dash whose
+     * end is past its begin, as {@link com.forescout.challenge.affinity.attributes.values.PortRange#parse(String, boolean)}
+     * @param acceptSingleRangePort if true, the end of a range can be its begin, e.g. 53-53
+     * @return the begin and the end packed in a long, see {@link #portBegin(long)} and {@link #portEnd(long)},
+     * or {@link #INVALID}
+     */
+    public static long parsePortRange(CharSequence s, int from, int to, boolean acceptSingleRangePort) {
+        int dash = indexOf(s, '-', from, to);
+        int begin = parsePort(s, from, dash);
+        int end = dash == to ? begin : parsePort(s, dash + 1, to);
+        return packPortRange(begin, end, dash == to || acceptSingleRangePort);
+    }
+
+    /**
+     * Parses a single port, or a range of ports separated by a dash whose
+     * end is past its begin, as {@link com.forescout.challenge.affinity.attributes.values.PortRange#parse(String, boolean)}
+     * @param acceptSingleRangePort if true, the end of a range can be its begin, e.g. 53-53
+     * @return the begin and the end packed in a long, see {@link #portBegin(long)} and {@link #portEnd(long)},
+     * or {@link #INVALID}
+     */
+    public static long parsePortRange(byte[] b, int from, int to, boolean acceptSingleRangePort) {
+        int dash = indexOf(b, (byte) '-', from, to);
+        int begin = parsePort(b, from, dash);
+        int end = dash == to ? begin : parsePort(b, dash + 1, to);
+        return packPortRange(begin, end, dash == to || acceptSingleRangePort);
+    }
+
+    private static long packPortRange(int begin, int end, boolean acceptEqual) {
+        if ( begin < 0 || end < 0 || end < begin || (end == begin && !acceptEqual) ) {
+            return INVALID;
+        }
+        return (long) begin << 16 | end;
+    }
+
+    public static int portBegin(long packedPortRange) {
+        return (int) (packedPortRange >>> 16);
+    }
+
+    public static int portEnd(long packedPortRange) {
+        return (int) (packedPortRange & 0xFFFF);
+    }
+
+    /**
+     * @return the index of the first occurrence of the character in [from, to), or to if there is none
+     */
+    private static int indexOf(CharSequence s, char c, int from, int to) {
+        int i = from;
+        while ( i < to && s.charAt(i) != c ) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte[] b, byte c, int from, int to) {
+        int i = from;
+        while ( i < to && b[i] != c ) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
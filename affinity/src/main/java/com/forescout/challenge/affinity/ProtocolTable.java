@@ -0,0 +1,174 @@
+package com.forescout.challenge.affinity;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of protocol names. Every protocol is coded by an int so that
+ * matching a protocol is an int compare rather than a case insensitive
+ * string compare.
+ *
+ * Well known names and decimal protocol numbers are coded by their IANA
+ * number, e.g. "TCP", "tcp" and "6" are all coded 6. Note that a rule of
+ * protocol "6" therefore matches a packet of protocol "TCP", where comparing
+ * the names ignoring case did not: packets decoded from IP headers only
+ * carry the protocol number.
+ *
+ * Any other name is given a code from {@link #FIRST_DYNAMIC_CODE} on when
+ * a rule {@link #register registers} it, and keeps it for the lifetime of
+ * the class. Packets only {@link #code look up} their protocol, so that
+ * traffic never grows the registry: a packet protocol no rule registered is
+ * {@link #UNKNOWN}, and matches no named protocol.
+ */
+public final class ProtocolTable {
+
+    /**
+     * Code of a missing or unregistered protocol, it matches no named
+     * protocol
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * IANA protocol numbers take the codes below this one
+     */
+    public static final int FIRST_DYNAMIC_CODE = 256;
+
+    private static final String[][] IANA_NAMES = {
+            {"HOPOPT", "0"}, {"ICMP", "1"}, {"IGMP", "2"}, {"GGP", "3"}, {"IPV4", "4"}, {"ST", "5"},
+            {"TCP", "6"}, {"EGP", "8"}, {"IGP", "9"}, {"UDP", "17"}, {"RDP", "27"}, {"IPV6", "41"},
+            {"RSVP", "46"}, {"GRE", "47"}, {"ESP", "50"}, {"AH", "51"}, {"ICMPV6", "58"},
+            {"EIGRP", "88"}, {"OSPF", "89"}, {"PIM", "103"}, {"VRRP", "112"}, {"L2TP", "115"},
+            {"SCTP", "132"}, {"UDPLITE", "136"}, {"MPLS-IN-IP", "137"}
+    };
+
+    private static final class Entry {
+        final String name;
+        final int code;
+
+        Entry(String name, int code) {
+            this.name = name;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Open addressing table of the registered names, looked up ignoring case
+     * so that no spelling of a name needs to be stored. The table is copied
+     * on every registration and never changed once published.
+     */
+    private static volatile Entry[] table;
+    private static int registered;
+    private static final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+    private static int nextCode = FIRST_DYNAMIC_CODE;
+
+    static {
+        Entry[] entries = new Entry[1024];
+        for (int number = 0; number < FIRST_DYNAMIC_CODE; number++) {
+            insert(entries, new Entry(String.valueOf(number), number));
+            names.put(number, String.valueOf(number));
+        }
+        for (String[] iana : IANA_NAMES) {
+            int number = Integer.parseInt(iana[1]);
+            insert(entries, new Entry(iana[0], number));
+            names.put(number, iana[0]);
+        }
+        registered = FIRST_DYNAMIC_CODE + IANA_NAMES.length;
+        table = entries;
+    }
+
+    private ProtocolTable() {
+    }
+
+    /**
+     * Returns the code of the given protocol, without allocating. Names
+     * differing only by case have the same code.
+     * @param protocol The protocol name, or its decimal IANA number
+     * @return The protocol code, or {@link #UNKNOWN} for a null protocol or
+     * a protocol never registered
+     */
+    public static int code(String protocol) {
+        if (protocol == null) {
+            return UNKNOWN;
+        }
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        for (int index = hash(protocol) & mask; entries[index] != null; index = (index + 1) & mask) {
+            if (entries[index].name.equalsIgnoreCase(protocol)) {
+                return entries[index].code;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns the code of the protocol of a rule, giving it a new code if it
+     * was never registered before. Names differing only by case have the
+     * same code. A new name copies the whole table under a global lock, so
+     * only rules register their protocol, when they are created or changed;
+     * per packet paths use {@link #code}.
+     * @param protocol The protocol name, or its decimal IANA number
+     * @return The protocol code, or {@link #UNKNOWN} for a null protocol
+     */
+    public static int register(String protocol) {
+        int code = code(protocol);
+        return code != UNKNOWN || protocol == null ? code : registerNew(protocol);
+    }
+
+    private static synchronized int registerNew(String protocol) {
+        int code = code(protocol);
+        if (code == UNKNOWN) {
+            code = nextCode++;
+            names.put(code, protocol);
+            put(protocol, code);
+        }
+        return code;
+    }
+
+    /**
+     * Publishes a copy of the table holding the new name, twice as large
+     * when it would be more than half full
+     */
+    private static void put(String protocol, int code) {
+        Entry[] entries = table;
+        Entry[] copy = new Entry[++registered * 2 > entries.length ? entries.length * 2 : entries.length];
+        for (Entry entry : entries) {
+            if (entry != null) {
+                insert(copy, entry);
+            }
+        }
+        insert(copy, new Entry(protocol, code));
+        table = copy;
+    }
+
+    private static void insert(Entry[] entries, Entry entry) {
+        int mask = entries.length - 1;
+        int index = hash(entry.name) & mask;
+        while (entries[index] != null) {
+            index = (index + 1) & mask;
+        }
+        entries[index] = entry;
+    }
+
+    /**
+     * Hash of a name ignoring case, consistent with
+     * {@link String#equalsIgnoreCase}
+     */
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the name of a protocol code: the IANA keyword of well known
+     * protocols, the decimal number of other IANA protocols, or the first
+     * spelling registered for a dynamic code
+     * @param code The protocol code
+     * @return The protocol name, or null if the code is not registered
+     */
+    public static String name(int code) {
+        return names.get(code);
+    }
+}
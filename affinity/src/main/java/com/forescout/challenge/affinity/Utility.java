@@ -48,6 +48,12 @@ public class Utility {
      * @return true if ip is inside net, false otherwise.
      */
     public static boolean isIpInsideNet(long ip, String ipAndNetmask) {
+        // Fast path for strict addresses and networks, parsed without allocating
+        long netAndMask = Parsers.parseCidr(ipAndNetmask, 0, ipAndNetmask.length(), false);
+        if ( netAndMask != Parsers.INVALID ) {
+            // A plain address is a /32 network, which only holds itself
+            return isIpInsideNet(ip, packedNet(netAndMask), packedMask(netAndMask));
+        }
         StringTokenizer st = new StringTokenizer(ipAndNetmask, "/");
         if ( st.countTokens() == 2 ) { // found a '/'
             try {
@@ -86,6 +92,11 @@ public class Utility {
                 return -1L;
             }
 
+            long strictIp = Parsers.parseIp(ip, 0, ip.length());
+            if ( strictIp != Parsers.INVALID ) {
+                return strictIp;
+            }
+
             StringTokenizer st = new StringTokenizer(ip, ".");
             long numParts = st.countTokens();
             if ( numParts == 0 ) {
@@ -111,6 +122,10 @@ public class Utility {
      * @return a Pair of Long and Integer representing the network and the mask respectively.
      */
     public static Pair<Long, Integer> cidrStringToNetAndMask(String cidrString) {
+        long netAndMask = cidrString == null ? Parsers.INVALID : Parsers.parseCidr(cidrString, 0, cidrString.length(), true);
+        if ( netAndMask != Parsers.INVALID ) {
+            return new Pair<>(packedNet(netAndMask), packedMask(netAndMask));
+        }
         String cidrBitsStr;
         String ip;
         try {
@@ -134,6 +149,30 @@ public class Utility {
         return new Pair<>(Utility.string2Ip(ip), cidrBits);
     }
 
+    /**
+     * Takes a CIDR notation string (i.e. 10.0.0.0/8) and return the network and the mask packed in a long, the
+     * network shifted left by 6 bits and the mask in the lowest 6 bits. Strict strings are parsed without allocating,
+     * other strings as by {@link #cidrStringToNetAndMask(String)}.
+     * @param cidrString the String to split
+     * @return the network and the mask packed in a long, see {@link #packedNet(long)} and {@link #packedMask(long)}
+     */
+    public static long cidrStringToPackedNetAndMask(String cidrString) {
+        long packed = Parsers.parseCidr(cidrString, 0, cidrString.length(), true);
+        if ( packed != Parsers.INVALID ) {
+            return packed;
+        }
+        Pair<Long, Integer> netAndMask = cidrStringToNetAndMask(cidrString);
+        return netAndMask.getFirst() << 6 | netAndMask.getSecond();
+    }
+
+    public static long packedNet(long packedNetAndMask) {
+        return packedNetAndMask >> 6;
+    }
+
+    public static int packedMask(long packedNetAndMask) {
+        return (int) (packedNetAndMask & 0x3F);
+    }
+
     /**
      * Creates a string from an IP address in long format.
      *
@@ -9,6 +9,8 @@ import java.util.regex.Pattern;
 public class Validate {
     public static final String STRICT_CIDR_MATCH_GROUP_OCT_REGEX = "^(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})/(.+)$";
 
+    private static final Pattern STRICT_CIDR_MATCH_GROUP_OCT_PATTERN = Pattern.compile(STRICT_CIDR_MATCH_GROUP_OCT_REGEX);
+
     public static <T> T notNull(final T object, final String message, final Object... values) {
         if (object == null) {
             throw new NullPointerException(String.format(message, values));
@@ -20,8 +22,11 @@ public class Validate {
         if (cidr == null || cidr.equals("") || (allowAny && cidr.equalsIgnoreCase("any"))) {
             return;
         }
-        Pattern p = Pattern.compile(STRICT_CIDR_MATCH_GROUP_OCT_REGEX);
-        Matcher m = p.matcher(cidr);
+        // Valid networks are recognized without allocating, the pattern only explains what is wrong
+        if (Parsers.parseCidr(cidr, 0, cidr.length(), true) != Parsers.INVALID) {
+            return;
+        }
+        Matcher m = STRICT_CIDR_MATCH_GROUP_OCT_PATTERN.matcher(cidr);
         if (!m.matches()) {
             throw new RuntimeException("Invalid IP format '" + cidr + "'");
         }
@@ -3,6 +3,8 @@ package com.forescout.challenge.affinity.attributes;
 import com.forescout.challenge.affinity.Utility;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
 import com.forescout.challenge.affinity.IPacket;
 
 /**
@@ -35,13 +37,15 @@ public abstract class CollectionAttribute<S extends Collection<Attribute<T>>, T>
                 return equalsMatchingScore(packet, argument);
             case Contains:
                 long maxScore = 0L;
-                for (Attribute<T> item: argument) {
-                    long itemScore = item.equalsMatchingScore(packet, item.getArgument());
-                    if (itemScore < 0) {
-                        throw new AssertionError("Score must be >= 0");
+                if (argument instanceof List && argument instanceof RandomAccess) {
+                    // Indexed loop, so that scoring a packet does not allocate an iterator
+                    List<Attribute<T>> items = (List<Attribute<T>>) argument;
+                    for (int i = 0; i < items.size(); i++) {
+                        maxScore = Math.max(maxScore, itemScore(packet, items.get(i)));
                     }
-                    if (itemScore > maxScore) {
-                        maxScore = itemScore;
+                } else {
+                    for (Attribute<T> item: argument) {
+                        maxScore = Math.max(maxScore, itemScore(packet, item));
                     }
                 }
                 return maxScore;
@@ -49,6 +53,14 @@ public abstract class CollectionAttribute<S extends Collection<Attribute<T>>, T>
         return 0;
     }
 
+    private static <T> long itemScore(IPacket packet, Attribute<T> item) {
+        long itemScore = item.equalsMatchingScore(packet, item.getArgument());
+        if (itemScore < 0) {
+            throw new AssertionError("Score must be >= 0");
+        }
+        return itemScore;
+    }
+
     // Accessors
 
     @Override
@@ -1,5 +1,6 @@
 package com.forescout.challenge.affinity.attributes.values;
 
+import com.forescout.challenge.affinity.Parsers;
 import com.forescout.challenge.affinity.Validate;
 
 import java.util.regex.Matcher;
@@ -129,6 +130,11 @@ public class PortRange implements Comparable<PortRange> {
         if (value == null || value.isEmpty()) {
             throw new IllegalArgumentException("Argument value cannot be null or empty");
         }
+        // Valid ranges are parsed without regular expressions, which only decide the error to throw
+        long packed = Parsers.parsePortRange(value, 0, value.length(), acceptSingleRangePort);
+        if (packed != Parsers.INVALID) {
+            return new PortRange(Parsers.portBegin(packed), Parsers.portEnd(packed));
+        }
         if (value.matches(PortRange.SINGLE_PORT_REGEX)) {
             if (!isValidPort(value)) {
                 throw new NumberFormatException("Invalid single port format");
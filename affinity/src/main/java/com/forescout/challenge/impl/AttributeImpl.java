@@ -3,6 +3,7 @@ package com.forescout.challenge.impl;
 import com.forescout.challenge.affinity.IPacket;
 import com.forescout.challenge.affinity.IRoutingRule;
 import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
 import com.forescout.challenge.affinity.Utility;
 import com.forescout.challenge.affinity.attributes.Attribute;
 import com.forescout.challenge.affinity.attributes.AttributeOperator;
@@ -13,12 +14,52 @@ import com.forescout.challenge.affinity.attributes.values.PortRange;
  */
 public class AttributeImpl<T extends Object> extends Attribute<T>{
 
-	protected AttributeImpl(T argument, AttributeOperator operator) {
+	/**
+	 * The rule attribute this instance holds, fixed at construction so that
+	 * computing a matching score does not depend on any shared state
+	 */
+	private final AttributeKey attributeKey;
+
+	/**
+	 * A protocol argument and its code, registered with the argument so that
+	 * matching a packet is an int compare. Both are replaced at once, so a
+	 * thread reading the argument of another thread's setArgument never
+	 * pairs it with the code of the previous argument.
+	 */
+	private static final class ProtocolCode {
+		final Object argument;
+		final int code;
+
+		ProtocolCode(Object argument, int code) {
+			this.argument = argument;
+			this.code = code;
+		}
+	}
+
+	private ProtocolCode protocolCode;
+
+	protected AttributeImpl(AttributeKey attributeKey, T argument, AttributeOperator operator) {
 		super(argument, operator);
+		this.attributeKey = attributeKey;
+		this.protocolCode = protocolCode(argument);
 	}
 	
-	protected AttributeImpl(T argument) {
+	protected AttributeImpl(AttributeKey attributeKey, T argument) {
 		super(argument);
+		this.attributeKey = attributeKey;
+		this.protocolCode = protocolCode(argument);
+	}
+
+	private ProtocolCode protocolCode(T argument) {
+		return attributeKey == AttributeKey.protocol
+				? new ProtocolCode(argument, ProtocolTable.register((String) argument)) : null;
+	}
+
+	@Override
+	public void setArgument(T argument) {
+		ProtocolCode protocolCode = protocolCode(argument);
+		super.setArgument(argument);
+		this.protocolCode = protocolCode;
 	}
 
 	/**
@@ -43,7 +84,9 @@ public class AttributeImpl<T extends Object> extends Attribute<T>{
 				return 2L;
 			}
 		}else if (getAttributeInstanceId().equals(IRoutingRule.AttributeKey.protocol)) {
-			if (((String)argument).equalsIgnoreCase(packet.getProtocol())){
+			ProtocolCode protocolCode = this.protocolCode;
+			int code = argument == protocolCode.argument ? protocolCode.code : ProtocolTable.code((String)argument);
+			if (code == packet.getProtocolCode()){
 				return 2L;
 			}
 		}
@@ -51,12 +94,12 @@ public class AttributeImpl<T extends Object> extends Attribute<T>{
 	}
 
 	/**
-     * Used as tracker for current AttributeKey
-     * @return The current AttributeKey used
+     * Identifies the rule attribute this instance holds
+     * @return The AttributeKey bound at construction
      */
 	@Override
 	public AttributeKey getAttributeInstanceId() {
-		return RoutingRule.currentAttributeKey;
+		return this.attributeKey;
 	}
 
 }
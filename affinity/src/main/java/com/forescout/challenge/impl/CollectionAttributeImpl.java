@@ -15,21 +15,28 @@ import com.forescout.challenge.affinity.attributes.CollectionAttribute;
  */
 public class CollectionAttributeImpl extends CollectionAttribute<Collection<Attribute<Object>>, Object>{
 
-	protected CollectionAttributeImpl(Collection<Attribute<Object>> argument, AttributeOperator operator) {
+	/**
+	 * The rule attribute this instance holds, fixed at construction
+	 */
+	private final AttributeKey attributeKey;
+
+	protected CollectionAttributeImpl(AttributeKey attributeKey, Collection<Attribute<Object>> argument, AttributeOperator operator) {
 		super(argument, operator);
+		this.attributeKey = attributeKey;
 	}
 	
-	protected CollectionAttributeImpl(Collection<Attribute<Object>> argument) {
+	protected CollectionAttributeImpl(AttributeKey attributeKey, Collection<Attribute<Object>> argument) {
 		super(argument);
+		this.attributeKey = attributeKey;
 	}
 
 	/**
-     * Used as tracker for current AttributeKey
-     * @return The current AttributeKey used
+     * Identifies the rule attribute this instance holds
+     * @return The AttributeKey bound at construction
      */
 	@Override
 	public AttributeKey getAttributeInstanceId() {
-		return RoutingRule.currentAttributeKey;
+		return this.attributeKey;
 	}
 
 	/**
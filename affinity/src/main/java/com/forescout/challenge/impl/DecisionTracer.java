@@ -0,0 +1,402 @@
+package com.forescout.challenge.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+
+/**
+ * Records how {@link Packet#getClosestAffinityNetwork} decided, for one
+ * packet in every sample interval of each thread: the rules discarded
+ * because an attribute did not match, the scores of the rules left at every
+ * level of the priority, the networks the address attribute compared, the
+ * ids of a final tie-break, and the winner.
+ *
+ * Traces are written into a ring of records allocated up front, so that a
+ * traced packet allocates nothing and the oldest traces are overwritten. A
+ * record holds a bounded number of events, the events past it are only
+ * counted. A packet is not traced when its record is still being written by
+ * another thread, e.g. a packet classified against many rules while the
+ * ring wraps around. Packets are traced when classified through
+ * {@link #classify}, and the traces are read by {@link #dump}.
+ */
+public final class DecisionTracer {
+
+	/**
+	 * Winner id of a trace no rule matched
+	 */
+	public static final int NO_RULE = -1;
+
+	public enum EventType {
+		/**
+		 * The rule was discarded, its given attribute does not match the packet
+		 */
+		DROPPED,
+		/**
+		 * The score of the rule for the attribute of a level of the priority,
+		 * the rules with the highest score of the level are kept
+		 */
+		SCORE,
+		/**
+		 * The network of the rule for the address attribute deciding between
+		 * the rules left, packed as by {@link Utility#cidrStringToPackedNetAndMask}
+		 */
+		NETWORK,
+		/**
+		 * The rule is left after every level of the priority, the lowest id wins
+		 */
+		TIE_BREAK
+	}
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+	private static final AttributeKey[] KEYS = AttributeKey.values();
+
+	/**
+	 * Preallocated trace, written by one thread at a time under the write lock
+	 */
+	static final class Record {
+		final StampedLock lock = new StampedLock();
+		final byte[] types;
+		final byte[] attributes;
+		final int[] ruleIds;
+		final long[] values;
+		final byte[] priority = new byte[KEYS.length];
+		int priorityLength;
+		long sequence = -1;
+		long timeMillis;
+		long srcAddr;
+		long dstAddr;
+		int dstPort;
+		int protocolCode;
+		int events;
+		int lostEvents;
+		int winnerId;
+		boolean completed;
+		long stamp;
+
+		Record(int maxEvents) {
+			types = new byte[maxEvents];
+			attributes = new byte[maxEvents];
+			ruleIds = new int[maxEvents];
+			values = new long[maxEvents];
+		}
+
+		void add(EventType type, AttributeKey attributeKey, int ruleId, long value) {
+			if (events == types.length) {
+				lostEvents++;
+				return;
+			}
+			types[events] = (byte) type.ordinal();
+			attributes[events] = (byte) attributeKey.ordinal();
+			ruleIds[events] = ruleId;
+			values[events++] = value;
+		}
+
+		void dropped(IRoutingRule rule, AttributeKey attributeKey) {
+			add(EventType.DROPPED, attributeKey, rule.getId(), 0L);
+		}
+
+		void score(IRoutingRule rule, AttributeKey attributeKey, long score) {
+			add(EventType.SCORE, attributeKey, rule.getId(), score);
+		}
+
+		void network(IRoutingRule rule, AttributeKey attributeKey, long network) {
+			add(EventType.NETWORK, attributeKey, rule.getId(), network);
+		}
+
+		void tieBreak(IRoutingRule rule) {
+			add(EventType.TIE_BREAK, AttributeKey.srcAddresses, rule.getId(), 0L);
+		}
+
+		/**
+		 * Ends the trace and releases the record
+		 * @param winner The rule returned, or null
+		 * @param completed false if the decision failed with an exception
+		 */
+		void end(IRoutingRule winner, boolean completed) {
+			winnerId = winner == null ? NO_RULE : winner.getId();
+			this.completed = completed;
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Copy of a trace read from the ring
+	 */
+	public static final class Trace {
+		private final long sequence;
+		private final long timeMillis;
+		private final long srcAddr;
+		private final long dstAddr;
+		private final int dstPort;
+		private final int protocolCode;
+		private final List<AttributeKey> priority;
+		private final byte[] types;
+		private final byte[] attributes;
+		private final int[] ruleIds;
+		private final long[] values;
+		private final int lostEvents;
+		private final int winnerId;
+		private final boolean completed;
+
+		Trace(Record record) {
+			sequence = record.sequence;
+			timeMillis = record.timeMillis;
+			srcAddr = record.srcAddr;
+			dstAddr = record.dstAddr;
+			dstPort = record.dstPort;
+			protocolCode = record.protocolCode;
+			AttributeKey[] keys = new AttributeKey[record.priorityLength];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = KEYS[record.priority[i]];
+			priority = Collections.unmodifiableList(Arrays.asList(keys));
+			int events = Math.min(record.events, record.types.length);
+			types = Arrays.copyOf(record.types, events);
+			attributes = Arrays.copyOf(record.attributes, events);
+			ruleIds = Arrays.copyOf(record.ruleIds, events);
+			values = Arrays.copyOf(record.values, events);
+			lostEvents = record.lostEvents;
+			winnerId = record.winnerId;
+			completed = record.completed;
+		}
+
+		/**
+		 * Number of the traced packet among the sampled ones, from 0
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		public long getSrcAddr() {
+			return srcAddr;
+		}
+
+		public long getDstAddr() {
+			return dstAddr;
+		}
+
+		public int getDstPort() {
+			return dstPort;
+		}
+
+		public int getProtocolCode() {
+			return protocolCode;
+		}
+
+		public List<AttributeKey> getPriority() {
+			return priority;
+		}
+
+		public int getEventCount() {
+			return types.length;
+		}
+
+		public EventType getEventType(int event) {
+			return EVENT_TYPES[types[event]];
+		}
+
+		/**
+		 * The attribute of the event, meaningless for {@link EventType#TIE_BREAK}
+		 */
+		public AttributeKey getEventAttribute(int event) {
+			return KEYS[attributes[event]];
+		}
+
+		public int getEventRuleId(int event) {
+			return ruleIds[event];
+		}
+
+		/**
+		 * The score of a {@link EventType#SCORE} event or the packed network of
+		 * a {@link EventType#NETWORK} event, 0 otherwise
+		 */
+		public long getEventValue(int event) {
+			return values[event];
+		}
+
+		/**
+		 * Events past the capacity of the record, which were not recorded
+		 */
+		public int getLostEvents() {
+			return lostEvents;
+		}
+
+		/**
+		 * @return The id of the rule returned, or {@link #NO_RULE}
+		 */
+		public int getWinnerId() {
+			return winnerId;
+		}
+
+		/**
+		 * false if the decision failed with an exception
+		 */
+		public boolean isCompleted() {
+			return completed;
+		}
+
+		/**
+		 * The trace, one line per attribute
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append('#').append(sequence).append(' ').append(Utility.ip2String(srcAddr)).append(" -> ")
+					.append(Utility.ip2String(dstAddr)).append(':').append(dstPort).append(' ')
+					.append(ProtocolTable.name(protocolCode)).append(" priority ").append(priority);
+			int event = 0;
+			while (event < types.length) {
+				EventType type = getEventType(event);
+				AttributeKey attributeKey = getEventAttribute(event);
+				sb.append("\n  ").append(type == EventType.DROPPED ? "dropped by " + attributeKey
+						: type == EventType.TIE_BREAK ? "lowest id of" : attributeKey.toString()).append(':');
+				String separator = " ";
+				//Consecutive events of the same type and attribute share a line
+				while (event < types.length && getEventType(event) == type
+						&& (type == EventType.TIE_BREAK || getEventAttribute(event) == attributeKey)) {
+					sb.append(separator).append(ruleIds[event]);
+					if (type == EventType.SCORE)
+						sb.append('=').append(values[event]);
+					else if (type == EventType.NETWORK)
+						sb.append('=').append(Utility.ip2String(Utility.packedNet(values[event])))
+								.append('/').append(Utility.packedMask(values[event]));
+					separator = ", ";
+					event++;
+				}
+			}
+			if (lostEvents > 0)
+				sb.append("\n  ").append(lostEvents).append(" more events not recorded");
+			sb.append("\n  ").append(!completed ? "failed" : winnerId == NO_RULE ? "no rule" : "winner " + winnerId);
+			return sb.toString();
+		}
+	}
+
+	private final int sampleInterval;
+	private final Record[] records;
+	private final AtomicLong next = new AtomicLong();
+	private final LongAdder skipped = new LongAdder();
+
+	/**
+	 * @param sampleInterval Every thread traces one packet out of this many
+	 * @param capacity The number of traces kept
+	 * @param maxEvents The number of events a trace holds
+	 */
+	public DecisionTracer(int sampleInterval, int capacity, int maxEvents) {
+		if (sampleInterval < 1)
+			throw new IllegalArgumentException("Sample interval must be >= 1");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+		if (maxEvents < 1)
+			throw new IllegalArgumentException("Max events must be >= 1");
+
+		this.sampleInterval = sampleInterval;
+		records = new Record[capacity];
+		for (int i = 0; i < capacity; i++)
+			records[i] = new Record(maxEvents);
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	public int getCapacity() {
+		return records.length;
+	}
+
+	/**
+	 * Number of packets sampled but not traced, their record being written
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+
+	/**
+	 * Returns the closest rule, see
+	 * {@link Packet#getClosestAffinityNetwork(IPacket, Collection, LinkedHashSet)},
+	 * tracing the decision if the packet is sampled
+	 */
+	public IRoutingRule classify(IPacket packet, Collection<IRoutingRule> rules,
+			LinkedHashSet<AttributeKey> attributesPriority) {
+		return Packet.getClosestAffinityNetwork(packet, rules, attributesPriority, this);
+	}
+
+	/**
+	 * Returns the closest rule, see
+	 * {@link Packet#getClosestAffinityNetwork(IPacket, Collection, AttributeKey[])},
+	 * tracing the decision if the packet is sampled
+	 */
+	public IRoutingRule classify(IPacket packet, Collection<IRoutingRule> rules, AttributeKey[] priority) {
+		return Packet.getClosestAffinityNetwork(packet, rules, priority, this);
+	}
+
+	/**
+	 * Starts the trace of a packet in the next record of the ring
+	 * @return The record, write locked until {@link Record#end}, or null if
+	 * another thread still writes it
+	 */
+	Record begin(IPacket packet, AttributeKey[] priority, int priorityLength) {
+		long sequence = next.getAndIncrement();
+		Record record = records[(int) (sequence % records.length)];
+		long stamp = record.lock.tryWriteLock();
+		if (stamp == 0L) {
+			skipped.increment();
+			return null;
+		}
+		record.stamp = stamp;
+		record.sequence = sequence;
+		record.timeMillis = System.currentTimeMillis();
+		record.srcAddr = packet.getSrcAddr();
+		record.dstAddr = packet.getDstAddr();
+		record.dstPort = packet.getDstPort();
+		record.protocolCode = packet.getProtocolCode();
+		record.priorityLength = Math.min(priorityLength, record.priority.length);
+		for (int i = 0; i < record.priorityLength; i++)
+			record.priority[i] = (byte) priority[i].ordinal();
+		record.events = 0;
+		record.lostEvents = 0;
+		record.winnerId = NO_RULE;
+		record.completed = false;
+		return record;
+	}
+
+	/**
+	 * Copies the traces in the ring, oldest first. Traces being written are
+	 * waited for.
+	 */
+	public List<Trace> dump() {
+		List<Trace> traces = new ArrayList<>(records.length);
+		for (Record record : records) {
+			long stamp = record.lock.tryOptimisticRead();
+			Trace trace = record.sequence < 0 ? null : new Trace(record);
+			if (!record.lock.validate(stamp)) {
+				stamp = record.lock.readLock();
+				try {
+					trace = record.sequence < 0 ? null : new Trace(record);
+				} finally {
+					record.lock.unlockRead(stamp);
+				}
+			}
+			if (trace != null)
+				traces.add(trace);
+		}
+		traces.sort(Comparator.comparingLong(Trace::getSequence));
+		return traces;
+	}
+
+}
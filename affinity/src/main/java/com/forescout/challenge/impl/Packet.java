@@ -3,24 +3,19 @@ package com.forescout.challenge.impl;
 import com.forescout.challenge.affinity.IPacket;
 import com.forescout.challenge.affinity.IRoutingRule;
 import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
 import com.forescout.challenge.affinity.Utility;
 import com.forescout.challenge.affinity.attributes.Attribute;
-import com.forescout.challenge.affinity.attributes.values.Pair;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static com.forescout.challenge.affinity.Utility.cidrStringToNetAndMask;
-import static java.util.stream.Collectors.toMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
 /**
  * Represents a packet routed from a source network to a destination network
@@ -37,12 +32,14 @@ public class Packet implements IPacket, Serializable {
 	private Long srcAddr;
 	private Integer dstPort;
 	private String protocol;
+	private transient int protocolCode;
 
 	public Packet(long srcAddr, long dstAddr, int dstPort, String protocol) {
 		this.srcAddr = srcAddr;
 		this.dstAddr = dstAddr;
 		this.dstPort = dstPort;
 		this.protocol = protocol;
+		this.protocolCode = ProtocolTable.code(protocol);
 	}
 
 	@Override
@@ -65,6 +62,23 @@ public class Packet implements IPacket, Serializable {
 		return this.protocol;
 	}
 
+	@Override
+	public int getProtocolCode() {
+		//The protocol may only have been registered by a rule since
+		if (this.protocolCode == ProtocolTable.UNKNOWN && this.protocol != null)
+			this.protocolCode = ProtocolTable.code(protocol);
+		return this.protocolCode;
+	}
+
+	/**
+	 * Dynamic protocol codes are only valid in the process that registered
+	 * them, so the code is looked up again from the protocol name
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.protocolCode = ProtocolTable.code(protocol);
+	}
+
 	/**
 	 * Returns the {@link RoutingRule} with the highest matching score. The
 	 * destination network address can be obtained from the dstAddress property
@@ -77,118 +91,331 @@ public class Packet implements IPacket, Serializable {
 	@Override
 	public IRoutingRule getClosestAffinityNetwork(Collection<IRoutingRule> rules,
 			LinkedHashSet<AttributeKey> attributesPriority) {
+		return getClosestAffinityNetwork(this, rules, attributesPriority);
+	}
+
+
+	/**
+	 * Returns the {@link RoutingRule} with the highest matching score for the
+	 * given packet, whatever its implementation, see
+	 * {@link IPacket#getClosestAffinityNetwork}
+	 * @param packet The packet the rules are matched against
+	 * @param rules The pool of rules where the matching score is computed on
+	 * @param attributesPriority A ordered set of attributes representing the
+	 * priority order in which attributes are evaluated
+	 * @return
+	 */
+	public static IRoutingRule getClosestAffinityNetwork(IPacket packet, Collection<IRoutingRule> rules,
+			LinkedHashSet<AttributeKey> attributesPriority) {
+		return getClosestAffinityNetwork(packet, rules, attributesPriority, null);
+	}
+
+
+	/**
+	 * See {@link #getClosestAffinityNetwork(IPacket, Collection, LinkedHashSet)}
+	 * @param tracer Samples the decisions to trace, or null
+	 */
+	static IRoutingRule getClosestAffinityNetwork(IPacket packet, Collection<IRoutingRule> rules,
+			LinkedHashSet<AttributeKey> attributesPriority, DecisionTracer tracer) {
 
-		if (rules==null || attributesPriority==null)
+		if (packet==null || rules==null || attributesPriority==null)
 			throw new IllegalArgumentException();
 
 		if (attributesPriority.isEmpty() || rules.isEmpty())
 			throw new AssertionError("Priority or Rules is empty");
 
-		rules = discardMismatchRules(rules);
-
-		//If no rule matches with the given attribute across all rules, return null
-		return rules.isEmpty()?null:processRoutingRules(rules, attributesPriority.iterator());
+		Scratch scratch = scratch();
+		//Copying the keys into an array large enough does not allocate on JDK 10+, while on JDK 8
+		//toArray allocates an iterator as iterating the set does, unless escape analysis removes it
+		AttributeKey[] priority = attributesPriority.toArray(scratch.priority);
+		return getClosestAffinityNetwork(packet, rules, priority, attributesPriority.size(), scratch, tracer);
 	}
 
 
 	/**
-	 * Returns the {@link RoutingRule} with the highest matching score.
+	 * Returns the {@link RoutingRule} with the highest matching score for the
+	 * given packet, see {@link #getClosestAffinityNetwork(IPacket, Collection, LinkedHashSet)}.
+	 * The priority is copied out of its set once by the caller, e.g. as
+	 * {@link com.forescout.challenge.impl.engine.BatchClassifier} does, so
+	 * that classifying a packet allocates nothing on any JDK.
+	 * @param packet The packet the rules are matched against
 	 * @param rules The pool of rules where the matching score is computed on
-	 * @param attributePriorityIterator A ordered set of attributes representing the
-	 * priority order in which attributes are evaluated
+	 * @param priority The attributes in the priority order they are evaluated,
+	 * each at most once
 	 * @return
 	 */
-	private IRoutingRule processRoutingRules(Collection<IRoutingRule> rules,
-			Iterator<AttributeKey> attributePriorityIterator) {
+	public static IRoutingRule getClosestAffinityNetwork(IPacket packet, Collection<IRoutingRule> rules,
+			AttributeKey[] priority) {
+		return getClosestAffinityNetwork(packet, rules, priority, null);
+	}
 
-		if (!attributePriorityIterator.hasNext())
-			return null;
-		
-		AttributeKey attributeKey = attributePriorityIterator.next();
+
+	/**
+	 * See {@link #getClosestAffinityNetwork(IPacket, Collection, AttributeKey[])}
+	 * @param tracer Samples the decisions to trace, or null
+	 */
+	static IRoutingRule getClosestAffinityNetwork(IPacket packet, Collection<IRoutingRule> rules,
+			AttributeKey[] priority, DecisionTracer tracer) {
+
+		if (packet==null || rules==null || priority==null)
+			throw new IllegalArgumentException();
+
+		if (priority.length == 0 || rules.isEmpty())
+			throw new AssertionError("Priority or Rules is empty");
+
+		return getClosestAffinityNetwork(packet, rules, priority, priority.length, scratch(), tracer);
+	}
+
+
+	/**
+	 * @return The scratch buffers of the thread, or new ones if a rule
+	 * computing its score classifies another packet in the same thread
+	 */
+	private static Scratch scratch() {
+		Scratch scratch = SCRATCH.get();
+		return scratch.inUse ? new Scratch() : scratch;
+	}
+
+
+	private static IRoutingRule getClosestAffinityNetwork(IPacket packet, Collection<IRoutingRule> rules,
+			AttributeKey[] priority, int priorityLength, Scratch scratch, DecisionTracer tracer) {
+
+		scratch.inUse = true;
+		DecisionTracer.Record trace = null;
+		if (tracer != null) {
+			//Packets classified without the tracer in between do not count
+			if (tracer != scratch.tracer) {
+				scratch.tracer = tracer;
+				scratch.untraced = 0;
+			}
+			if (++scratch.untraced >= tracer.getSampleInterval()) {
+				scratch.untraced = 0;
+				trace = tracer.begin(packet, priority, priorityLength);
+			}
+		}
 		IRoutingRule rule = null;
-		Map<IRoutingRule, Long> scoreMap = getAttributeRulesScore(attributeKey, rules);
-
-		//find maxScore 
-		Long maxScore = scoreMap.values().stream().max(Comparator.comparing(Long::longValue)).get();
-
-		//collect the rules that has high score and return the rule if there is
-		//only 1 element with highest score
-		Set<IRoutingRule> scoreMapSet = scoreMap.entrySet().stream().filter(entry->entry.getValue()==maxScore)
-				.map(entry->entry.getKey())
-				.collect(Collectors.toSet());
-		if(scoreMapSet.size()==1)
-			return scoreMapSet.stream().findFirst().get();
-
-		//else proceed with next attributes
-		if (attributePriorityIterator.hasNext()) 
-			rule = processRoutingRules(scoreMapSet,attributePriorityIterator);			
-		else 
-			rule = scoreMapSet.stream().min(Comparator.comparing(rule2 -> rule2.getId())).get();
-		
+		boolean completed = false;
+		try {
+			discardMismatchRules(packet, rules, scratch, trace);
+
+			//If no rule matches with the given attribute across all rules, return null
+			rule = scratch.count == 0 ? null : processRoutingRules(packet, scratch, priority, priorityLength, trace);
+			completed = true;
+			return rule;
+		} finally {
+			//Do not keep the rules reachable from the thread
+			Arrays.fill(scratch.rules, 0, scratch.count, null);
+			scratch.count = 0;
+			scratch.inUse = false;
+			if (trace != null)
+				trace.end(rule, completed);
+		}
+	}
+
+
+	/**
+	 * Returns the {@link RoutingRule} with the highest matching score among
+	 * the rules kept in the scratch buffers. Attributes are evaluated in
+	 * priority order, the rules with the highest score are kept in place, and
+	 * the first address attribute decides between the rules left.
+	 * @param scratch The rules matching the packet and their scores
+	 * @param priority The attributes in the priority order they are evaluated
+	 * @param priorityLength The number of attributes in priority
+	 * @param trace Receives the scores and networks compared, or null
+	 * @return
+	 */
+	private static IRoutingRule processRoutingRules(IPacket packet, Scratch scratch, AttributeKey[] priority,
+			int priorityLength, DecisionTracer.Record trace) {
+
+		for (int i = 0; i < priorityLength; i++) {
+			AttributeKey attributeKey = priority[i];
+			if (attributeKey.equals(AttributeKey.srcAddresses) || attributeKey.equals(AttributeKey.dstAddress))
+				return getIPAddressCloseAffinity(packet, scratch, attributeKey, trace);
+
+			keepMaxScores(scratch, attributeKey, trace);
+			if (scratch.count == 1)
+				return scratch.rules[0];
+		}
+
+		IRoutingRule rule = scratch.rules[0];
+		for (int i = 1; i < scratch.count; i++) {
+			if (scratch.rules[i].getId() < rule.getId())
+				rule = scratch.rules[i];
+		}
+		if (trace != null) {
+			for (int i = 0; i < scratch.count; i++)
+				trace.tieBreak(scratch.rules[i]);
+		}
 		return rule;
 	}
 
 
 	/**
-	 * Returns the {@Map <RoutingRule,Long} routing rules with their scores for a 
-	 * given attribute
-	 * @param rules The pool of rules where the matching score is computed on
+	 * Keeps the rules with the highest score of the given attribute, in place
+	 * @param scratch The rules where the scores are compared
 	 * @param attributeKey against which the routing rules are scored
-	 * @return
+	 * @param trace Receives the scores, or null
 	 */
-	private Map<IRoutingRule,Long> getAttributeRulesScore(AttributeKey attributeKey, Collection<IRoutingRule> rules) {
-		if(attributeKey.equals(IRoutingRule.AttributeKey.srcAddresses)) {
-			Map<IRoutingRule, String> srcAddressMap = rules.stream().collect(toMap(Function.identity(),
-					routingRule -> ((Collection<Attribute<String>>) routingRule.getSrcAddresses().getArgument()).stream().filter(srcAddress->Utility.isIpInsideNet(this.getSrcAddr(), srcAddress.getArgument())).findFirst().get().getArgument()));
-			return getIPAddressCloseAffinity(srcAddressMap);
-		} else if (attributeKey.equals(IRoutingRule.AttributeKey.dstAddress)) {
-			Map<IRoutingRule, String> rulesMap = rules.stream().collect(toMap(Function.identity(), rule -> (String) rule.getDstAddress().getArgument()));
-			return getIPAddressCloseAffinity(rulesMap);
+	private static void keepMaxScores(Scratch scratch, AttributeKey attributeKey, DecisionTracer.Record trace) {
+		int key = attributeKey.ordinal();
+		long maxScore = 0;
+		for (int i = 0; i < scratch.count; i++)
+			maxScore = Math.max(maxScore, scratch.scores[i * KEYS + key]);
+		if (trace != null) {
+			for (int i = 0; i < scratch.count; i++)
+				trace.score(scratch.rules[i], attributeKey, scratch.scores[i * KEYS + key]);
 		}
-		return rules.stream().collect(toMap(Function.identity(), routingRule -> routingRule.getMatchingScore(attributeKey, this)));
+
+		int kept = 0;
+		for (int i = 0; i < scratch.count; i++) {
+			if (scratch.scores[i * KEYS + key] == maxScore) {
+				scratch.rules[kept] = scratch.rules[i];
+				System.arraycopy(scratch.scores, i * KEYS, scratch.scores, kept * KEYS, KEYS);
+				kept++;
+			}
+		}
+		Arrays.fill(scratch.rules, kept, scratch.count, null);
+		scratch.count = kept;
 	}
 
 
 	/**
-	 * Returns the {@Collection <IRoutingRule} routing rules with their scores for a 
-	 * given attribute
+	 * Keeps the rules whose four attributes all score against the packet,
+	 * with their scores, in the scratch buffers
 	 * @param rules The pool of rules where the matching score is computed on
-	 * @param rules The pool of rules after discarding the mismatched rules
-	 * @return
+	 * @param scratch Receives the rules after discarding the mismatched rules
+	 * @param trace Receives the discarded rules, or null
 	 */
-	private Collection<IRoutingRule> discardMismatchRules(Collection<IRoutingRule> rules) {
+	private static void discardMismatchRules(IPacket packet, Collection<IRoutingRule> rules, Scratch scratch,
+			DecisionTracer.Record trace) {
 
-		return rules.stream().filter(iRoutingRule-> !(iRoutingRule.getMatchingScore(AttributeKey.dstAddress,this)==0
-				|| iRoutingRule.getMatchingScore(AttributeKey.srcAddresses,this)==0
-				|| iRoutingRule.getMatchingScore(AttributeKey.dstPort,this)==0
-				|| iRoutingRule.getMatchingScore(AttributeKey.protocol,this)==0))
-				.collect(Collectors.toSet());
+		if (rules instanceof List && rules instanceof RandomAccess) {
+			List<IRoutingRule> list = (List<IRoutingRule>) rules;
+			for (int i = 0; i < list.size(); i++)
+				score(packet, list.get(i), scratch, trace);
+		} else {
+			for (IRoutingRule rule : rules)
+				score(packet, rule, scratch, trace);
+		}
 	}
 
+	private static void score(IPacket packet, IRoutingRule rule, Scratch scratch, DecisionTracer.Record trace) {
+		long dstAddress = rule.getMatchingScore(AttributeKey.dstAddress, packet);
+		if (dstAddress == 0) {
+			if (trace != null)
+				trace.dropped(rule, AttributeKey.dstAddress);
+			return;
+		}
+		long srcAddresses = rule.getMatchingScore(AttributeKey.srcAddresses, packet);
+		if (srcAddresses == 0) {
+			if (trace != null)
+				trace.dropped(rule, AttributeKey.srcAddresses);
+			return;
+		}
+		long dstPort = rule.getMatchingScore(AttributeKey.dstPort, packet);
+		if (dstPort == 0) {
+			if (trace != null)
+				trace.dropped(rule, AttributeKey.dstPort);
+			return;
+		}
+		long protocol = rule.getMatchingScore(AttributeKey.protocol, packet);
+		if (protocol == 0) {
+			if (trace != null)
+				trace.dropped(rule, AttributeKey.protocol);
+			return;
+		}
+
+		int i = scratch.count++;
+		if (i == scratch.rules.length) {
+			scratch.rules = Arrays.copyOf(scratch.rules, i * 2);
+			scratch.scores = Arrays.copyOf(scratch.scores, i * 2 * KEYS);
+			scratch.networks = Arrays.copyOf(scratch.networks, i * 2);
+		}
+		scratch.rules[i] = rule;
+		scratch.scores[i * KEYS + AttributeKey.srcAddresses.ordinal()] = srcAddresses;
+		scratch.scores[i * KEYS + AttributeKey.dstAddress.ordinal()] = dstAddress;
+		scratch.scores[i * KEYS + AttributeKey.dstPort.ordinal()] = dstPort;
+		scratch.scores[i * KEYS + AttributeKey.protocol.ordinal()] = protocol;
+	}
 
 
-	private static Map<IRoutingRule, Long> getIPAddressCloseAffinity(Map<IRoutingRule, String> rules) {
-		Map<IRoutingRule, Pair<Long, Integer>> iRoutingRulePairMap = rules.entrySet().stream().collect(toMap(Map.Entry::getKey, entry -> cidrStringToNetAndMask(entry.getValue())));
-		Optional<Map.Entry<IRoutingRule, Pair<Long, Integer>>> maxRuleEntryPair = iRoutingRulePairMap.entrySet().stream().max(Comparator.comparing(entry -> entry.getValue().getFirst()));
-		if (maxRuleEntryPair.isPresent()) {
-			Long ruleIP = maxRuleEntryPair.get().getValue().getFirst();
-			Map<IRoutingRule, Pair<Long, Integer>> rulesSubnet = iRoutingRulePairMap.entrySet().stream().filter(entry -> ruleIP.equals(entry.getValue().getFirst())).collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
-			if (rulesSubnet.size() == 1) {
-				return Collections.singletonMap(rulesSubnet.keySet().stream().findFirst().get(), ruleIP);
+	/**
+	 * Returns the rule whose network of the given address attribute has the
+	 * highest address, then the widest mask, then the lowest id. The network
+	 * of the source pool is its first entry containing the packet source.
+	 */
+	@SuppressWarnings("unchecked")
+	private static IRoutingRule getIPAddressCloseAffinity(IPacket packet, Scratch scratch, AttributeKey attributeKey,
+			DecisionTracer.Record trace) {
+		for (int i = 0; i < scratch.count; i++) {
+			String network = null;
+			if (attributeKey.equals(AttributeKey.dstAddress)) {
+				network = (String) scratch.rules[i].getDstAddress().getArgument();
 			} else {
-				Optional<Map.Entry<IRoutingRule, Pair<Long, Integer>>> minRuleEntryPair = rulesSubnet.entrySet().stream().min(Comparator.comparing(entry -> entry.getValue().getSecond()));
-				if(minRuleEntryPair.isPresent()) {
-					Pair<Long, Integer> minMaskPair = minRuleEntryPair.get().getValue();
-					Map<IRoutingRule, Pair<Long, Integer>> rulesWithMask = rulesSubnet.entrySet().stream().filter(entry -> minMaskPair.getSecond().equals(entry.getValue().getSecond())).collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
-					if(rulesWithMask.size() == 1) {
-						return Collections.singletonMap(rulesWithMask.entrySet().stream().findFirst().get().getKey(), minMaskPair.getFirst());
-					} else {
-						IRoutingRule iRoutingRule = rulesWithMask.entrySet().stream().min(Comparator.comparing(entry -> (entry.getKey().getId()))).get().getKey();
-						return Collections.singletonMap(iRoutingRule, minMaskPair.getFirst());
-					}
-				}
+				network = firstSrcAddressInside(packet.getSrcAddr(), (Collection<Attribute<String>>) scratch.rules[i].getSrcAddresses().getArgument());
+				if (network == null)
+					throw new NoSuchElementException("No source address of the pool contains the packet source");
 			}
+			scratch.networks[i] = Utility.cidrStringToPackedNetAndMask(network);
+			if (trace != null)
+				trace.network(scratch.rules[i], attributeKey, scratch.networks[i]);
+		}
+
+		int closest = 0;
+		for (int i = 1; i < scratch.count; i++) {
+			long net = Utility.packedNet(scratch.networks[i]);
+			long closestNet = Utility.packedNet(scratch.networks[closest]);
+			int mask = Utility.packedMask(scratch.networks[i]);
+			int closestMask = Utility.packedMask(scratch.networks[closest]);
+			if (net > closestNet || net == closestNet && (mask < closestMask
+					|| mask == closestMask && scratch.rules[i].getId() < scratch.rules[closest].getId()))
+				closest = i;
+		}
+		return scratch.rules[closest];
+	}
+
+
+	private static String firstSrcAddressInside(long srcAddr, Collection<Attribute<String>> pool) {
+		if (pool instanceof List && pool instanceof RandomAccess) {
+			List<Attribute<String>> entries = (List<Attribute<String>>) pool;
+			for (int i = 0; i < entries.size(); i++) {
+				if (Utility.isIpInsideNet(srcAddr, entries.get(i).getArgument()))
+					return entries.get(i).getArgument();
+			}
+			return null;
+		}
+		for (Attribute<String> srcAddress : pool) {
+			if (Utility.isIpInsideNet(srcAddr, srcAddress.getArgument()))
+				return srcAddress.getArgument();
 		}
 		return null;
 	}
+
+
+	private static final int KEYS = AttributeKey.values().length;
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * Buffers of the rules matching a packet, their four scores and their
+	 * networks, reused by every packet classified in a thread
+	 */
+	private static final class Scratch {
+		IRoutingRule[] rules = new IRoutingRule[16];
+		long[] scores = new long[16 * KEYS];
+		long[] networks = new long[16];
+		/**
+		 * The attributes priority copied out of its set, which holds at most
+		 * one of each key
+		 */
+		final AttributeKey[] priority = new AttributeKey[KEYS];
+		int count;
+		boolean inUse;
+		/**
+		 * The tracer sampling the packets of the thread, and the packets
+		 * classified since the last traced one
+		 */
+		DecisionTracer tracer;
+		int untraced;
+	}
 }
\ No newline at end of file
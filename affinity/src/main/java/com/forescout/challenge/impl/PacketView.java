@@ -0,0 +1,147 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Flyweight {@link IPacket} reading its fields straight from an IPv4 header
+ * in a {@link ByteBuffer}, heap or direct. Nothing is copied: the view is
+ * moved from one header to the next with {@link #wrap}, so that a single
+ * view can walk a whole buffer of captured frames.
+ *
+ * The protocol is the protocol number of the IPv4 header, which is its code
+ * in {@link ProtocolTable}. The destination port is read from the TCP or UDP
+ * header following the IPv4 header, it is 0 for other protocols, for
+ * fragments other than the first one and for truncated transport headers.
+ *
+ * A view is mutable and must not be shared between threads. The buffer
+ * position and limit are never changed by the view.
+ */
+public class PacketView implements IPacket {
+
+	private static final int IPV4_HEADER_LENGTH = 20;
+	private static final int TCP = 6;
+	private static final int UDP = 17;
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int transportOffset;
+
+	/**
+	 * Creates a view over no packet, {@link #wrap} must be called before the
+	 * fields are read
+	 */
+	public PacketView() {
+	}
+
+	public PacketView(ByteBuffer buffer, int offset) {
+		wrap(buffer, offset);
+	}
+
+	/**
+	 * Moves the view to the IPv4 header starting at the given absolute
+	 * offset of the buffer
+	 * @param buffer The buffer holding the header, in network byte order or
+	 * not: multi-byte fields are read as big endian whatever the buffer order
+	 * @param offset The absolute offset of the first byte of the IPv4 header
+	 * @return This view
+	 * @throws IllegalArgumentException if there is no complete IPv4 header
+	 * at the offset
+	 */
+	public PacketView wrap(ByteBuffer buffer, int offset) {
+		if (buffer == null)
+			throw new IllegalArgumentException("Argument buffer cannot be null");
+		if (offset < 0 || offset + IPV4_HEADER_LENGTH > buffer.limit())
+			throw new IllegalArgumentException("No IPv4 header at offset " + offset);
+
+		int versionAndLength = buffer.get(offset) & 0xFF;
+		int headerLength = (versionAndLength & 0x0F) * 4;
+		if (versionAndLength >> 4 != 4 || headerLength < IPV4_HEADER_LENGTH)
+			throw new IllegalArgumentException("No IPv4 header at offset " + offset);
+
+		this.buffer = buffer;
+		this.offset = offset;
+		this.transportOffset = offset + headerLength;
+		return this;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The length of the IPv4 packet, header included, as read from its header
+	 */
+	public int getTotalLength() {
+		return readUnsignedShort(offset + 2);
+	}
+
+	@Override
+	public long getSrcAddr() {
+		return readInt(offset + 12) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long getDstAddr() {
+		return readInt(offset + 16) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public int getDstPort() {
+		int protocol = getProtocolCode();
+		if (protocol != TCP && protocol != UDP)
+			return 0;
+		//Only the first fragment holds the transport header
+		if ((readUnsignedShort(offset + 6) & 0x1FFF) != 0)
+			return 0;
+		if (transportOffset + 4 > buffer.limit())
+			return 0;
+		return readUnsignedShort(transportOffset + 2);
+	}
+
+	@Override
+	public String getProtocol() {
+		return ProtocolTable.name(getProtocolCode());
+	}
+
+	@Override
+	public int getProtocolCode() {
+		return buffer.get(offset + 9) & 0xFF;
+	}
+
+	@Override
+	public IRoutingRule getClosestAffinityNetwork(Collection<IRoutingRule> rules,
+			LinkedHashSet<AttributeKey> attributesPriority) {
+		return Packet.getClosestAffinityNetwork(this, rules, attributesPriority);
+	}
+
+	/**
+	 * Copies the fields of the header the view is on into a {@link Packet},
+	 * which does not depend on the buffer anymore
+	 */
+	public Packet toPacket() {
+		return new Packet(getSrcAddr(), getDstAddr(), getDstPort(), getProtocol());
+	}
+
+	private int readInt(int index) {
+		int value = buffer.getInt(index);
+		return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+	}
+
+	private int readUnsignedShort(int index) {
+		short value = buffer.getShort(index);
+		return (buffer.order() == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value)) & 0xFFFF;
+	}
+
+}
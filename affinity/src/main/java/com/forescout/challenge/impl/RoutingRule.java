@@ -2,6 +2,7 @@ package com.forescout.challenge.impl;
 
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import com.forescout.challenge.affinity.IPacket;
@@ -29,23 +30,18 @@ public class RoutingRule implements IRoutingRule{
      * id of the rule
      */
 	private int id;
-	private static int idInitializer;
-	
-    /**
-     * Key used to keep track of current Attribute
-     */
-	public static AttributeKey currentAttributeKey;
+	private static final AtomicInteger idInitializer = new AtomicInteger();
 	
 	public RoutingRule(Set<String> srcAddresses, String dstAddress, String protocol,
 			PortRange portRange) {
 		
-		Collection<Attribute<Object>> srcAddressesPool = srcAddresses.stream().map(source->new AttributeImpl<Object>(source)).collect(Collectors.toSet());
-		this.srcAddresses = new CollectionAttributeImpl(srcAddressesPool);
-		this.dstAddress = new AttributeImpl<String>(dstAddress);
-		this.protocol = new AttributeImpl<String>(protocol);
-		this.portRange = new AttributeImpl<PortRange>(portRange);
+		Collection<Attribute<Object>> srcAddressesPool = srcAddresses.stream().map(source->new AttributeImpl<Object>(AttributeKey.srcAddresses, source)).collect(Collectors.toList());
+		this.srcAddresses = new CollectionAttributeImpl(AttributeKey.srcAddresses, srcAddressesPool);
+		this.dstAddress = new AttributeImpl<String>(AttributeKey.dstAddress, dstAddress);
+		this.protocol = new AttributeImpl<String>(AttributeKey.protocol, protocol);
+		this.portRange = new AttributeImpl<PortRange>(AttributeKey.dstPort, portRange);
 		
-		id = ++idInitializer;
+		id = idInitializer.incrementAndGet();
 	}
 
 	/**
@@ -59,18 +55,12 @@ public class RoutingRule implements IRoutingRule{
 	public Long getMatchingScore(AttributeKey attributeKey, IPacket packet) {
 		
 		if (attributeKey.equals(AttributeKey.srcAddresses)) {
-			currentAttributeKey = AttributeKey.srcAddresses;
-			Long score = this.srcAddresses.matchingScore(packet);
-			return score;
+			return this.srcAddresses.matchingScore(packet);
 		}else if (attributeKey.equals(AttributeKey.dstAddress)) {
-			currentAttributeKey = AttributeKey.dstAddress;
-			Long score = this.dstAddress.matchingScore(packet);
-			return score;
+			return this.dstAddress.matchingScore(packet);
 		}else if (attributeKey.equals(AttributeKey.dstPort)) {
-			currentAttributeKey = AttributeKey.dstPort;
 			return this.portRange.matchingScore(packet);
 		}else if (attributeKey.equals(AttributeKey.protocol)) {
-			currentAttributeKey = AttributeKey.protocol;
 			return this.protocol.matchingScore(packet);
 		}
 		return null;
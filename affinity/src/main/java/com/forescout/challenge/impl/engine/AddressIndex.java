@@ -0,0 +1,506 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+
+/**
+ * Mutable compiled form of a collection of rules, updated in place one rule
+ * at a time. Every rule is parsed into primitive values stored by handle,
+ * as {@link RuleSet} stores them by slot. Rules matching the dstAddress
+ * attribute are stored in a {@link PrefixTrie} under their network, rules
+ * matching any destination but the dstPort attribute in a segment tree over
+ * the ports, under the at most 32 aligned blocks of ports their range splits
+ * into. Adding, removing or updating a rule only touches its handle and the
+ * paths to its nodes instead of compiling the whole collection of rules
+ * again.
+ *
+ * A {@link RuleSet} is not updated in place instead: its columns, ranks and
+ * indexes are dense over every rule, sized once and read by any number of
+ * threads without locking, so changing one rule means compiling all of them
+ * again, see {@link RuleSetHolder}. This index is for rules changing more
+ * often than they could be compiled, at the cost of a lock per lookup and of
+ * ranking the matching rules two at a time.
+ *
+ * Classifying a packet scans the rules whose network contains its
+ * destination, the rules whose range contains its port, then the remaining
+ * rules, and ranks the matching rules as {@link AffinityRanking} does,
+ * without allocating.
+ * Lookups and updates may run concurrently: lookups share a read lock,
+ * updates take the write lock.
+ *
+ * Rules are ranked on the values read when they were added or last
+ * updated, changing a rule has no effect before {@link #update} is called.
+ */
+public final class AddressIndex extends AffinityRanking {
+
+	private static final int NO_HANDLE = -1;
+	private static final int IN_DST_INDEX = -1;
+	private static final int IN_PORT_INDEX = -2;
+	private static final int PORTS = 1 << 16;
+
+	/**
+	 * Candidate handles of a lookup, shared by every index a thread
+	 * classifies with and grown to the largest of them
+	 */
+	private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[16]);
+
+	private final StampedLock lock = new StampedLock();
+	private final Map<IRoutingRule, Integer> handles = new IdentityHashMap<>();
+	private final PrefixTrie dstIndex = new PrefixTrie();
+	private final PortTree portIndex = new PortTree();
+
+	/**
+	 * Rules and their values by handle, handles of removed rules are reused
+	 */
+	private IRoutingRule[] rules = new IRoutingRule[0];
+	private int[] ids = new int[0];
+	private byte[] srcOperator = new byte[0];
+	private byte[] dstOperator = new byte[0];
+	private byte[] portOperator = new byte[0];
+	private byte[] protocolOperator = new byte[0];
+	private long[][] srcNet = new long[0][];
+	private long[][] srcNetMask = new long[0][];
+	private int[][] srcMaskBits = new int[0][];
+	private long[] dstNet = new long[0];
+	private long[] dstNetMask = new long[0];
+	private int[] dstMaskBits = new int[0];
+	private int[] portBegin = new int[0];
+	private int[] portEnd = new int[0];
+	private int[] protocolCode = new int[0];
+	/**
+	 * Position of the handle in scanned, or the trie its rule is in
+	 */
+	private int[] scanPosition = new int[0];
+
+	private int[] freeHandles = new int[0];
+	private int freeCount;
+	private int handleCount;
+
+	/**
+	 * Handles of the rules in neither trie, checked on every lookup
+	 */
+	private int[] scanned = new int[16];
+	private int scanCount;
+
+	/**
+	 * Segment tree over the ports. Node n has children 2n and 2n + 1, node 1
+	 * stands for every port and leaf {@link #PORTS} + p for port p, so that
+	 * every node stands for an aligned block of ports and holds the handles
+	 * whose range covers it exactly. Looking up a port collects the 17 nodes
+	 * from its leaf to the root. The nodes are allocated with the first range.
+	 */
+	private static final class PortTree {
+		private int[][] values;
+		private int[] counts;
+		private int size;
+
+		void insert(int begin, int end, int handle) {
+			if (values == null) {
+				values = new int[2 * PORTS][];
+				counts = new int[2 * PORTS];
+			}
+			for (int l = begin + PORTS, r = end + 1 + PORTS; l < r; l >>= 1, r >>= 1) {
+				if ((l & 1) != 0)
+					add(l++, handle);
+				if ((r & 1) != 0)
+					add(--r, handle);
+			}
+		}
+
+		private void add(int node, int handle) {
+			int[] handles = values[node];
+			if (handles == null)
+				values[node] = handles = new int[2];
+			else if (counts[node] == handles.length)
+				values[node] = handles = Arrays.copyOf(handles, counts[node] * 2);
+			handles[counts[node]++] = handle;
+			size++;
+		}
+
+		void remove(int begin, int end, int handle) {
+			for (int l = begin + PORTS, r = end + 1 + PORTS; l < r; l >>= 1, r >>= 1) {
+				if ((l & 1) != 0)
+					remove(l++, handle);
+				if ((r & 1) != 0)
+					remove(--r, handle);
+			}
+		}
+
+		private void remove(int node, int handle) {
+			int[] handles = values[node];
+			for (int i = 0; i < counts[node]; i++) {
+				if (handles[i] == handle) {
+					handles[i] = handles[--counts[node]];
+					size--;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Collects the handles of every range containing the port
+		 * @param out Receives the handles, at least {@link #size()} long
+		 * @return The number of handles written to out
+		 */
+		int lookup(int port, int[] out) {
+			if (values == null || port < 0 || port >= PORTS)
+				return 0;
+			int count = 0;
+			for (int node = port + PORTS; node > 0; node >>= 1) {
+				if (counts[node] > 0) {
+					System.arraycopy(values[node], 0, out, count, counts[node]);
+					count += counts[node];
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Number of handles stored in the nodes
+		 */
+		int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Values of a rule parsed before the index is changed
+	 */
+	private static final class Parsed {
+		final IRoutingRule rule;
+		final byte src;
+		final byte dst;
+		final byte port;
+		final byte protocol;
+		final long[] nets;
+		final long[] netMasks;
+		final int[] maskBits;
+		final long dstNetAndMask;
+		final PortRange portRange;
+		final int protocolCode;
+
+		Parsed(IRoutingRule rule) {
+			this.rule = rule;
+			src = RuleSet.operator(rule.getSrcAddresses());
+			dst = RuleSet.singleOperator(rule.getDstAddress());
+			port = RuleSet.singleOperator(rule.getDstPort());
+			protocol = RuleSet.singleOperator(rule.getProtocol());
+
+			Collection<Attribute<?>> pool = RuleSet.srcPool(rule);
+			nets = new long[pool.size()];
+			netMasks = new long[pool.size()];
+			maskBits = new int[pool.size()];
+			int entry = 0;
+			for (Attribute<?> srcAddress : pool) {
+				long netAndMask = RuleSet.parseCidr((String) srcAddress.getArgument());
+				nets[entry] = Utility.packedNet(netAndMask);
+				maskBits[entry] = Utility.packedMask(netAndMask);
+				netMasks[entry++] = RuleSet.netMask(Utility.packedMask(netAndMask));
+			}
+			dstNetAndMask = RuleSet.parseCidr((String) rule.getDstAddress().getArgument());
+			portRange = (PortRange) rule.getDstPort().getArgument();
+			protocolCode = ProtocolTable.register((String) rule.getProtocol().getArgument());
+		}
+	}
+
+	public AddressIndex() {
+	}
+
+	public AddressIndex(Collection<IRoutingRule> rules) {
+		Validate.notNull(rules, "Argument rules cannot be null");
+		for (IRoutingRule rule : rules)
+			add(rule);
+	}
+
+	/**
+	 * Adds a rule to the index
+	 * @return false if the rule was already indexed
+	 */
+	public boolean add(IRoutingRule rule) {
+		Validate.notNull(rule, "Argument rule cannot be null");
+		Parsed parsed = new Parsed(rule);
+		long stamp = lock.writeLock();
+		try {
+			return !handles.containsKey(rule) && insert(parsed);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes a rule from the index
+	 * @return false if the rule was not indexed
+	 */
+	public boolean remove(IRoutingRule rule) {
+		long stamp = lock.writeLock();
+		try {
+			return delete(rule);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Indexes a rule again after its attributes or their operators changed.
+	 * The rule is added if it was not indexed. If the rule cannot be parsed,
+	 * it stays indexed with its previous values.
+	 */
+	public void update(IRoutingRule rule) {
+		Validate.notNull(rule, "Argument rule cannot be null");
+		Parsed parsed = new Parsed(rule);
+		long stamp = lock.writeLock();
+		try {
+			delete(rule);
+			insert(parsed);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Stores a rule parsed beforehand, so that an invalid rule leaves the
+	 * index unchanged
+	 */
+	private boolean insert(Parsed parsed) {
+		IRoutingRule rule = parsed.rule;
+		long netAndMask = parsed.dstNetAndMask;
+		PortRange portRange = parsed.portRange;
+		byte dst = parsed.dst;
+		byte port = parsed.port;
+
+		int handle = freeCount > 0 ? freeHandles[--freeCount] : handleCount++;
+		if (handle == rules.length)
+			grow(Math.max(16, handle * 2));
+		rules[handle] = rule;
+		ids[handle] = rule.getId();
+		srcOperator[handle] = parsed.src;
+		dstOperator[handle] = dst;
+		portOperator[handle] = port;
+		protocolOperator[handle] = parsed.protocol;
+		srcNet[handle] = parsed.nets;
+		srcNetMask[handle] = parsed.netMasks;
+		srcMaskBits[handle] = parsed.maskBits;
+		dstNet[handle] = Utility.packedNet(netAndMask);
+		dstMaskBits[handle] = Utility.packedMask(netAndMask);
+		dstNetMask[handle] = RuleSet.netMask(Utility.packedMask(netAndMask));
+		portBegin[handle] = portRange.getBegin();
+		portEnd[handle] = portRange.getEnd();
+		protocolCode[handle] = parsed.protocolCode;
+		handles.put(rule, handle);
+
+		if (dst == RuleSet.MATCHES && PrefixTrie.isIndexable(dstNet[handle], dstMaskBits[handle])) {
+			dstIndex.insert(dstNet[handle], dstMaskBits[handle], handle);
+			scanPosition[handle] = IN_DST_INDEX;
+		} else if (port == RuleSet.MATCHES && isPortIndexable(portRange.getBegin(), portRange.getEnd())) {
+			portIndex.insert(portBegin[handle], portEnd[handle], handle);
+			scanPosition[handle] = IN_PORT_INDEX;
+		} else {
+			if (scanCount == scanned.length)
+				scanned = Arrays.copyOf(scanned, scanCount * 2);
+			scanPosition[handle] = scanCount;
+			scanned[scanCount++] = handle;
+		}
+		return true;
+	}
+
+	private boolean delete(IRoutingRule rule) {
+		Integer removed = handles.remove(rule);
+		if (removed == null)
+			return false;
+		int handle = removed;
+
+		if (scanPosition[handle] == IN_DST_INDEX) {
+			dstIndex.remove(dstNet[handle], dstMaskBits[handle], handle);
+		} else if (scanPosition[handle] == IN_PORT_INDEX) {
+			portIndex.remove(portBegin[handle], portEnd[handle], handle);
+		} else {
+			int last = scanned[--scanCount];
+			scanned[scanPosition[handle]] = last;
+			scanPosition[last] = scanPosition[handle];
+		}
+
+		rules[handle] = null;
+		srcNet[handle] = null;
+		srcNetMask[handle] = null;
+		srcMaskBits[handle] = null;
+		if (freeCount == freeHandles.length)
+			freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeCount * 2));
+		freeHandles[freeCount++] = handle;
+		return true;
+	}
+
+	private static boolean isPortIndexable(int begin, int end) {
+		return begin >= 0 && end < PORTS;
+	}
+
+	private void grow(int capacity) {
+		rules = Arrays.copyOf(rules, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		srcOperator = Arrays.copyOf(srcOperator, capacity);
+		dstOperator = Arrays.copyOf(dstOperator, capacity);
+		portOperator = Arrays.copyOf(portOperator, capacity);
+		protocolOperator = Arrays.copyOf(protocolOperator, capacity);
+		srcNet = Arrays.copyOf(srcNet, capacity);
+		srcNetMask = Arrays.copyOf(srcNetMask, capacity);
+		srcMaskBits = Arrays.copyOf(srcMaskBits, capacity);
+		dstNet = Arrays.copyOf(dstNet, capacity);
+		dstNetMask = Arrays.copyOf(dstNetMask, capacity);
+		dstMaskBits = Arrays.copyOf(dstMaskBits, capacity);
+		portBegin = Arrays.copyOf(portBegin, capacity);
+		portEnd = Arrays.copyOf(portEnd, capacity);
+		protocolCode = Arrays.copyOf(protocolCode, capacity);
+		scanPosition = Arrays.copyOf(scanPosition, capacity);
+	}
+
+	/**
+	 * Returns the {@link IRoutingRule} with the highest matching score among
+	 * the indexed rules, see {@link IPacket#getClosestAffinityNetwork}
+	 * @return The closest rule, or null if no rule matches the packet
+	 */
+	public IRoutingRule classify(IPacket packet, LinkedHashSet<AttributeKey> attributesPriority) {
+		if (packet == null || attributesPriority == null)
+			throw new IllegalArgumentException();
+
+		if (attributesPriority.isEmpty() || size() == 0)
+			throw new AssertionError("Priority or Rules is empty");
+
+		AttributeKey[] priority = attributesPriority.toArray(new AttributeKey[attributesPriority.size()]);
+		return classify(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(),
+				priority);
+	}
+
+	/**
+	 * Returns the rule with the highest matching score, see
+	 * {@link CompiledClassifier#lookup}
+	 * @return The closest rule, or null if no rule matches the packet
+	 */
+	public IRoutingRule classify(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		long stamp = lock.readLock();
+		try {
+			int[] found = scratch();
+			int best = NO_HANDLE;
+			int count = dstIndex.lookup(dstAddr, found);
+			for (int i = 0; i < count; i++) {
+				int handle = found[i];
+				if (srcMatches(handle, srcAddr) && portMatches(handle, dstPort) && protocolMatches(handle, protocolCode))
+					best = best == NO_HANDLE ? handle : preferred(best, handle, srcAddr, priority);
+			}
+			count = portIndex.lookup(dstPort, found);
+			for (int i = 0; i < count; i++) {
+				int handle = found[i];
+				if (srcMatches(handle, srcAddr) && protocolMatches(handle, protocolCode))
+					best = best == NO_HANDLE ? handle : preferred(best, handle, srcAddr, priority);
+			}
+			for (int i = 0; i < scanCount; i++) {
+				int handle = scanned[i];
+				if (dstMatches(handle, dstAddr) && srcMatches(handle, srcAddr) && portMatches(handle, dstPort)
+						&& protocolMatches(handle, protocolCode))
+					best = best == NO_HANDLE ? handle : preferred(best, handle, srcAddr, priority);
+			}
+			return best == NO_HANDLE ? null : rules[best];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Number of rules in the index
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return handles.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private int[] scratch() {
+		int[] found = SCRATCH.get();
+		int size = Math.max(dstIndex.size(), portIndex.size());
+		if (found.length < size) {
+			found = new int[Math.max(size, found.length * 2)];
+			SCRATCH.set(found);
+		}
+		return found;
+	}
+
+	private boolean dstMatches(int handle, long dstAddr) {
+		return dstOperator[handle] == RuleSet.ANY || (dstAddr & dstNetMask[handle]) == (dstNet[handle] & dstNetMask[handle]);
+	}
+
+	private boolean srcMatches(int handle, long srcAddr) {
+		if (srcOperator[handle] == RuleSet.ANY)
+			return true;
+		//A pool matched as a whole never scores, see CollectionAttributeImpl
+		return srcOperator[handle] == RuleSet.CONTAINS && srcEntry(handle, srcAddr) >= 0;
+	}
+
+	private boolean portMatches(int handle, int dstPort) {
+		return portOperator[handle] == RuleSet.ANY || (dstPort >= portBegin[handle] && dstPort <= portEnd[handle]);
+	}
+
+	private boolean protocolMatches(int handle, int protocolCode) {
+		return protocolOperator[handle] == RuleSet.ANY || this.protocolCode[handle] == protocolCode;
+	}
+
+	@Override
+	int srcEntry(int handle, long srcAddr) {
+		long[] nets = srcNet[handle];
+		long[] netMasks = srcNetMask[handle];
+		for (int entry = 0; entry < nets.length; entry++) {
+			if ((srcAddr & netMasks[entry]) == (nets[entry] & netMasks[entry]))
+				return entry;
+		}
+		return -1;
+	}
+
+	@Override
+	int id(int handle) {
+		return ids[handle];
+	}
+
+	@Override
+	byte portOperator(int handle) {
+		return portOperator[handle];
+	}
+
+	@Override
+	byte protocolOperator(int handle) {
+		return protocolOperator[handle];
+	}
+
+	@Override
+	long dstNet(int handle) {
+		return dstNet[handle];
+	}
+
+	@Override
+	int dstMaskBits(int handle) {
+		return dstMaskBits[handle];
+	}
+
+	@Override
+	long srcNet(int handle, int entry) {
+		return srcNet[handle][entry];
+	}
+
+	@Override
+	int srcMaskBits(int handle, int entry) {
+		return srcMaskBits[handle][entry];
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+
+/**
+ * Ranking of the rules matching a packet by closest affinity, for the
+ * stores of compiled rules which compare their candidates two at a time
+ * instead of through a {@link PriorityPlan}. Attributes are compared in
+ * priority order: port and protocol prefer the Matches operator (score 2)
+ * over the Any operator (score 1), the first address attribute decides by
+ * the highest network, then the widest mask, then the lowest id. Rules
+ * still tied after the last attribute are decided by the lowest id. This is
+ * the order the keys of a {@link PriorityPlan} encode.
+ *
+ * A store extends the ranking and reads the primitive values of a rule
+ * from its own layout, rules being known by slot or handle.
+ */
+abstract class AffinityRanking {
+
+	abstract int id(int rule);
+
+	abstract byte portOperator(int rule);
+
+	abstract byte protocolOperator(int rule);
+
+	abstract long dstNet(int rule);
+
+	abstract int dstMaskBits(int rule);
+
+	/**
+	 * Returns the first entry of the source pool of the rule containing the
+	 * address, or -1 if there is none
+	 */
+	abstract int srcEntry(int rule, long srcAddr);
+
+	abstract long srcNet(int rule, int entry);
+
+	abstract int srcMaskBits(int rule, int entry);
+
+	/**
+	 * Returns which of two rules matching the packet has the closest affinity
+	 * @param best The closest rule so far
+	 * @param rule Another matching rule
+	 * @param srcAddr The packet source address
+	 * @param priority The attributes in priority order
+	 * @return The closest of the two rules
+	 */
+	final int preferred(int best, int rule, long srcAddr, AttributeKey[] priority) {
+		for (AttributeKey attributeKey : priority) {
+			switch (attributeKey) {
+				case dstAddress:
+					return isCloser(dstNet(rule), dstMaskBits(rule), id(rule),
+							dstNet(best), dstMaskBits(best), id(best)) ? rule : best;
+				case srcAddresses:
+					int entry = srcEntry(rule, srcAddr);
+					int bestEntry = srcEntry(best, srcAddr);
+					return isCloser(entry < 0 ? RuleSet.NO_NETWORK : srcNet(rule, entry),
+							entry < 0 ? 0 : srcMaskBits(rule, entry), id(rule),
+							bestEntry < 0 ? RuleSet.NO_NETWORK : srcNet(best, bestEntry),
+							bestEntry < 0 ? 0 : srcMaskBits(best, bestEntry), id(best)) ? rule : best;
+				case dstPort:
+					if (portOperator(rule) != portOperator(best))
+						return portOperator(rule) == RuleSet.MATCHES ? rule : best;
+					break;
+				case protocol:
+					if (protocolOperator(rule) != protocolOperator(best))
+						return protocolOperator(rule) == RuleSet.MATCHES ? rule : best;
+					break;
+			}
+		}
+		return id(rule) < id(best) ? rule : best;
+	}
+
+	static boolean isCloser(long net, int mask, int id, long bestNet, int bestMask, int bestId) {
+		if (net != bestNet)
+			return net > bestNet;
+		if (mask != bestMask)
+			return mask < bestMask;
+		return id < bestId;
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.LinkedHashSet;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+
+/**
+ * Classifies packets in batches given as columns of primitive values, one
+ * array per packet field, so that no {@link IPacket} is created per packet.
+ * A batch classifier is bound to one engine and one attribute priority, and
+ * can be shared by many threads.
+ */
+public final class BatchClassifier {
+
+	/**
+	 * Rule id written for a packet no rule matches
+	 */
+	public static final int NO_RULE = -1;
+
+	private final CompiledClassifier engine;
+	private final AttributeKey[] priority;
+	private final int[] ids;
+
+	/**
+	 * @param engine The engine classifying the packets
+	 * @param attributesPriority A ordered set of attributes representing the
+	 * priority order in which attributes are evaluated
+	 */
+	public BatchClassifier(CompiledClassifier engine, LinkedHashSet<AttributeKey> attributesPriority) {
+		if (engine == null || attributesPriority == null)
+			throw new IllegalArgumentException();
+
+		if (attributesPriority.isEmpty() || engine.getRuleSet().size() == 0)
+			throw new AssertionError("Priority or Rules is empty");
+
+		this.engine = engine;
+		this.priority = attributesPriority.toArray(new AttributeKey[attributesPriority.size()]);
+		this.ids = engine.getRuleSet().ids;
+	}
+
+	/**
+	 * Classifies the first n packets of the batch. Packet i is made of the
+	 * values at index i of every column.
+	 * @param srcAddr The packet source addresses
+	 * @param dstAddr The packet destination addresses
+	 * @param dstPort The packet destination ports
+	 * @param protocolCode The packet protocols, as coded by {@link ProtocolTable}
+	 * @param n The number of packets in the batch
+	 * @param outRuleIds Receives the id of the closest rule of every packet,
+	 * or {@link #NO_RULE}
+	 */
+	public void classify(long[] srcAddr, long[] dstAddr, int[] dstPort, int[] protocolCode, int n, int[] outRuleIds) {
+		checkColumns(srcAddr, dstAddr, dstPort, protocolCode, n, outRuleIds);
+		classify(srcAddr, dstAddr, dstPort, protocolCode, 0, n, outRuleIds);
+	}
+
+	/**
+	 * Classifies the packets from index from, inclusive, to index to,
+	 * exclusive, of columns already checked
+	 */
+	void classify(long[] srcAddr, long[] dstAddr, int[] dstPort, int[] protocolCode, int from, int to, int[] outRuleIds) {
+		for (int i = from; i < to; i++) {
+			int slot = engine.lookup(srcAddr[i], dstAddr[i], dstPort[i], protocolCode[i], priority);
+			outRuleIds[i] = slot == CompiledClassifier.NO_MATCH ? NO_RULE : ids[slot];
+		}
+	}
+
+	static void checkColumns(long[] srcAddr, long[] dstAddr, int[] dstPort, int[] protocolCode, int n, int[] outRuleIds) {
+		if (srcAddr == null || dstAddr == null || dstPort == null || protocolCode == null || outRuleIds == null)
+			throw new IllegalArgumentException();
+
+		if (n < 0 || srcAddr.length < n || dstAddr.length < n || dstPort.length < n || protocolCode.length < n
+				|| outRuleIds.length < n)
+			throw new IllegalArgumentException("Batch of " + n + " packets does not fit the columns");
+	}
+
+	public CompiledClassifier getEngine() {
+		return engine;
+	}
+
+}
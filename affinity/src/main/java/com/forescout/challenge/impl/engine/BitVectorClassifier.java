@@ -0,0 +1,193 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+
+/**
+ * Bit vector classifier in the style of Lakshman and Stiliadis. Every
+ * dimension of the rules (srcAddresses pool, dstAddress, dstPort, protocol)
+ * is split into elementary intervals, each mapped to the bitmap of the rules
+ * matching any value in it. Looking up a packet is one binary search per
+ * dimension, an AND of the four bitmaps one word at a time, and the priority
+ * resolution of the rules whose bit is left set.
+ *
+ * Bitmaps take one bit per rule and per elementary interval, so the engine
+ * suits rule sets of up to a few thousand rules.
+ */
+public final class BitVectorClassifier extends CompiledClassifier {
+
+	private static final int SRC = 0;
+	private static final int DST = 1;
+	private static final int PORT = 2;
+	private static final int PROTOCOL = 3;
+	private static final int DIMENSIONS = 4;
+
+	/**
+	 * The elementary intervals of one dimension. Interval i holds the values
+	 * from starts[i] to starts[i + 1] - 1, the first one starts at
+	 * Long.MIN_VALUE so that every value falls in an interval.
+	 */
+	private static final class Field {
+		final long[] starts;
+		final long[][] bitmaps;
+
+		Field(long[] starts, long[][] bitmaps) {
+			this.starts = starts;
+			this.bitmaps = bitmaps;
+		}
+
+		long[] bitmap(long value) {
+			int index = Arrays.binarySearch(starts, value);
+			return bitmaps[index >= 0 ? index : -index - 2];
+		}
+	}
+
+	private final RuleSet ruleSet;
+	private final int words;
+	private final Field[] fields = new Field[DIMENSIONS];
+
+	public BitVectorClassifier(RuleSet ruleSet) {
+		this.ruleSet = ruleSet;
+		this.words = (ruleSet.size() + Long.SIZE - 1) / Long.SIZE;
+
+		int size = ruleSet.size();
+		long[][] low = new long[DIMENSIONS][];
+		long[][] high = new long[DIMENSIONS][];
+		int[][] owner = new int[DIMENSIONS][];
+
+		//A pool has one interval per entry, a pool matched as a whole none
+		int entries = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (ruleSet.srcOperator[slot] == RuleSet.ANY)
+				entries++;
+			else if (ruleSet.srcOperator[slot] == RuleSet.CONTAINS)
+				entries += ruleSet.srcStart[slot + 1] - ruleSet.srcStart[slot];
+		}
+		low[SRC] = new long[entries];
+		high[SRC] = new long[entries];
+		owner[SRC] = new int[entries];
+		int interval = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (ruleSet.srcOperator[slot] == RuleSet.ANY) {
+				low[SRC][interval] = Long.MIN_VALUE;
+				high[SRC][interval] = Long.MAX_VALUE;
+				owner[SRC][interval++] = slot;
+			} else if (ruleSet.srcOperator[slot] == RuleSet.CONTAINS) {
+				for (int entry = ruleSet.srcStart[slot]; entry < ruleSet.srcStart[slot + 1]; entry++) {
+					low[SRC][interval] = ruleSet.srcNet[entry] & ruleSet.srcNetMask[entry];
+					high[SRC][interval] = low[SRC][interval] | ~ruleSet.srcNetMask[entry];
+					owner[SRC][interval++] = slot;
+				}
+			}
+		}
+
+		for (int dimension = DST; dimension < DIMENSIONS; dimension++) {
+			low[dimension] = new long[size];
+			high[dimension] = new long[size];
+			owner[dimension] = new int[size];
+		}
+		for (int slot = 0; slot < size; slot++) {
+			for (int dimension = DST; dimension < DIMENSIONS; dimension++) {
+				low[dimension][slot] = Long.MIN_VALUE;
+				high[dimension][slot] = Long.MAX_VALUE;
+				owner[dimension][slot] = slot;
+			}
+			if (ruleSet.dstOperator[slot] != RuleSet.ANY) {
+				low[DST][slot] = ruleSet.dstNet[slot] & ruleSet.dstNetMask[slot];
+				high[DST][slot] = low[DST][slot] | ~ruleSet.dstNetMask[slot];
+			}
+			if (ruleSet.portOperator[slot] != RuleSet.ANY) {
+				low[PORT][slot] = ruleSet.portBegin[slot];
+				high[PORT][slot] = ruleSet.portEnd[slot];
+			}
+			if (ruleSet.protocolOperator[slot] != RuleSet.ANY) {
+				low[PROTOCOL][slot] = ruleSet.protocolCode[slot];
+				high[PROTOCOL][slot] = ruleSet.protocolCode[slot];
+			}
+		}
+
+		for (int dimension = SRC; dimension < DIMENSIONS; dimension++)
+			fields[dimension] = field(low[dimension], high[dimension], owner[dimension]);
+	}
+
+	/**
+	 * Splits the intervals of one dimension into elementary intervals and sets
+	 * the bit of the owner of every interval in the bitmaps of the elementary
+	 * intervals it spans
+	 */
+	private Field field(long[] low, long[] high, int[] owner) {
+		long[] bounds = new long[2 * low.length + 1];
+		int count = 0;
+		bounds[count++] = Long.MIN_VALUE;
+		for (int interval = 0; interval < low.length; interval++) {
+			bounds[count++] = low[interval];
+			if (high[interval] != Long.MAX_VALUE)
+				bounds[count++] = high[interval] + 1;
+		}
+		Arrays.sort(bounds, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || bounds[i] != bounds[unique - 1])
+				bounds[unique++] = bounds[i];
+		}
+		long[] starts = Arrays.copyOf(bounds, unique);
+
+		long[][] bitmaps = new long[unique][words];
+		for (int interval = 0; interval < low.length; interval++) {
+			int first = Arrays.binarySearch(starts, low[interval]);
+			int last = high[interval] == Long.MAX_VALUE
+					? unique - 1
+					: Arrays.binarySearch(starts, high[interval] + 1) - 1;
+			int slot = owner[interval];
+			for (int index = first; index <= last; index++)
+				bitmaps[index][slot >>> 6] |= 1L << slot;
+		}
+		return new Field(starts, bitmaps);
+	}
+
+	/**
+	 * Returns the slot of the rule with the highest matching score among the
+	 * rules set in the intersection of the bitmaps of the packet fields.
+	 */
+	@Override
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		long[] src = fields[SRC].bitmap(srcAddr);
+		long[] dst = fields[DST].bitmap(dstAddr);
+		long[] port = fields[PORT].bitmap(dstPort);
+		long[] protocol = fields[PROTOCOL].bitmap(protocolCode);
+
+		PriorityPlan plan = ruleSet.plan(priority);
+		int best = NO_MATCH;
+		long bestKey = PriorityPlan.NO_KEY;
+		for (int word = 0; word < words; word++) {
+			long bits = src[word] & dst[word] & port[word] & protocol[word];
+			while (bits != 0) {
+				int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+				long key = plan.key(slot, srcAddr);
+				if (key > bestKey) {
+					best = slot;
+					bestKey = key;
+				}
+				bits &= bits - 1;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public RuleSet getRuleSet() {
+		return ruleSet;
+	}
+
+	/**
+	 * Number of elementary intervals of every dimension
+	 */
+	public int getIntervalCount() {
+		int count = 0;
+		for (Field field : fields)
+			count += field.starts.length;
+		return count;
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.LinkedHashSet;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+
+/**
+ * Base class of the classification engines working on a compiled
+ * {@link RuleSet}. Every engine returns the same rule as
+ * {@link IPacket#getClosestAffinityNetwork} would on the rules the rule set
+ * was compiled from.
+ */
+public abstract class CompiledClassifier {
+
+	/**
+	 * Slot returned by {@link #lookup} when no rule matches the packet
+	 */
+	public static final int NO_MATCH = -1;
+
+	/**
+	 * The rule set this engine classifies against, the same for the whole
+	 * life of the engine, so that the slots of its lookups can be resolved
+	 * against the rule set read once
+	 */
+	public abstract RuleSet getRuleSet();
+
+	/**
+	 * Returns the slot of the rule with the highest matching score.
+	 * @param srcAddr The packet source address
+	 * @param dstAddr The packet destination address
+	 * @param dstPort The packet destination port
+	 * @param protocolCode The packet protocol, as coded by {@link ProtocolTable}
+	 * @param priority The attributes in the priority order they are evaluated
+	 * @return The slot of the closest rule in the rule set, or {@link #NO_MATCH}
+	 */
+	public abstract int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority);
+
+	/**
+	 * Returns the {@link IRoutingRule} with the highest matching score. The
+	 * destination network address can be obtained from the dstAddress property
+	 * in the rule.
+	 * @param packet The packet to classify
+	 * @param attributesPriority A ordered set of attributes representing the
+	 * priority order in which attributes are evaluated
+	 * @return The closest rule, or null if no rule matches the packet
+	 */
+	public IRoutingRule classify(IPacket packet, LinkedHashSet<AttributeKey> attributesPriority) {
+		RuleSet ruleSet = getRuleSet();
+
+		if (packet == null || attributesPriority == null)
+			throw new IllegalArgumentException();
+
+		if (attributesPriority.isEmpty() || ruleSet.size() == 0)
+			throw new AssertionError("Priority or Rules is empty");
+
+		AttributeKey[] priority = attributesPriority.toArray(new AttributeKey[attributesPriority.size()]);
+		int slot = lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+				packet.getProtocolCode(), priority);
+
+		//If no rule matches with the given attribute across all rules, return null
+		return slot == NO_MATCH ? null : ruleSet.getRule(slot);
+	}
+
+}
@@ -0,0 +1,480 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+
+/**
+ * Decision tree classifier in the style of HiCuts. The space of packets
+ * (srcAddr, dstAddr, dstPort, protocol) is cut recursively into equal sized
+ * boxes along one dimension at a time, until every box holds at most a leaf
+ * size of candidate rules. Looking up a packet walks down to the box holding
+ * it and resolves the few candidates of the leaf.
+ *
+ * The leaf size bounds the rules checked at lookup time, the space factor
+ * bounds how many times a rule may be copied into the children of a node,
+ * trading memory for a shallower tree. As in HyperCuts, rules covering the
+ * whole box of a node are kept in the node rather than copied into every
+ * child, and a cut only spans the rules narrower than the box.
+ */
+public final class DecisionTreeClassifier extends CompiledClassifier {
+
+	public static final int DEFAULT_LEAF_SIZE = 16;
+	public static final double DEFAULT_SPACE_FACTOR = 4.0;
+
+	private static final int SRC = 0;
+	private static final int DST = 1;
+	private static final int PORT = 2;
+	private static final int PROTOCOL = 3;
+	private static final int DIMENSIONS = 4;
+
+	private static final int MAX_CUTS = 1024;
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * Bounds the rule copies stored in the whole tree, relative to the number
+	 * of rules, so that rule sets with many wildcards cannot exhaust memory
+	 */
+	private static final int MAX_COPIES_PER_RULE = 64;
+
+	/**
+	 * The space covered by the tree, packets out of it are looked up in the
+	 * rule set
+	 */
+	private static final long[] SPACE_LOW = {0L, 0L, 0L, 0L};
+	private static final long[] SPACE_HIGH = {0xFFFFFFFFL, 0xFFFFFFFFL, 0xFFFFL, Integer.MAX_VALUE};
+
+	private static final class Node {
+		final int dimension;
+		final long low;
+		final long high;
+		final long cutWidth;
+		final Node[] children;
+		/**
+		 * Rules wider than the cut span, for packets out of it
+		 */
+		final Node outside;
+		/**
+		 * Rules covering the whole box of an inner node, or the candidates of a leaf
+		 */
+		final int[] bucket;
+
+		Node(int[] bucket) {
+			this(-1, 0, 0, 0, null, null, bucket);
+		}
+
+		Node(int dimension, long low, long high, long cutWidth, Node[] children, Node outside, int[] bucket) {
+			this.dimension = dimension;
+			this.low = low;
+			this.high = high;
+			this.cutWidth = cutWidth;
+			this.children = children;
+			this.outside = outside;
+			this.bucket = bucket;
+		}
+	}
+
+	private final RuleSet ruleSet;
+	private final int leafSize;
+	private final double spaceFactor;
+
+	/**
+	 * Projection of every rule on each dimension, clipped to the space of
+	 * the tree. The source dimension of a pool has one interval per entry.
+	 */
+	private final long[][] low = new long[DIMENSIONS][];
+	private final long[][] high = new long[DIMENSIONS][];
+	private final long[] srcLow;
+	private final long[] srcHigh;
+
+	private final Node root;
+	private int nodes;
+	private int depth;
+	private long copiesLeft;
+
+	public DecisionTreeClassifier(RuleSet ruleSet) {
+		this(ruleSet, DEFAULT_LEAF_SIZE, DEFAULT_SPACE_FACTOR);
+	}
+
+	/**
+	 * Builds the decision tree of the given rule set.
+	 * @param ruleSet The compiled rules
+	 * @param leafSize The maximum number of rules in a leaf, unless the rules
+	 * cannot be told apart by further cuts
+	 * @param spaceFactor The maximum ratio between the rules copied into the
+	 * children of a node and the rules of the node
+	 */
+	public DecisionTreeClassifier(RuleSet ruleSet, int leafSize, double spaceFactor) {
+		if (leafSize < 1)
+			throw new IllegalArgumentException("Leaf size must be >= 1");
+		if (spaceFactor < 1.0)
+			throw new IllegalArgumentException("Space factor must be >= 1");
+
+		this.ruleSet = ruleSet;
+		this.leafSize = leafSize;
+		this.spaceFactor = spaceFactor;
+
+		int size = ruleSet.size();
+		for (int dimension = DST; dimension < DIMENSIONS; dimension++) {
+			low[dimension] = new long[size];
+			high[dimension] = new long[size];
+		}
+		srcLow = new long[ruleSet.srcNet.length];
+		srcHigh = new long[ruleSet.srcNet.length];
+		for (int entry = 0; entry < srcLow.length; entry++) {
+			srcLow[entry] = ruleSet.srcNet[entry] & ruleSet.srcNetMask[entry];
+			srcHigh[entry] = srcLow[entry] | ~ruleSet.srcNetMask[entry];
+		}
+
+		copiesLeft = (long) MAX_COPIES_PER_RULE * Math.max(size, leafSize);
+		int[] slots = new int[size];
+		int count = 0;
+		for (int slot = 0; slot < size; slot++) {
+			project(slot);
+			if (isInSpace(slot))
+				slots[count++] = slot;
+		}
+		root = build(Arrays.copyOf(slots, count), SPACE_LOW.clone(), SPACE_HIGH.clone(), 0);
+	}
+
+	private void project(int slot) {
+		if (ruleSet.dstOperator[slot] == RuleSet.ANY) {
+			low[DST][slot] = Long.MIN_VALUE;
+			high[DST][slot] = Long.MAX_VALUE;
+		} else {
+			low[DST][slot] = ruleSet.dstNet[slot] & ruleSet.dstNetMask[slot];
+			high[DST][slot] = low[DST][slot] | ~ruleSet.dstNetMask[slot];
+		}
+		if (ruleSet.portOperator[slot] == RuleSet.ANY) {
+			low[PORT][slot] = Long.MIN_VALUE;
+			high[PORT][slot] = Long.MAX_VALUE;
+		} else {
+			low[PORT][slot] = ruleSet.portBegin[slot];
+			high[PORT][slot] = ruleSet.portEnd[slot];
+		}
+		if (ruleSet.protocolOperator[slot] == RuleSet.ANY) {
+			low[PROTOCOL][slot] = Long.MIN_VALUE;
+			high[PROTOCOL][slot] = Long.MAX_VALUE;
+		} else {
+			low[PROTOCOL][slot] = ruleSet.protocolCode[slot];
+			high[PROTOCOL][slot] = ruleSet.protocolCode[slot];
+		}
+	}
+
+	/**
+	 * Rules that cannot match any packet in the space of the tree are left
+	 * out of it
+	 */
+	private boolean isInSpace(int slot) {
+		if (ruleSet.srcOperator[slot] == RuleSet.MATCHES)
+			return false;
+		for (int dimension = SRC; dimension < DIMENSIONS; dimension++) {
+			if (!overlaps(slot, dimension, SPACE_LOW[dimension], SPACE_HIGH[dimension]))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean overlaps(int slot, int dimension, long boxLow, long boxHigh) {
+		if (dimension != SRC)
+			return low[dimension][slot] <= boxHigh && high[dimension][slot] >= boxLow;
+		if (ruleSet.srcOperator[slot] == RuleSet.ANY)
+			return true;
+		for (int entry = ruleSet.srcStart[slot]; entry < ruleSet.srcStart[slot + 1]; entry++) {
+			if (srcLow[entry] <= boxHigh && srcHigh[entry] >= boxLow)
+				return true;
+		}
+		return false;
+	}
+
+	private boolean covers(int slot, int dimension, long boxLow, long boxHigh) {
+		if (dimension != SRC)
+			return low[dimension][slot] <= boxLow && high[dimension][slot] >= boxHigh;
+		if (ruleSet.srcOperator[slot] == RuleSet.ANY)
+			return true;
+		for (int entry = ruleSet.srcStart[slot]; entry < ruleSet.srcStart[slot + 1]; entry++) {
+			if (srcLow[entry] <= boxLow && srcHigh[entry] >= boxHigh)
+				return true;
+		}
+		return false;
+	}
+
+	private boolean coversBox(int slot, long[] boxLow, long[] boxHigh) {
+		for (int dimension = SRC; dimension < DIMENSIONS; dimension++) {
+			if (!covers(slot, dimension, boxLow[dimension], boxHigh[dimension]))
+				return false;
+		}
+		return true;
+	}
+
+	private Node leaf(int[] slots) {
+		copiesLeft -= slots.length;
+		return new Node(slots);
+	}
+
+	private Node build(int[] slots, long[] boxLow, long[] boxHigh, int level) {
+		nodes++;
+		depth = Math.max(depth, level);
+		if (slots.length <= leafSize || level == MAX_DEPTH || copiesLeft <= 0)
+			return leaf(slots);
+
+		//Rules covering the whole box match every packet in it
+		int[] covering = new int[slots.length];
+		int[] rest = new int[slots.length];
+		int coveringCount = 0;
+		int restCount = 0;
+		for (int slot : slots) {
+			if (coversBox(slot, boxLow, boxHigh))
+				covering[coveringCount++] = slot;
+			else
+				rest[restCount++] = slot;
+		}
+		if (restCount <= leafSize)
+			return leaf(slots);
+		rest = Arrays.copyOf(rest, restCount);
+
+		Cut best = null;
+		for (int dimension = SRC; dimension < DIMENSIONS; dimension++) {
+			Cut cut = new Cut(rest, dimension, boxLow[dimension], boxHigh[dimension]);
+			if (cut.narrow == 0)
+				continue;
+			while (cut.cuts * 2 <= MAX_CUTS && cut.cuts * 2 <= cut.width()
+					&& cut.copies(cut.cuts * 2) + cut.cuts * 2 <= spaceFactor * restCount)
+				cut.cuts *= 2;
+			cut.measure();
+			if (best == null || cut.largest < best.largest || (cut.largest == best.largest && cut.copies < best.copies))
+				best = cut;
+		}
+		//Cutting must leave fewer rules in every child
+		if (best == null || best.largest >= restCount)
+			return leaf(slots);
+
+		int dimension = best.dimension;
+		long cutWidth = (best.width() + best.cuts - 1) / best.cuts;
+		int childCount = (int) ((best.width() + cutWidth - 1) / cutWidth);
+
+		Node[] children = new Node[childCount];
+		int[] previous = null;
+		for (int child = 0; child < childCount; child++) {
+			long[] childBoxLow = boxLow.clone();
+			long[] childBoxHigh = boxHigh.clone();
+			childBoxLow[dimension] = best.spanLow + child * cutWidth;
+			childBoxHigh[dimension] = Math.min(best.spanHigh, childBoxLow[dimension] + cutWidth - 1);
+
+			int[] overlapping = new int[restCount];
+			int count = 0;
+			for (int slot : rest) {
+				if (overlaps(slot, dimension, childBoxLow[dimension], childBoxHigh[dimension]))
+					overlapping[count++] = slot;
+			}
+			overlapping = Arrays.copyOf(overlapping, count);
+
+			//Neighbouring boxes holding the same rules share their subtree
+			if (previous != null && Arrays.equals(overlapping, previous))
+				children[child] = children[child - 1];
+			else
+				children[child] = build(overlapping, childBoxLow, childBoxHigh, level + 1);
+			previous = overlapping;
+		}
+
+		//Out of the span of the narrow rules only the wide ones are left
+		int[] wide = new int[restCount - best.narrow];
+		int count = 0;
+		for (int slot : rest) {
+			if (covers(slot, dimension, boxLow[dimension], boxHigh[dimension]))
+				wide[count++] = slot;
+		}
+		Node outside = count == 0 ? null : build(wide, boxLow, boxHigh, level + 1);
+
+		copiesLeft -= coveringCount;
+		return new Node(dimension, best.spanLow, best.spanHigh, cutWidth, children, outside,
+				Arrays.copyOf(covering, coveringCount));
+	}
+
+	/**
+	 * A candidate cut of a box along one dimension. Only the span of the rules
+	 * narrower than the box is cut, the wide rules are copied into every piece.
+	 */
+	private final class Cut {
+		final int[] slots;
+		final int dimension;
+		final long boxLow;
+		final long boxHigh;
+		long spanLow = Long.MAX_VALUE;
+		long spanHigh = Long.MIN_VALUE;
+		int narrow;
+		int cuts = 2;
+		long copies;
+		long largest;
+
+		Cut(int[] slots, int dimension, long boxLow, long boxHigh) {
+			this.slots = slots;
+			this.dimension = dimension;
+			this.boxLow = boxLow;
+			this.boxHigh = boxHigh;
+			if (boxHigh == boxLow)
+				return;
+			for (int slot : slots) {
+				if (covers(slot, dimension, boxLow, boxHigh))
+					continue;
+				narrow++;
+				if (dimension != SRC) {
+					span(low[dimension][slot], high[dimension][slot]);
+				} else {
+					for (int entry = ruleSet.srcStart[slot]; entry < ruleSet.srcStart[slot + 1]; entry++)
+						span(srcLow[entry], srcHigh[entry]);
+				}
+			}
+		}
+
+		private void span(long intervalLow, long intervalHigh) {
+			if (intervalLow > boxHigh || intervalHigh < boxLow)
+				return;
+			spanLow = Math.min(spanLow, Math.max(intervalLow, boxLow));
+			spanHigh = Math.max(spanHigh, Math.min(intervalHigh, boxHigh));
+		}
+
+		long width() {
+			return spanHigh - spanLow + 1;
+		}
+
+		long copies(int pieces) {
+			return count(pieces, null);
+		}
+
+		void measure() {
+			long[] pieceRules = new long[cuts + 1];
+			copies = count(cuts, pieceRules);
+			long rules = 0;
+			for (int piece = 0; piece < cuts; piece++) {
+				rules += pieceRules[piece];
+				largest = Math.max(largest, rules);
+			}
+		}
+
+		/**
+		 * Number of rule copies made by cutting the span in the given number of
+		 * pieces. The pieces each rule falls in are also recorded as a
+		 * difference array in pieceRules, when not null.
+		 */
+		private long count(int pieces, long[] pieceRules) {
+			long cutWidth = (width() + pieces - 1) / pieces;
+			long copies = 0;
+			for (int slot : slots) {
+				if (dimension == SRC && ruleSet.srcOperator[slot] != RuleSet.ANY) {
+					//Entries of a pool may fall in the same piece, count the rule once per piece
+					int last = -1;
+					for (int entry = ruleSet.srcStart[slot]; entry < ruleSet.srcStart[slot + 1]; entry++)
+						last = Math.max(last, add(srcLow[entry], srcHigh[entry], cutWidth, last, pieceRules));
+					copies += last < 0 ? 0 : pieceCount;
+				} else if (dimension == SRC) {
+					add(Long.MIN_VALUE, Long.MAX_VALUE, cutWidth, -1, pieceRules);
+					copies += pieceCount;
+				} else {
+					add(low[dimension][slot], high[dimension][slot], cutWidth, -1, pieceRules);
+					copies += pieceCount;
+				}
+				pieceCount = 0;
+			}
+			return copies;
+		}
+
+		private long pieceCount;
+
+		/**
+		 * Records the pieces an interval overlaps after the piece skip
+		 * @return The last piece overlapped, or skip if there is none
+		 */
+		private int add(long intervalLow, long intervalHigh, long cutWidth, int skip, long[] pieceRules) {
+			if (intervalLow > spanHigh || intervalHigh < spanLow)
+				return skip;
+			int first = (int) Math.max(skip + 1, (Math.max(intervalLow, spanLow) - spanLow) / cutWidth);
+			int last = (int) ((Math.min(intervalHigh, spanHigh) - spanLow) / cutWidth);
+			if (last < first)
+				return skip;
+			if (pieceRules != null) {
+				pieceRules[first]++;
+				pieceRules[last + 1]--;
+			}
+			pieceCount += last - first + 1;
+			return last;
+		}
+	}
+
+	@Override
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		if (srcAddr < SPACE_LOW[SRC] || srcAddr > SPACE_HIGH[SRC]
+				|| dstAddr < SPACE_LOW[DST] || dstAddr > SPACE_HIGH[DST]
+				|| dstPort < SPACE_LOW[PORT] || dstPort > SPACE_HIGH[PORT]
+				|| protocolCode < SPACE_LOW[PROTOCOL] || protocolCode > SPACE_HIGH[PROTOCOL])
+			return ruleSet.lookup(srcAddr, dstAddr, dstPort, protocolCode, priority);
+
+		PriorityPlan plan = ruleSet.plan(priority);
+		int best = NO_MATCH;
+		long bestKey = PriorityPlan.NO_KEY;
+		Node node = root;
+		while (node.children != null) {
+			for (int slot : node.bucket) {
+				if (ruleSet.matches(slot, srcAddr, dstAddr, dstPort, protocolCode)) {
+					long key = plan.key(slot, srcAddr);
+					if (key > bestKey) {
+						best = slot;
+						bestKey = key;
+					}
+				}
+			}
+			long value;
+			switch (node.dimension) {
+				case SRC:
+					value = srcAddr;
+					break;
+				case DST:
+					value = dstAddr;
+					break;
+				case PORT:
+					value = dstPort;
+					break;
+				default:
+					value = protocolCode;
+					break;
+			}
+			if (value < node.low || value > node.high)
+				node = node.outside;
+			else
+				node = node.children[(int) ((value - node.low) / node.cutWidth)];
+			if (node == null)
+				return best;
+		}
+
+		for (int slot : node.bucket) {
+			if (ruleSet.matches(slot, srcAddr, dstAddr, dstPort, protocolCode)) {
+				long key = plan.key(slot, srcAddr);
+				if (key > bestKey) {
+					best = slot;
+					bestKey = key;
+				}
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public RuleSet getRuleSet() {
+		return ruleSet;
+	}
+
+	/**
+	 * Number of nodes in the tree, shared subtrees are counted once
+	 */
+	public int getNodeCount() {
+		return nodes;
+	}
+
+	/**
+	 * Length of the longest path from the root to a leaf
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+}
@@ -0,0 +1,356 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Validate;
+
+/**
+ * Bounded, concurrent cache of classification decisions in front of an
+ * engine. A decision is keyed by the packet fields (srcAddr, dstAddr,
+ * dstPort, protocol) and the attribute priority, and holds the slot of the
+ * closest rule or {@link #NO_MATCH}, so packets no rule matches are cached
+ * too.
+ *
+ * The cache is set associative: a key can only be stored in the few ways of
+ * the set its hash selects. When the set is full, the way holding the least
+ * frequent key is the eviction candidate, and the new key is only admitted
+ * if it is more frequent, as in TinyLFU. Frequencies are estimated by a
+ * count-min sketch whose counters are halved periodically, so that flows
+ * that were frequent long ago age out. Hits are only counted one time in
+ * four, with a weight of four, so that the hot flows mostly read the sketch
+ * shared by the threads instead of writing it.
+ *
+ * Keys are stored as primitive values in flat arrays. The sets are split in
+ * stripes each guarded by a {@link StampedLock}, lookups run under optimistic
+ * reads and only block while a decision of the same stripe is stored.
+ *
+ * Decisions are slots of the rule set of the engine, so they are only valid
+ * for that engine, and a cache is bound to one engine for its whole life:
+ * callers may resolve its slots against the rule set they read once, as
+ * {@link BatchClassifier} does. Compiled rule sets never change, new rules
+ * get a new cache built on the previous one with
+ * {@link #FlowCache(FlowCache, CompiledClassifier)}: both share their ways
+ * and sketch, and the new cache stores its decisions under a newer
+ * generation. The previous cache still answers from its own decisions until
+ * they are evicted, but no longer stores any, and the frequencies of the
+ * flows survive the change, so the hot flows are admitted again on their
+ * first miss. Rules published through a {@link RuleSetHolder} are cached
+ * this way with the engine factory {@link #factory}, e.g.
+ * {@code new RuleSetHolder(rules, FlowCache.factory(ruleSet -> ruleSet, capacity))}.
+ */
+public final class FlowCache extends CompiledClassifier {
+
+	private static final int WAYS = 8;
+	private static final int MAX_STRIPES = 64;
+	private static final int SKETCH_ROWS = 4;
+	private static final int MAX_FREQUENCY = 15;
+
+	/**
+	 * One hit in HIT_SAMPLING is counted in the sketch, a power of two
+	 */
+	private static final int HIT_SAMPLING = 4;
+
+	/**
+	 * Generation of the ways never written
+	 */
+	private static final int EMPTY = 0;
+
+	/**
+	 * Result of a scan not finding the key, distinct from every slot and
+	 * from NO_MATCH
+	 */
+	private static final int MISS = Integer.MIN_VALUE;
+
+	private static final class Stripe {
+		final StampedLock lock = new StampedLock();
+		final byte[] sketch;
+		final int sketchBits;
+		final int sampleSize;
+		int additions;
+
+		Stripe(int capacity) {
+			sketchBits = Math.max(4, 32 - Integer.numberOfLeadingZeros(capacity * 4 - 1));
+			sketch = new byte[SKETCH_ROWS << sketchBits];
+			sampleSize = 10 * capacity;
+		}
+
+		/**
+		 * Counts accesses to the key with the given hash, unsynchronized:
+		 * concurrent updates may be lost, which only makes the estimate
+		 * rougher. Saturated counters are not written.
+		 */
+		void increment(long hash, int weight) {
+			for (int row = 0; row < SKETCH_ROWS; row++) {
+				int index = index(hash, row);
+				if (sketch[index] < MAX_FREQUENCY)
+					sketch[index] = (byte) Math.min(MAX_FREQUENCY, sketch[index] + weight);
+			}
+			if ((additions += weight) >= sampleSize) {
+				additions = 0;
+				for (int i = 0; i < sketch.length; i++)
+					sketch[i] >>= 1;
+			}
+		}
+
+		int frequency(long hash) {
+			int frequency = MAX_FREQUENCY;
+			for (int row = 0; row < SKETCH_ROWS; row++)
+				frequency = Math.min(frequency, sketch[index(hash, row)]);
+			return frequency;
+		}
+
+		private int index(long hash, int row) {
+			long rowHash = (hash + row * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+			return (row << sketchBits) | (int) (rowHash >>> (Long.SIZE - sketchBits));
+		}
+	}
+
+	private final CompiledClassifier engine;
+	private final RuleSet ruleSet;
+
+	/**
+	 * Generation of the decisions of this cache, the ways of other
+	 * generations are free for it
+	 */
+	private final int generation;
+
+	/**
+	 * Generation of the newest cache sharing the ways, the only one storing
+	 * decisions
+	 */
+	private final AtomicInteger latest;
+
+	private final int setMask;
+	private final int stripeMask;
+	private final Stripe[] stripes;
+
+	/**
+	 * Ways of set i are stored at [i * WAYS, (i + 1) * WAYS)
+	 */
+	private final long[] srcAddrs;
+	private final long[] dstAddrs;
+	private final long[] portsAndProtocols;
+	private final int[] orderings;
+	private final long[] hashes;
+	private final int[] slots;
+	private final int[] generations;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param engine The engine classifying the packets missing in the cache
+	 * @param capacity The number of decisions the cache holds, rounded up to
+	 * a power of two
+	 */
+	public FlowCache(CompiledClassifier engine, int capacity) {
+		if (engine == null)
+			throw new IllegalArgumentException();
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+
+		int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+		int stripeCount = Math.min(MAX_STRIPES, sets);
+		setMask = sets - 1;
+		stripeMask = stripeCount - 1;
+		stripes = new Stripe[stripeCount];
+		for (int stripe = 0; stripe < stripeCount; stripe++)
+			stripes[stripe] = new Stripe(sets / stripeCount * WAYS);
+
+		int ways = sets * WAYS;
+		srcAddrs = new long[ways];
+		dstAddrs = new long[ways];
+		portsAndProtocols = new long[ways];
+		orderings = new int[ways];
+		hashes = new long[ways];
+		slots = new int[ways];
+		generations = new int[ways];
+
+		this.engine = engine;
+		this.ruleSet = engine.getRuleSet();
+		this.generation = EMPTY + 1;
+		this.latest = new AtomicInteger(generation);
+	}
+
+	/**
+	 * Builds a cache in front of a new engine, e.g. for new rules, sharing
+	 * the ways, sketch and capacity of the previous cache, which stops
+	 * storing decisions
+	 * @param previous The cache of the previous engine
+	 * @param engine The engine classifying the packets missing in the cache
+	 */
+	public FlowCache(FlowCache previous, CompiledClassifier engine) {
+		Validate.notNull(previous, "Argument previous cannot be null");
+		Validate.notNull(engine, "Argument engine cannot be null");
+
+		setMask = previous.setMask;
+		stripeMask = previous.stripeMask;
+		stripes = previous.stripes;
+		srcAddrs = previous.srcAddrs;
+		dstAddrs = previous.dstAddrs;
+		portsAndProtocols = previous.portsAndProtocols;
+		orderings = previous.orderings;
+		hashes = previous.hashes;
+		slots = previous.slots;
+		generations = previous.generations;
+
+		this.engine = engine;
+		this.ruleSet = engine.getRuleSet();
+		this.latest = previous.latest;
+		this.generation = latest.updateAndGet(last -> last + 1 == EMPTY ? EMPTY + 1 : last + 1);
+	}
+
+	/**
+	 * Returns an engine factory for a {@link RuleSetHolder}, building the
+	 * cache of every snapshot on the cache of the previous one
+	 * @param engineFactory Builds the engine the cache is in front of
+	 * @param capacity The number of decisions the caches hold
+	 */
+	public static Function<RuleSet, CompiledClassifier> factory(
+			Function<RuleSet, ? extends CompiledClassifier> engineFactory, int capacity) {
+		Validate.notNull(engineFactory, "Argument engineFactory cannot be null");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+
+		AtomicReference<FlowCache> last = new AtomicReference<>();
+		return ruleSet -> {
+			CompiledClassifier engine = engineFactory.apply(ruleSet);
+			return last.updateAndGet(previous ->
+					previous == null ? new FlowCache(engine, capacity) : new FlowCache(previous, engine));
+		};
+	}
+
+	public CompiledClassifier getEngine() {
+		return engine;
+	}
+
+	@Override
+	public RuleSet getRuleSet() {
+		return ruleSet;
+	}
+
+	/**
+	 * Returns the slot of the closest rule, from the cache when the same flow
+	 * was classified before with the same priority.
+	 */
+	@Override
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		long portAndProtocol = ((long) dstPort << 32) | (protocolCode & 0xFFFFFFFFL);
+		int ordering = PriorityPlan.orderingCode(priority);
+		long hash = hash(srcAddr, dstAddr, portAndProtocol, ordering);
+		int set = (int) (hash >>> 32) & setMask;
+		Stripe stripe = stripes[set & stripeMask];
+		int first = set * WAYS;
+
+		int slot = find(stripe, first, srcAddr, dstAddr, portAndProtocol, ordering);
+		if (slot != MISS) {
+			hits.increment();
+			if ((ThreadLocalRandom.current().nextInt() & (HIT_SAMPLING - 1)) == 0)
+				stripe.increment(hash, HIT_SAMPLING);
+			return slot;
+		}
+		misses.increment();
+		stripe.increment(hash, 1);
+
+		slot = engine.lookup(srcAddr, dstAddr, dstPort, protocolCode, priority);
+		store(stripe, first, hash, srcAddr, dstAddr, portAndProtocol, ordering, slot);
+		return slot;
+	}
+
+	private int find(Stripe stripe, int first, long srcAddr, long dstAddr, long portAndProtocol,
+			int ordering) {
+		long stamp = stripe.lock.tryOptimisticRead();
+		int slot = scan(first, srcAddr, dstAddr, portAndProtocol, ordering);
+		if (stripe.lock.validate(stamp))
+			return slot;
+
+		stamp = stripe.lock.readLock();
+		try {
+			return scan(first, srcAddr, dstAddr, portAndProtocol, ordering);
+		} finally {
+			stripe.lock.unlockRead(stamp);
+		}
+	}
+
+	private int scan(int first, long srcAddr, long dstAddr, long portAndProtocol, int ordering) {
+		for (int way = first; way < first + WAYS; way++) {
+			if (generations[way] == generation && srcAddrs[way] == srcAddr && dstAddrs[way] == dstAddr
+					&& portsAndProtocols[way] == portAndProtocol && orderings[way] == ordering)
+				return slots[way];
+		}
+		return MISS;
+	}
+
+	private void store(Stripe stripe, int first, long hash, long srcAddr, long dstAddr,
+			long portAndProtocol, int ordering, int slot) {
+		long stamp = stripe.lock.writeLock();
+		try {
+			//A newer cache may share the ways, or another thread may have
+			//stored the same decision meanwhile
+			if (latest.get() != generation
+					|| scan(first, srcAddr, dstAddr, portAndProtocol, ordering) != MISS)
+				return;
+
+			int victim = -1;
+			int victimFrequency = Integer.MAX_VALUE;
+			//Empty ways go first, then the ways of previous caches, which may
+			//still answer for their rules
+			for (int way = first; way < first + WAYS; way++) {
+				if (generations[way] == EMPTY) {
+					victim = way;
+					victimFrequency = -1;
+					break;
+				}
+				int frequency = generations[way] != generation ? -1 : stripe.frequency(hashes[way]);
+				if (frequency < victimFrequency) {
+					victim = way;
+					victimFrequency = frequency;
+				}
+			}
+			//Admit the new decision only if its flow is more frequent than the victim
+			if (victimFrequency >= stripe.frequency(hash))
+				return;
+
+			srcAddrs[victim] = srcAddr;
+			dstAddrs[victim] = dstAddr;
+			portsAndProtocols[victim] = portAndProtocol;
+			orderings[victim] = ordering;
+			hashes[victim] = hash;
+			slots[victim] = slot;
+			generations[victim] = generation;
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+	}
+
+	private static long hash(long srcAddr, long dstAddr, long portAndProtocol, int ordering) {
+		long hash = srcAddr * 0x9E3779B97F4A7C15L + dstAddr;
+		hash = (hash ^ (hash >>> 31)) * 0xBF58476D1CE4E5B9L + portAndProtocol;
+		hash = (hash ^ (hash >>> 29)) * 0x94D049BB133111EBL + ordering;
+		return hash ^ (hash >>> 32);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Ratio of the lookups answered from the cache, 0 before any lookup
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 0.0 : (double) hitCount / total;
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters by int id, e.g. rule ids, updated by many threads. Ids are
+ * placed in a fixed open addressing table the first time they are counted,
+ * and their counts kept in {@link StripedCounters}, so that counting does
+ * not allocate nor block. Once the table is full, the counts of new ids are
+ * only added to {@link #getOverflow()}.
+ */
+final class IdCounters {
+
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	/**
+	 * The ids counted, in increasing order, and their counts
+	 */
+	static final class Counts {
+		final int[] ids;
+		final long[] counts;
+
+		Counts(int[] ids, long[] counts) {
+			this.ids = ids;
+			this.counts = counts;
+		}
+	}
+
+	private final AtomicIntegerArray ids;
+	private final StripedCounters counts;
+	private final LongAdder overflow = new LongAdder();
+	private final int mask;
+	private final int shift;
+
+	/**
+	 * @param capacity The number of ids counted, rounded up to a power of two
+	 */
+	IdCounters(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+		int size = Integer.highestOneBit(capacity * 2 - 1);
+		ids = new AtomicIntegerArray(size);
+		for (int index = 0; index < size; index++)
+			ids.set(index, EMPTY);
+		counts = new StripedCounters(size);
+		mask = size - 1;
+		shift = Integer.numberOfLeadingZeros(size) + 1;
+	}
+
+	void increment(int id) {
+		int start = (id * 0x9E3779B9) >>> shift & mask;
+		int index = start;
+		do {
+			int stored = ids.get(index);
+			if (stored == id || (stored == EMPTY && (ids.compareAndSet(index, EMPTY, id) || ids.get(index) == id))) {
+				counts.increment(index);
+				return;
+			}
+			index = (index + 1) & mask;
+		} while (index != start);
+		overflow.increment();
+	}
+
+	/**
+	 * Count of the ids that did not fit in the table
+	 */
+	long getOverflow() {
+		return overflow.sum();
+	}
+
+	/**
+	 * Returns the ids counted and their counts, counts incremented meanwhile
+	 * may be missed
+	 */
+	Counts snapshot() {
+		long[] sums = this.counts.snapshot();
+		long[] entries = new long[sums.length];
+		int count = 0;
+		for (int index = 0; index < sums.length; index++) {
+			int id = ids.get(index);
+			if (id != EMPTY)
+				entries[count++] = (long) id << 32 | index;
+		}
+		Arrays.sort(entries, 0, count);
+		int[] sortedIds = new int[count];
+		long[] sortedCounts = new long[count];
+		for (int i = 0; i < count; i++) {
+			sortedIds[i] = (int) (entries[i] >> 32);
+			sortedCounts[i] = sums[(int) entries[i]];
+		}
+		return new Counts(sortedIds, sortedCounts);
+	}
+
+	/**
+	 * Zeroes every count, the ids stay in the table
+	 */
+	void reset() {
+		counts.reset();
+		overflow.reset();
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+
+/**
+ * Engine measuring the lookups of another one into {@link RoutingMetrics}:
+ * the latency of every lookup, and the rule it returns or the no-match.
+ * Instances are created by {@link RoutingMetrics#instrument}.
+ *
+ * While the metrics are enabled a lookup costs two reads of
+ * {@link System#nanoTime()} and two counter increments more than the
+ * engine's, which neither allocate nor block. While they are disabled it
+ * only costs a volatile read.
+ */
+public final class InstrumentedClassifier extends CompiledClassifier {
+
+	private final CompiledClassifier engine;
+	private final RuleSet ruleSet;
+	private final RoutingMetrics metrics;
+	private final RoutingMetrics.EngineMetrics engineMetrics;
+
+	/**
+	 * Lookups won by the rule of every slot of ruleSet
+	 */
+	private final StripedCounters wins;
+
+	InstrumentedClassifier(CompiledClassifier engine, RuleSet ruleSet, RoutingMetrics metrics,
+			RoutingMetrics.EngineMetrics engineMetrics, StripedCounters wins) {
+		this.engine = engine;
+		this.ruleSet = ruleSet;
+		this.metrics = metrics;
+		this.engineMetrics = engineMetrics;
+		this.wins = wins;
+	}
+
+	public CompiledClassifier getEngine() {
+		return engine;
+	}
+
+	@Override
+	public RuleSet getRuleSet() {
+		return ruleSet;
+	}
+
+	@Override
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		if (!metrics.isEnabled())
+			return engine.lookup(srcAddr, dstAddr, dstPort, protocolCode, priority);
+
+		long start = System.nanoTime();
+		int slot = engine.lookup(srcAddr, dstAddr, dstPort, protocolCode, priority);
+		engineMetrics.latency.record(System.nanoTime() - start);
+		if (slot == NO_MATCH)
+			engineMetrics.noMatches.increment();
+		else
+			wins.increment(slot);
+		return slot;
+	}
+
+	StripedCounters getWins() {
+		return wins;
+	}
+
+}
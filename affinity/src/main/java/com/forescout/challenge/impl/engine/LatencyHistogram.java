@@ -0,0 +1,101 @@
+package com.forescout.challenge.impl.engine;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds, with fixed log-linear
+ * buckets: latencies below 8 ns have a bucket each, and every power of two
+ * above is split in 8 buckets of equal width, so that a bucket is at most
+ * 12.5% wider than its lower bound. Latencies of 2^36 ns, about a minute,
+ * and more share the last bucket.
+ *
+ * Recording is an increment of a {@link StripedCounters} counter, it does not
+ * allocate nor block.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 36;
+
+	/**
+	 * Number of buckets
+	 */
+	public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+	private final StripedCounters counts = new StripedCounters(BUCKETS);
+
+	/**
+	 * Counts a latency, negative latencies count as 0
+	 */
+	public void record(long nanos) {
+		counts.increment(bucket(nanos));
+	}
+
+	/**
+	 * The count of every bucket, latencies recorded meanwhile may be missed
+	 */
+	public long[] getCounts() {
+		return counts.snapshot();
+	}
+
+	public void reset() {
+		counts.reset();
+	}
+
+	/**
+	 * The bucket a latency is counted in
+	 */
+	public static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return nanos < 0 ? 0 : (int) nanos;
+		int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(nanos));
+		if (exponent == MAX_EXPONENT)
+			return BUCKETS - 1;
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * The lowest latency counted in a bucket
+	 */
+	public static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * The highest latency counted in a bucket, Long.MAX_VALUE for the last one
+	 */
+	public static long upperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+	}
+
+	/**
+	 * Returns the latency the given ratio of the counts are at or below, as
+	 * the upper bound of its bucket
+	 * @param counts Counts of every bucket, see {@link #getCounts()}
+	 * @param ratio The ratio, from 0 to 1, e.g. 0.99 for the 99th percentile
+	 * @return The latency in nanoseconds, 0 when nothing was counted
+	 */
+	public static long percentile(long[] counts, double ratio) {
+		if (counts.length != BUCKETS)
+			throw new IllegalArgumentException("Expected " + BUCKETS + " counts");
+		if (!(ratio >= 0.0 && ratio <= 1.0))
+			throw new IllegalArgumentException("Ratio must be in [0, 1]");
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		if (total == 0)
+			return 0L;
+		long rank = Math.max(1L, (long) Math.ceil(ratio * total));
+		long cumulated = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			cumulated += counts[bucket];
+			if (cumulated >= rank)
+				return upperBound(bucket);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+}
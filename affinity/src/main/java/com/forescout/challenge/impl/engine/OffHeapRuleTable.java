@@ -0,0 +1,556 @@
+package com.forescout.challenge.impl.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.function.IntUnaryOperator;
+
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+
+/**
+ * Compiled rules stored outside of the heap, in a single direct buffer. The
+ * table holds the same primitive values as a {@link RuleSet}, in fixed width
+ * columns with one value per rule, the source pools in a variable length
+ * side area, and an index of the destination networks. Millions of rules
+ * then cost a few dozen bytes each and no object the garbage collector has
+ * to mark.
+ *
+ * The table keeps no reference to the rules it was compiled from: a rule is
+ * known by its slot, and by the id stored in that slot. Lookups read the
+ * buffer in place, rank the matching rules as {@link AffinityRanking} does
+ * and return the same rule as a {@link RuleSet} compiled from the same
+ * rules, see {@link CompiledClassifier#lookup}.
+ *
+ * The buffer is little endian and laid out as follows, every offset being
+ * derived from the four counts of the header:
+ * <pre>
+ * header       int size, int srcEntries, int indexed, int scanned
+ * dstNet       long[size]
+ * srcNet       long[srcEntries]
+ * id           int[size]
+ * portBegin    int[size]
+ * portEnd      int[size]
+ * protocolCode int[size]
+ * srcStart     int[size + 1]   pool of slot i in [srcStart[i], srcStart[i + 1])
+ * indexStart   int[34]         entries of mask length m in [indexStart[m], indexStart[m + 1])
+ * indexNet     int[indexed]    masked network, ascending within a mask length
+ * indexSlot    int[indexed]
+ * scan         int[scanned]    slots of the rules not in the index
+ * priority     short[size]     the attributes priority of the rule, see {@link #getAttributesPriority}
+ * srcMaskBits  byte[srcEntries]
+ * dstMaskBits  byte[size]
+ * srcOperator, dstOperator, portOperator, protocolOperator  byte[size] each
+ * </pre>
+ *
+ * A table can be saved to a file and mapped back with {@link RuleTableSnapshot}.
+ * It is immutable and can be shared by any number of threads.
+ */
+public final class OffHeapRuleTable extends AffinityRanking {
+
+	static final int HEADER_LENGTH = 16;
+	private static final int MASK_LENGTHS = 33;
+
+	private final ByteBuffer data;
+	private final int size;
+	private final int srcEntries;
+
+	private final int dstNet;
+	private final int srcNet;
+	private final int id;
+	private final int portBegin;
+	private final int portEnd;
+	private final int protocolCode;
+	private final int srcStart;
+	private final int indexStart;
+	private final int indexNet;
+	private final int indexSlot;
+	private final int scan;
+	private final int scanned;
+	private final int priority;
+	private final int srcMaskBits;
+	private final int dstMaskBits;
+	private final int srcOperator;
+	private final int dstOperator;
+	private final int portOperator;
+	private final int protocolOperator;
+
+	/**
+	 * Wraps a buffer holding a table, from its position to its limit
+	 */
+	OffHeapRuleTable(ByteBuffer buffer) {
+		data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (data.capacity() < HEADER_LENGTH)
+			throw new IllegalArgumentException("Buffer too short for a rule table");
+		size = data.getInt(0);
+		srcEntries = data.getInt(4);
+		int indexed = data.getInt(8);
+		scanned = data.getInt(12);
+		if (size < 0 || srcEntries < 0 || indexed < 0 || scanned < 0
+				|| length(size, srcEntries, indexed, scanned) != data.capacity())
+			throw new IllegalArgumentException("Buffer length does not match the rule table header");
+
+		dstNet = HEADER_LENGTH;
+		srcNet = dstNet + 8 * size;
+		id = srcNet + 8 * srcEntries;
+		portBegin = id + 4 * size;
+		portEnd = portBegin + 4 * size;
+		protocolCode = portEnd + 4 * size;
+		srcStart = protocolCode + 4 * size;
+		indexStart = srcStart + 4 * (size + 1);
+		indexNet = indexStart + 4 * (MASK_LENGTHS + 1);
+		indexSlot = indexNet + 4 * indexed;
+		scan = indexSlot + 4 * indexed;
+		priority = scan + 4 * scanned;
+		srcMaskBits = priority + 2 * size;
+		dstMaskBits = srcMaskBits + srcEntries;
+		srcOperator = dstMaskBits + size;
+		dstOperator = srcOperator + size;
+		portOperator = dstOperator + size;
+		protocolOperator = portOperator + size;
+	}
+
+	/**
+	 * Number of bytes of a table of the given counts
+	 */
+	static long length(long size, long srcEntries, long indexed, long scanned) {
+		return HEADER_LENGTH + 8 * (size + srcEntries) + 4 * (5 * size + 1 + MASK_LENGTHS + 1 + 2 * indexed + scanned)
+				+ 2 * size + srcEntries + 5 * size;
+	}
+
+	/**
+	 * Compiles the given rules into a new table. The attributes priority of
+	 * every rule is stored with it.
+	 * @param rules The pool of rules to compile
+	 * @return The compiled table
+	 */
+	public static OffHeapRuleTable compile(Collection<IRoutingRule> rules) {
+		Validate.notNull(rules, "Argument rules cannot be null");
+
+		Builder builder = new Builder();
+		for (IRoutingRule rule : rules) {
+			for (Attribute<?> srcAddress : RuleSet.srcPool(rule)) {
+				long netAndMask = RuleSet.parseCidr((String) srcAddress.getArgument());
+				builder.addSource(Utility.packedNet(netAndMask), Utility.packedMask(netAndMask));
+			}
+			long netAndMask = RuleSet.parseCidr((String) rule.getDstAddress().getArgument());
+			PortRange portRange = (PortRange) rule.getDstPort().getArgument();
+			LinkedHashSet<AttributeKey> attributesPriority = rule.getDefaultAttributesPriority();
+			builder.addRule(rule.getId(),
+					rule.getSrcAddresses().getOperator(),
+					rule.getDstAddress().getOperator(), Utility.packedNet(netAndMask), Utility.packedMask(netAndMask),
+					rule.getDstPort().getOperator(), portRange.getBegin(), portRange.getEnd(),
+					rule.getProtocol().getOperator(), ProtocolTable.register((String) rule.getProtocol().getArgument()),
+					attributesPriority.toArray(new AttributeKey[attributesPriority.size()]));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Number of rules in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Number of bytes of direct memory holding the table
+	 */
+	public int byteSize() {
+		return data.capacity();
+	}
+
+	/**
+	 * Returns the id of the rule in the given slot
+	 */
+	public int getId(int slot) {
+		return data.getInt(id + 4 * slot);
+	}
+
+	/**
+	 * Returns the protocol code stored with the rule in the given slot
+	 */
+	int getProtocolCode(int slot) {
+		return data.getInt(protocolCode + 4 * slot);
+	}
+
+	/**
+	 * Returns a copy of the table in direct memory whose protocol codes are
+	 * translated by the given function
+	 */
+	OffHeapRuleTable withProtocolCodes(IntUnaryOperator translation) {
+		ByteBuffer copy = ByteBuffer.allocateDirect(data.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		copy.put(data.duplicate());
+		for (int slot = 0; slot < size; slot++)
+			copy.putInt(protocolCode + 4 * slot, translation.applyAsInt(getProtocolCode(slot)));
+		copy.flip();
+		return new OffHeapRuleTable(copy);
+	}
+
+	/**
+	 * Returns the attributes priority stored with the rule in the given slot
+	 */
+	public LinkedHashSet<AttributeKey> getAttributesPriority(int slot) {
+		return new LinkedHashSet<>(Arrays.asList(decodePriority(data.getShort(priority + 2 * slot))));
+	}
+
+	/**
+	 * Returns a read only view of the buffer holding the table, from its
+	 * header to its last column
+	 */
+	public ByteBuffer asReadOnlyBuffer() {
+		return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns the slot of the rule with the highest matching score, scanning
+	 * the rules whose dstAddress network contains the destination address,
+	 * found by one binary search per mask length in use, then the rules left
+	 * out of the index.
+	 * @param srcAddr The packet source address
+	 * @param dstAddr The packet destination address
+	 * @param dstPort The packet destination port
+	 * @param protocolCode The packet protocol, as coded by {@link ProtocolTable}
+	 * @param priority The attributes in the priority order they are evaluated
+	 * @return The slot of the closest rule, or {@link CompiledClassifier#NO_MATCH}
+	 */
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		int best = CompiledClassifier.NO_MATCH;
+		//Indexed networks are IPv4 networks, which never contain a wider address
+		if ((dstAddr & ~0xFFFFFFFFL) == 0) {
+			for (int maskBits = 0; maskBits < MASK_LENGTHS; maskBits++) {
+				int from = data.getInt(indexStart + 4 * maskBits);
+				int to = data.getInt(indexStart + 4 * (maskBits + 1));
+				if (from == to)
+					continue;
+				int key = (int) (dstAddr & RuleSet.netMask(maskBits));
+				for (int entry = lowerBound(from, to, key); entry < to && data.getInt(indexNet + 4 * entry) == key; entry++) {
+					int slot = data.getInt(indexSlot + 4 * entry);
+					if (srcMatches(slot, srcAddr) && portMatches(slot, dstPort) && protocolMatches(slot, protocolCode))
+						best = best == CompiledClassifier.NO_MATCH ? slot : preferred(best, slot, srcAddr, priority);
+				}
+			}
+		}
+		for (int i = 0; i < scanned; i++) {
+			int slot = data.getInt(scan + 4 * i);
+			if (dstMatches(slot, dstAddr) && srcMatches(slot, srcAddr) && portMatches(slot, dstPort)
+					&& protocolMatches(slot, protocolCode))
+				best = best == CompiledClassifier.NO_MATCH ? slot : preferred(best, slot, srcAddr, priority);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the first index entry in [from, to) whose network is not below
+	 * the key, networks being compared as unsigned values
+	 */
+	private int lowerBound(int from, int to, int key) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (Integer.compareUnsigned(data.getInt(indexNet + 4 * middle), key) < 0)
+				from = middle + 1;
+			else
+				to = middle;
+		}
+		return from;
+	}
+
+	private boolean dstMatches(int slot, long dstAddr) {
+		if (data.get(dstOperator + slot) == RuleSet.ANY)
+			return true;
+		long netMask = RuleSet.netMask(data.get(dstMaskBits + slot));
+		return (dstAddr & netMask) == (data.getLong(dstNet + 8 * slot) & netMask);
+	}
+
+	private boolean srcMatches(int slot, long srcAddr) {
+		byte operator = data.get(srcOperator + slot);
+		if (operator == RuleSet.ANY)
+			return true;
+		//A pool matched as a whole never scores, see CollectionAttributeImpl
+		return operator == RuleSet.CONTAINS && srcEntry(slot, srcAddr) >= 0;
+	}
+
+	private boolean portMatches(int slot, int dstPort) {
+		return data.get(portOperator + slot) == RuleSet.ANY
+				|| (dstPort >= data.getInt(portBegin + 4 * slot) && dstPort <= data.getInt(portEnd + 4 * slot));
+	}
+
+	private boolean protocolMatches(int slot, int protocolCode) {
+		return data.get(protocolOperator + slot) == RuleSet.ANY || data.getInt(this.protocolCode + 4 * slot) == protocolCode;
+	}
+
+	@Override
+	int srcEntry(int slot, long srcAddr) {
+		int end = data.getInt(srcStart + 4 * (slot + 1));
+		for (int entry = data.getInt(srcStart + 4 * slot); entry < end; entry++) {
+			long netMask = RuleSet.netMask(data.get(srcMaskBits + entry));
+			if ((srcAddr & netMask) == (data.getLong(srcNet + 8 * entry) & netMask))
+				return entry;
+		}
+		return -1;
+	}
+
+	@Override
+	int id(int slot) {
+		return getId(slot);
+	}
+
+	@Override
+	byte portOperator(int slot) {
+		return data.get(portOperator + slot);
+	}
+
+	@Override
+	byte protocolOperator(int slot) {
+		return data.get(protocolOperator + slot);
+	}
+
+	@Override
+	long dstNet(int slot) {
+		return data.getLong(dstNet + 8 * slot);
+	}
+
+	@Override
+	int dstMaskBits(int slot) {
+		return data.get(dstMaskBits + slot);
+	}
+
+	@Override
+	long srcNet(int slot, int entry) {
+		return data.getLong(srcNet + 8 * entry);
+	}
+
+	@Override
+	int srcMaskBits(int slot, int entry) {
+		return data.get(srcMaskBits + entry);
+	}
+
+	/**
+	 * Codes an attributes priority in a short: the number of attributes in
+	 * bits 8 to 10, and the ordinal of the attribute of rank i in bits 2i and
+	 * 2i + 1
+	 */
+	static short encodePriority(AttributeKey[] priority) {
+		if (priority.length > AttributeKey.values().length)
+			throw new IllegalArgumentException("Too many attributes in priority");
+		int code = priority.length << 8;
+		for (int i = 0; i < priority.length; i++)
+			code |= priority[i].ordinal() << (2 * i);
+		return (short) code;
+	}
+
+	static AttributeKey[] decodePriority(short code) {
+		AttributeKey[] priority = new AttributeKey[(code >> 8) & 7];
+		for (int i = 0; i < priority.length; i++)
+			priority[i] = AttributeKey.values()[(code >> (2 * i)) & 3];
+		return priority;
+	}
+
+	/**
+	 * Collects rules in primitive form and writes them into a table. The
+	 * source pool entries of a rule are added first, then the rule itself.
+	 *
+	 * The builder keeps its columns on the heap until the table is built, it
+	 * is not thread safe.
+	 */
+	public static final class Builder {
+
+		private int size;
+		private int srcEntries;
+
+		private int[] ids = new int[16];
+		private byte[] srcOperators = new byte[16];
+		private byte[] dstOperators = new byte[16];
+		private byte[] portOperators = new byte[16];
+		private byte[] protocolOperators = new byte[16];
+		private long[] dstNets = new long[16];
+		private byte[] dstMasks = new byte[16];
+		private int[] portBegins = new int[16];
+		private int[] portEnds = new int[16];
+		private int[] protocolCodes = new int[16];
+		private short[] priorities = new short[16];
+		private int[] srcEnds = new int[16];
+
+		private long[] srcNets = new long[16];
+		private byte[] srcMasks = new byte[16];
+
+		/**
+		 * Adds a network to the source pool of the next rule
+		 * @param net The network address
+		 * @param maskBits The network mask, in CIDR notation
+		 */
+		public Builder addSource(long net, int maskBits) {
+			checkMaskBits(maskBits);
+			if (srcEntries == srcNets.length) {
+				srcNets = Arrays.copyOf(srcNets, 2 * srcEntries);
+				srcMasks = Arrays.copyOf(srcMasks, 2 * srcEntries);
+			}
+			srcNets[srcEntries] = net;
+			srcMasks[srcEntries++] = (byte) maskBits;
+			return this;
+		}
+
+		/**
+		 * Adds a rule, whose source pool holds the entries added since the
+		 * previous rule
+		 * @param id The id of the rule
+		 * @param srcOperator The operator of the srcAddresses attribute
+		 * @param dstOperator The operator of the dstAddress attribute
+		 * @param dstNet The destination network address
+		 * @param dstMaskBits The destination network mask, in CIDR notation
+		 * @param portOperator The operator of the dstPort attribute
+		 * @param portBegin The first port of the range
+		 * @param portEnd The last port of the range
+		 * @param protocolOperator The operator of the protocol attribute
+		 * @param protocolCode The protocol, as coded by {@link ProtocolTable}
+		 * @param priority The attributes priority of the rule
+		 */
+		public Builder addRule(int id, AttributeOperator srcOperator,
+				AttributeOperator dstOperator, long dstNet, int dstMaskBits,
+				AttributeOperator portOperator, int portBegin, int portEnd,
+				AttributeOperator protocolOperator, int protocolCode, AttributeKey[] priority) {
+			Validate.notNull(srcOperator, "Argument srcOperator cannot be null");
+			Validate.notNull(priority, "Argument priority cannot be null");
+			checkMaskBits(dstMaskBits);
+			if (size == ids.length)
+				grow();
+
+			ids[size] = id;
+			srcOperators[size] = (byte) srcOperator.ordinal();
+			dstOperators[size] = singleOperator(dstOperator);
+			portOperators[size] = singleOperator(portOperator);
+			protocolOperators[size] = singleOperator(protocolOperator);
+			dstNets[size] = dstNet;
+			dstMasks[size] = (byte) dstMaskBits;
+			portBegins[size] = portBegin;
+			portEnds[size] = portEnd;
+			protocolCodes[size] = protocolCode;
+			priorities[size] = encodePriority(priority);
+			srcEnds[size++] = srcEntries;
+			return this;
+		}
+
+		/**
+		 * Number of rules added so far
+		 */
+		public int size() {
+			return size;
+		}
+
+		private void grow() {
+			int length = 2 * size;
+			ids = Arrays.copyOf(ids, length);
+			srcOperators = Arrays.copyOf(srcOperators, length);
+			dstOperators = Arrays.copyOf(dstOperators, length);
+			portOperators = Arrays.copyOf(portOperators, length);
+			protocolOperators = Arrays.copyOf(protocolOperators, length);
+			dstNets = Arrays.copyOf(dstNets, length);
+			dstMasks = Arrays.copyOf(dstMasks, length);
+			portBegins = Arrays.copyOf(portBegins, length);
+			portEnds = Arrays.copyOf(portEnds, length);
+			protocolCodes = Arrays.copyOf(protocolCodes, length);
+			priorities = Arrays.copyOf(priorities, length);
+			srcEnds = Arrays.copyOf(srcEnds, length);
+		}
+
+		private static void checkMaskBits(int maskBits) {
+			if (maskBits < 0 || maskBits > 32)
+				throw new IllegalArgumentException("Mask bits must be from 0 to 32");
+		}
+
+		private static byte singleOperator(AttributeOperator operator) {
+			Validate.notNull(operator, "Argument operator cannot be null");
+			if (operator == AttributeOperator.Contains)
+				throw new IllegalArgumentException("Contains operator only allowed with CollectionsAttribute");
+			return (byte) operator.ordinal();
+		}
+
+		/**
+		 * Writes the rules added so far into a new table in direct memory,
+		 * with the index of their destination networks
+		 * @throws IllegalArgumentException If the table does not fit in 2 GB
+		 */
+		public OffHeapRuleTable build() {
+			//Rules matching an IPv4 destination network are indexed by mask length, then by network
+			int[] lengthCounts = new int[MASK_LENGTHS];
+			int indexed = 0;
+			for (int slot = 0; slot < size; slot++) {
+				if (isIndexed(slot)) {
+					lengthCounts[dstMasks[slot]]++;
+					indexed++;
+				}
+			}
+			int[] indexStarts = new int[MASK_LENGTHS + 1];
+			for (int maskBits = 0; maskBits < MASK_LENGTHS; maskBits++)
+				indexStarts[maskBits + 1] = indexStarts[maskBits] + lengthCounts[maskBits];
+			//Network in the high bits and slot in the low bits, so that sorting orders by network
+			long[] entries = new long[indexed];
+			int[] fill = Arrays.copyOf(indexStarts, MASK_LENGTHS);
+			int scanned = size - indexed;
+			int[] scan = new int[scanned];
+			scanned = 0;
+			for (int slot = 0; slot < size; slot++) {
+				if (isIndexed(slot)) {
+					long net = dstNets[slot] & RuleSet.netMask(dstMasks[slot]) & 0xFFFFFFFFL;
+					entries[fill[dstMasks[slot]]++] = net << 31 | slot;
+				} else {
+					scan[scanned++] = slot;
+				}
+			}
+			for (int maskBits = 0; maskBits < MASK_LENGTHS; maskBits++)
+				Arrays.sort(entries, indexStarts[maskBits], indexStarts[maskBits + 1]);
+
+			long length = length(size, srcEntries, indexed, scanned);
+			if (length > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Rule table of " + length + " bytes does not fit in a buffer");
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) length).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(size).putInt(srcEntries).putInt(indexed).putInt(scanned);
+			for (int slot = 0; slot < size; slot++)
+				buffer.putLong(dstNets[slot]);
+			for (int entry = 0; entry < srcEntries; entry++)
+				buffer.putLong(srcNets[entry]);
+			putInts(buffer, ids);
+			putInts(buffer, portBegins);
+			putInts(buffer, portEnds);
+			putInts(buffer, protocolCodes);
+			buffer.putInt(0);
+			putInts(buffer, srcEnds);
+			for (int start : indexStarts)
+				buffer.putInt(start);
+			for (long entry : entries)
+				buffer.putInt((int) (entry >>> 31));
+			for (long entry : entries)
+				buffer.putInt((int) (entry & Integer.MAX_VALUE));
+			for (int slot : scan)
+				buffer.putInt(slot);
+			for (int slot = 0; slot < size; slot++)
+				buffer.putShort(priorities[slot]);
+			buffer.put(srcMasks, 0, srcEntries);
+			buffer.put(dstMasks, 0, size);
+			buffer.put(srcOperators, 0, size);
+			buffer.put(dstOperators, 0, size);
+			buffer.put(portOperators, 0, size);
+			buffer.put(protocolOperators, 0, size);
+			buffer.flip();
+			return new OffHeapRuleTable(buffer);
+		}
+
+		private boolean isIndexed(int slot) {
+			return dstOperators[slot] == RuleSet.MATCHES && PrefixTrie.isIndexable(dstNets[slot], dstMasks[slot]);
+		}
+
+		private void putInts(ByteBuffer buffer, int[] column) {
+			for (int slot = 0; slot < size; slot++)
+				buffer.putInt(column[slot]);
+		}
+	}
+
+}
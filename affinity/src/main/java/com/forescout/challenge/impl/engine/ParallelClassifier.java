@@ -0,0 +1,103 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.forescout.challenge.affinity.ProtocolTable;
+
+/**
+ * Classifies large batches of packets on a {@link ForkJoinPool}. A batch is
+ * split in halves until the pieces are no larger than the grain size, and
+ * each piece is classified by a {@link BatchClassifier} shared by every
+ * worker. Every worker writes the results of its own piece, so the results
+ * are in the order of the packets in the batch.
+ */
+public final class ParallelClassifier {
+
+	public static final int DEFAULT_GRAIN_SIZE = 4096;
+
+	private final BatchClassifier batchClassifier;
+	private final ForkJoinPool pool;
+	private final int grainSize;
+
+	public ParallelClassifier(BatchClassifier batchClassifier) {
+		this(batchClassifier, ForkJoinPool.commonPool(), DEFAULT_GRAIN_SIZE);
+	}
+
+	/**
+	 * @param batchClassifier The classifier of each piece of a batch
+	 * @param pool The pool running the workers
+	 * @param grainSize The largest number of packets classified by one task
+	 */
+	public ParallelClassifier(BatchClassifier batchClassifier, ForkJoinPool pool, int grainSize) {
+		if (batchClassifier == null || pool == null)
+			throw new IllegalArgumentException();
+		if (grainSize < 1)
+			throw new IllegalArgumentException("Grain size must be >= 1");
+
+		this.batchClassifier = batchClassifier;
+		this.pool = pool;
+		this.grainSize = grainSize;
+	}
+
+	/**
+	 * Classifies the first n packets of the batch, see
+	 * {@link BatchClassifier#classify}. Returns once every packet has been
+	 * classified.
+	 * @param srcAddr The packet source addresses
+	 * @param dstAddr The packet destination addresses
+	 * @param dstPort The packet destination ports
+	 * @param protocolCode The packet protocols, as coded by {@link ProtocolTable}
+	 * @param n The number of packets in the batch
+	 * @param outRuleIds Receives the id of the closest rule of every packet,
+	 * or {@link BatchClassifier#NO_RULE}
+	 */
+	public void classify(long[] srcAddr, long[] dstAddr, int[] dstPort, int[] protocolCode, int n, int[] outRuleIds) {
+		BatchClassifier.checkColumns(srcAddr, dstAddr, dstPort, protocolCode, n, outRuleIds);
+		pool.invoke(new ClassifyTask(srcAddr, dstAddr, dstPort, protocolCode, 0, n, outRuleIds));
+	}
+
+	private final class ClassifyTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 3771280815628406379L;
+
+		private final long[] srcAddr;
+		private final long[] dstAddr;
+		private final int[] dstPort;
+		private final int[] protocolCode;
+		private final int from;
+		private final int to;
+		private final int[] outRuleIds;
+
+		ClassifyTask(long[] srcAddr, long[] dstAddr, int[] dstPort, int[] protocolCode, int from, int to,
+				int[] outRuleIds) {
+			this.srcAddr = srcAddr;
+			this.dstAddr = dstAddr;
+			this.dstPort = dstPort;
+			this.protocolCode = protocolCode;
+			this.from = from;
+			this.to = to;
+			this.outRuleIds = outRuleIds;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grainSize) {
+				batchClassifier.classify(srcAddr, dstAddr, dstPort, protocolCode, from, to, outRuleIds);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ClassifyTask(srcAddr, dstAddr, dstPort, protocolCode, from, middle, outRuleIds),
+					new ClassifyTask(srcAddr, dstAddr, dstPort, protocolCode, middle, to, outRuleIds));
+		}
+	}
+
+	public BatchClassifier getBatchClassifier() {
+		return batchClassifier;
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+
+/**
+ * Interval index over port ranges. The ports are split into elementary
+ * intervals at every range boundary, which are the leaves of a segment
+ * tree. A range is stored with its int value (typically a rule slot) in the
+ * at most 2 log n nodes whose intervals it covers exactly, so the index
+ * takes O(n log n) space however much the ranges overlap. Looking up a port
+ * is one binary search over the boundaries, then a walk from the leaf of
+ * the port to the root collecting the values of every node on the path.
+ *
+ * {@link #lookup} returns the values from the most specific range to the
+ * least specific one, as ordered by {@link PortRange#compareTo}, and
+ * {@link #collect} returns them in no particular order, without merging
+ * the nodes.
+ */
+public final class PortIndex {
+
+	/**
+	 * Cursors of the nodes merged by an ordered lookup, two per level of a
+	 * tree of at most 2^31 nodes
+	 */
+	private static final ThreadLocal<int[]> CURSORS = ThreadLocal.withInitial(() -> new int[64]);
+
+	/**
+	 * Interval i holds the ports from starts[i] to starts[i + 1] - 1, and is
+	 * the leaf starts.length + i of the tree
+	 */
+	private final long[] starts;
+
+	/**
+	 * Node i of the tree has children 2i and 2i + 1, and holds the entries
+	 * in [offsets[i], offsets[i + 1]). An entry is the position of its range
+	 * in the specificity order, and the value of the range, entries of a
+	 * node being sorted by position.
+	 */
+	private final int[] offsets;
+	private final int[] positions;
+	private final int[] values;
+	private final int maxCount;
+
+	/**
+	 * Builds the index of the given ranges. Empty ranges, with a begin past
+	 * their end, match no port and are left out.
+	 * @param ranges The port ranges
+	 * @param values The value stored with the range at the same index
+	 */
+	public PortIndex(PortRange[] ranges, int[] values) {
+		Validate.notNull(ranges, "Argument ranges cannot be null");
+		Validate.notNull(values, "Argument values cannot be null");
+		if (ranges.length != values.length)
+			throw new IllegalArgumentException("Ranges and values differ in length");
+
+		Integer[] order = new Integer[ranges.length];
+		long[] bounds = new long[2 * ranges.length + 1];
+		int count = 0;
+		int indexed = 0;
+		bounds[count++] = Integer.MIN_VALUE;
+		for (int i = 0; i < ranges.length; i++) {
+			if (ranges[i].getBegin() > ranges[i].getEnd())
+				continue;
+			order[indexed++] = i;
+			bounds[count++] = ranges[i].getBegin();
+			bounds[count++] = ranges[i].getEnd() + 1L;
+		}
+		Arrays.sort(bounds, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || bounds[i] != bounds[unique - 1])
+				bounds[unique++] = bounds[i];
+		}
+		starts = Arrays.copyOf(bounds, unique);
+
+		//Filling the nodes from the most specific range keeps them ordered
+		order = Arrays.copyOf(order, indexed);
+		Arrays.sort(order, (a, b) -> {
+			int compare = ranges[a].compareTo(ranges[b]);
+			return compare != 0 ? compare : Integer.compare(values[a], values[b]);
+		});
+
+		int[] firsts = new int[indexed];
+		int[] ends = new int[indexed];
+		long[] counts = new long[2 * unique + 1];
+		for (int position = 0; position < indexed; position++) {
+			PortRange range = ranges[order[position]];
+			firsts[position] = first(range);
+			ends[position] = last(range) + 1;
+			for (int l = firsts[position] + unique, r = ends[position] + unique; l < r; l >>= 1, r >>= 1) {
+				if ((l & 1) != 0)
+					counts[l++ + 1]++;
+				if ((r & 1) != 0)
+					counts[--r + 1]++;
+			}
+		}
+		for (int node = 1; node < counts.length; node++)
+			counts[node] += counts[node - 1];
+		if (counts[2 * unique] > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many port ranges: " + ranges.length);
+
+		offsets = new int[counts.length];
+		for (int node = 0; node < counts.length; node++)
+			offsets[node] = (int) counts[node];
+		positions = new int[offsets[2 * unique]];
+		this.values = new int[positions.length];
+		int[] next = Arrays.copyOf(offsets, 2 * unique);
+		for (int position = 0; position < indexed; position++) {
+			int value = values[order[position]];
+			for (int l = firsts[position] + unique, r = ends[position] + unique; l < r; l >>= 1, r >>= 1) {
+				if ((l & 1) != 0)
+					add(next, l++, position, value);
+				if ((r & 1) != 0)
+					add(next, --r, position, value);
+			}
+		}
+
+		int max = 0;
+		for (int interval = 0; interval < unique; interval++) {
+			int found = 0;
+			for (int node = interval + unique; node > 0; node >>= 1)
+				found += offsets[node + 1] - offsets[node];
+			max = Math.max(max, found);
+		}
+		maxCount = max;
+	}
+
+	private void add(int[] next, int node, int position, int value) {
+		positions[next[node]] = position;
+		values[next[node]++] = value;
+	}
+
+	private int first(PortRange range) {
+		return Arrays.binarySearch(starts, range.getBegin());
+	}
+
+	private int last(PortRange range) {
+		int next = Arrays.binarySearch(starts, range.getEnd() + 1L);
+		return next >= 0 ? next - 1 : starts.length - 1;
+	}
+
+	private int leaf(int port) {
+		int interval = Arrays.binarySearch(starts, port);
+		if (interval < 0)
+			interval = -interval - 2;
+		return interval + starts.length;
+	}
+
+	/**
+	 * Collects the values of every range containing the port, from the most
+	 * specific range to the least specific one.
+	 * @param port The port to look up
+	 * @param out Receives the values, must hold at least {@link #maxCount()} values
+	 * @return The number of values written in out
+	 */
+	public int lookup(int port, int[] out) {
+		//Cursors and ends of the nodes on the path still holding entries
+		int[] cursors = CURSORS.get();
+		int nodes = 0;
+		for (int node = leaf(port); node > 0; node >>= 1) {
+			if (offsets[node] < offsets[node + 1]) {
+				cursors[nodes++] = offsets[node];
+				cursors[nodes++] = offsets[node + 1];
+			}
+		}
+
+		int count = 0;
+		while (nodes > 0) {
+			int min = 0;
+			for (int i = 2; i < nodes; i += 2) {
+				if (positions[cursors[i]] < positions[cursors[min]])
+					min = i;
+			}
+			out[count++] = values[cursors[min]++];
+			if (cursors[min] == cursors[min + 1]) {
+				cursors[min] = cursors[nodes - 2];
+				cursors[min + 1] = cursors[nodes - 1];
+				nodes -= 2;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Collects the values of every range containing the port, in no
+	 * particular order, for callers ranking them on their own.
+	 * @param port The port to look up
+	 * @param out Receives the values, must hold at least {@link #maxCount()} values
+	 * @return The number of values written in out
+	 */
+	public int collect(int port, int[] out) {
+		int count = 0;
+		for (int node = leaf(port); node > 0; node >>= 1) {
+			int length = offsets[node + 1] - offsets[node];
+			System.arraycopy(values, offsets[node], out, count, length);
+			count += length;
+		}
+		return count;
+	}
+
+	/**
+	 * Number of values stored in the nodes of the tree
+	 */
+	int entryCount() {
+		return values.length;
+	}
+
+	/**
+	 * The largest number of values a lookup can return
+	 */
+	public int maxCount() {
+		return maxCount;
+	}
+
+}
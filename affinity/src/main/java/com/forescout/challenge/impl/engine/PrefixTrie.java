@@ -0,0 +1,194 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+
+/**
+ * Path-compressed binary trie over IPv4 prefixes. Each prefix holds the int
+ * values (typically rule slots) inserted with it. Looking up an address walks
+ * at most 32 bits and returns the values of every prefix containing it.
+ * Inserting or removing a value only touches the path to its prefix.
+ */
+public final class PrefixTrie {
+
+	private static final int ADDRESS_BITS = 32;
+	private static final long ADDRESS_MASK = 0xFFFFFFFFL;
+	private static final int[] NO_VALUES = new int[0];
+
+	private static final class Node {
+		final long prefix;
+		final int length;
+		Node zero;
+		Node one;
+		int[] values = NO_VALUES;
+		int count;
+
+		Node(long prefix, int length) {
+			this.prefix = prefix;
+			this.length = length;
+		}
+
+		boolean covers(long address) {
+			return (address & prefixMask(length)) == prefix;
+		}
+
+		Node child(int bit) {
+			return bit == 0 ? zero : one;
+		}
+
+		void setChild(int bit, Node node) {
+			if (bit == 0)
+				zero = node;
+			else
+				one = node;
+		}
+
+		void add(int value) {
+			if (count == values.length)
+				values = Arrays.copyOf(values, Math.max(2, count * 2));
+			values[count++] = value;
+		}
+
+		boolean remove(int value) {
+			for (int i = 0; i < count; i++) {
+				if (values[i] == value) {
+					System.arraycopy(values, i + 1, values, i, --count - i);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private Node root;
+	private int size;
+
+	/**
+	 * Checks if the given network can be stored in the trie, i.e. it is an
+	 * IPv4 network with a mask from 0 to 32 bits
+	 */
+	public static boolean isIndexable(long net, int maskBits) {
+		return maskBits >= 0 && maskBits <= ADDRESS_BITS && (net & ~ADDRESS_MASK) == 0;
+	}
+
+	/**
+	 * Adds a value under the given network. Host bits beyond the mask are
+	 * ignored.
+	 * @param net The network address
+	 * @param maskBits The network mask, in CIDR notation
+	 * @param value The value to store
+	 */
+	public void insert(long net, int maskBits, int value) {
+		if (!isIndexable(net, maskBits))
+			throw new IllegalArgumentException("Not an IPv4 network " + net + "/" + maskBits);
+		root = insert(root, net & prefixMask(maskBits), maskBits, value);
+		size++;
+	}
+
+	private static Node insert(Node node, long prefix, int length, int value) {
+		if (node == null) {
+			Node leaf = new Node(prefix, length);
+			leaf.add(value);
+			return leaf;
+		}
+
+		int common = Math.min(commonLength(node.prefix, prefix), Math.min(node.length, length));
+		if (common == node.length) {
+			if (length == node.length) {
+				node.add(value);
+			} else {
+				int bit = bit(prefix, node.length);
+				node.setChild(bit, insert(node.child(bit), prefix, length, value));
+			}
+			return node;
+		}
+
+		//The new prefix diverges inside the compressed path of node, split it
+		Node parent = new Node(prefix & prefixMask(common), common);
+		parent.setChild(bit(node.prefix, common), node);
+		if (common == length) {
+			parent.add(value);
+		} else {
+			Node leaf = new Node(prefix, length);
+			leaf.add(value);
+			parent.setChild(bit(prefix, common), leaf);
+		}
+		return parent;
+	}
+
+	/**
+	 * Removes one occurrence of a value stored under the given network. Nodes
+	 * left without values and with at most one child are spliced out, so the
+	 * trie stays path-compressed.
+	 * @param net The network address
+	 * @param maskBits The network mask, in CIDR notation
+	 * @param value The value to remove
+	 * @return true if the value was found and removed
+	 */
+	public boolean remove(long net, int maskBits, int value) {
+		if (!isIndexable(net, maskBits))
+			return false;
+		int before = size;
+		root = remove(root, net & prefixMask(maskBits), maskBits, value);
+		return size < before;
+	}
+
+	private Node remove(Node node, long prefix, int length, int value) {
+		if (node == null || node.length > length || (prefix & prefixMask(node.length)) != node.prefix)
+			return node;
+
+		if (node.length == length) {
+			if (!node.remove(value))
+				return node;
+			size--;
+		} else {
+			int bit = bit(prefix, node.length);
+			node.setChild(bit, remove(node.child(bit), prefix, length, value));
+		}
+
+		if (node.count > 0 || (node.zero != null && node.one != null))
+			return node;
+		return node.zero != null ? node.zero : node.one;
+	}
+
+	/**
+	 * Collects the values of every prefix containing the address, the most
+	 * specific prefix first.
+	 * @param address The address to look up
+	 * @param out The array receiving the values, at least {@link #size()} long
+	 * @return The number of values written to out
+	 */
+	public int lookup(long address, int[] out) {
+		if ((address & ~ADDRESS_MASK) != 0)
+			return 0;
+		return collect(root, address, out, 0);
+	}
+
+	private static int collect(Node node, long address, int[] out, int count) {
+		if (node == null || !node.covers(address))
+			return count;
+		if (node.length < ADDRESS_BITS)
+			count = collect(node.child(bit(address, node.length)), address, out, count);
+		System.arraycopy(node.values, 0, out, count, node.count);
+		return count + node.count;
+	}
+
+	/**
+	 * Number of values stored in the trie
+	 */
+	public int size() {
+		return size;
+	}
+
+	private static long prefixMask(int length) {
+		return (ADDRESS_MASK << (ADDRESS_BITS - length)) & ADDRESS_MASK;
+	}
+
+	private static int bit(long address, int index) {
+		return (int) (address >>> (ADDRESS_BITS - 1 - index)) & 1;
+	}
+
+	private static int commonLength(long prefix1, long prefix2) {
+		return Integer.numberOfLeadingZeros((int) (prefix1 ^ prefix2));
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+
+/**
+ * Ranking of the rules of a {@link RuleSet} for one attribute priority,
+ * compiled into one comparable key per rule: of two rules matching a
+ * packet, the one {@link AffinityRanking} prefers has the higher key, and
+ * rules it cannot tell apart have the same key. The closest rule is then the
+ * first rule with the highest key, found in a single pass.
+ *
+ * From the high bits to the low ones, a key holds one bit per port or
+ * protocol attribute before the first address attribute of the priority,
+ * set for the Matches operator, then the rank of the network of that
+ * address attribute, then the rank of the rule id. Ranks are dense, see
+ * {@link RuleSet}, so that keys fit in 63 bits. The rank of a source network
+ * depends on the packet, it is added to the key at lookup.
+ *
+ * Plans are immutable, a rule set caches the plan of every priority it
+ * classifies with.
+ */
+final class PriorityPlan {
+
+	/**
+	 * Lower than every key
+	 */
+	static final long NO_KEY = -1L;
+
+	/**
+	 * Number of ordering codes of priorities of distinct attributes
+	 */
+	static final int ORDERINGS = 5 * 5 * 5 * 5;
+
+	private final RuleSet ruleSet;
+	private final boolean bySource;
+	private final int idRankBits;
+
+	/**
+	 * Key of the rule of every slot, without the rank of its source network
+	 */
+	private final long[] keys;
+
+	PriorityPlan(RuleSet ruleSet, AttributeKey[] priority) {
+		this.ruleSet = ruleSet;
+		idRankBits = ruleSet.idRankBits;
+
+		AttributeKey decider = null;
+		int scoreBits = 0;
+		for (AttributeKey attributeKey : priority) {
+			if (attributeKey == AttributeKey.dstAddress || attributeKey == AttributeKey.srcAddresses) {
+				decider = attributeKey;
+				break;
+			}
+			scoreBits++;
+		}
+		if (scoreBits + ruleSet.networkRankBits + idRankBits > 63)
+			throw new IllegalStateException("Too many rules to rank in a key");
+		bySource = decider == AttributeKey.srcAddresses;
+
+		keys = new long[ruleSet.size()];
+		for (int slot = 0; slot < keys.length; slot++) {
+			long key = 0;
+			for (int i = 0; i < scoreBits; i++) {
+				byte operator = priority[i] == AttributeKey.dstPort ? ruleSet.portOperator[slot] : ruleSet.protocolOperator[slot];
+				key = key << 1 | (operator == RuleSet.MATCHES ? 1 : 0);
+			}
+			key <<= ruleSet.networkRankBits;
+			if (decider == AttributeKey.dstAddress)
+				key |= ruleSet.dstRank[slot];
+			keys[slot] = key << idRankBits | ruleSet.idRank[slot];
+		}
+	}
+
+	/**
+	 * Returns the key of a rule matching the packet
+	 * @param slot The slot of the rule
+	 * @param srcAddr The packet source address
+	 */
+	long key(int slot, long srcAddr) {
+		if (!bySource)
+			return keys[slot];
+		int entry = ruleSet.srcEntry(slot, srcAddr);
+		return entry < 0 ? keys[slot] : keys[slot] | (long) ruleSet.srcRank[entry] << idRankBits;
+	}
+
+	/**
+	 * Codes the attribute priority in base 5, one digit per attribute, a
+	 * priority of distinct attributes having a code below {@link #ORDERINGS}
+	 */
+	static int orderingCode(AttributeKey[] priority) {
+		int code = 0;
+		for (AttributeKey attributeKey : priority)
+			code = code * 5 + attributeKey.ordinal() + 1;
+		return code;
+	}
+
+}
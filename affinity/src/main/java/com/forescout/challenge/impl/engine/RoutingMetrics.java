@@ -0,0 +1,501 @@
+package com.forescout.challenge.impl.engine;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.impl.Packet;
+
+/**
+ * Metrics of the classification path: which rules win the lookups, how
+ * many lookups no rule matches, how long lookups take and how the caches
+ * and indexes in front of the rules behave.
+ *
+ * Engines are measured through the {@link InstrumentedClassifier} returned
+ * by {@link #instrument}, under a name. The latency histogram and the
+ * no-match counter of a name live as long as the metrics, so that an engine
+ * rebuilt for a new rule set, e.g. by the engine factory of a
+ * {@link RuleSetHolder}, keeps adding to them, while the wins are counted
+ * per rule of the current rule set. Comparing the rule count and the wins
+ * over time tells a regression due to more rules from one due to traffic
+ * hitting other rules.
+ *
+ * The object path, {@link IPacket#getClosestAffinityNetwork}, has no slots:
+ * it is measured by classifying through the {@link ObjectPathMetrics}
+ * returned by {@link #instrumentObjectPath}, and its wins are counted by
+ * rule id.
+ *
+ * The metrics are readable as a {@link Snapshot}, and through JMX once
+ * {@link #register registered}. While disabled, instrumented engines and
+ * the object path only read a volatile flag before delegating.
+ */
+public final class RoutingMetrics implements RoutingMetricsMBean {
+
+	public static final String DOMAIN = "com.forescout.challenge";
+
+	private static final int HOT_RULES = 10;
+	private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+	/**
+	 * Metrics of the engines instrumented under one name
+	 */
+	static final class EngineMetrics {
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder noMatches = new LongAdder();
+		volatile InstrumentedClassifier classifier;
+		volatile ObjectPathMetrics objectPath;
+
+		EngineMetrics(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Object path measuring its decisions under a name, as
+	 * {@link InstrumentedClassifier} does for engines. Instances are created
+	 * by {@link #instrumentObjectPath}.
+	 */
+	public static final class ObjectPathMetrics {
+		private final RoutingMetrics metrics;
+		private final EngineMetrics engineMetrics;
+		final IdCounters wins;
+
+		ObjectPathMetrics(RoutingMetrics metrics, EngineMetrics engineMetrics, int capacity) {
+			this.metrics = metrics;
+			this.engineMetrics = engineMetrics;
+			wins = new IdCounters(capacity);
+		}
+
+		/**
+		 * Returns the closest rule, see
+		 * {@link Packet#getClosestAffinityNetwork(IPacket, Collection, LinkedHashSet)},
+		 * and records the decision while the metrics are enabled
+		 */
+		public IRoutingRule classify(IPacket packet, Collection<IRoutingRule> rules,
+				LinkedHashSet<AttributeKey> attributesPriority) {
+			if (!metrics.isEnabled())
+				return Packet.getClosestAffinityNetwork(packet, rules, attributesPriority);
+
+			long start = System.nanoTime();
+			IRoutingRule rule = Packet.getClosestAffinityNetwork(packet, rules, attributesPriority);
+			record(rule, System.nanoTime() - start);
+			return rule;
+		}
+
+		/**
+		 * Returns the closest rule, see
+		 * {@link Packet#getClosestAffinityNetwork(IPacket, Collection, AttributeKey[])},
+		 * and records the decision while the metrics are enabled, without
+		 * allocating
+		 */
+		public IRoutingRule classify(IPacket packet, Collection<IRoutingRule> rules, AttributeKey[] priority) {
+			if (!metrics.isEnabled())
+				return Packet.getClosestAffinityNetwork(packet, rules, priority);
+
+			long start = System.nanoTime();
+			IRoutingRule rule = Packet.getClosestAffinityNetwork(packet, rules, priority);
+			record(rule, System.nanoTime() - start);
+			return rule;
+		}
+
+		private void record(IRoutingRule rule, long nanos) {
+			engineMetrics.latency.record(nanos);
+			if (rule == null)
+				engineMetrics.noMatches.increment();
+			else
+				wins.increment(rule.getId());
+		}
+	}
+
+	/**
+	 * Metrics of one engine at some point in time
+	 */
+	public static final class EngineSnapshot {
+		private final String name;
+		private final long noMatches;
+		private final long[] latencyCounts;
+		private final int[] ruleIds;
+		private final long[] wins;
+		private final Map<String, Long> statistics;
+
+		EngineSnapshot(EngineMetrics metrics) {
+			InstrumentedClassifier classifier = metrics.classifier;
+			name = metrics.name;
+			noMatches = metrics.noMatches.sum();
+			latencyCounts = metrics.latency.getCounts();
+			if (classifier != null) {
+				RuleSet ruleSet = classifier.getRuleSet();
+				wins = classifier.getWins().snapshot();
+				ruleIds = new int[wins.length];
+				for (int slot = 0; slot < ruleIds.length; slot++)
+					ruleIds[slot] = ruleSet.getRule(slot).getId();
+				statistics = Collections.unmodifiableMap(statistics(classifier));
+			} else {
+				ObjectPathMetrics objectPath = metrics.objectPath;
+				IdCounters.Counts counts = objectPath.wins.snapshot();
+				wins = counts.counts;
+				ruleIds = counts.ids;
+				statistics = Collections.unmodifiableMap(statistics(objectPath));
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Lookups measured, the sum of the latency counts
+		 */
+		public long getLookups() {
+			long lookups = 0;
+			for (long count : latencyCounts)
+				lookups += count;
+			return lookups;
+		}
+
+		public long getNoMatches() {
+			return noMatches;
+		}
+
+		/**
+		 * Counts of the {@link LatencyHistogram} buckets
+		 */
+		public long[] getLatencyCounts() {
+			return latencyCounts.clone();
+		}
+
+		/**
+		 * @param percentile The percentile, from 0 to 100
+		 * @return The latency in nanoseconds, see {@link LatencyHistogram#percentile}
+		 */
+		public long getLatencyPercentile(double percentile) {
+			return LatencyHistogram.percentile(latencyCounts, percentile / 100.0);
+		}
+
+		/**
+		 * Number of rules of the rule set the wins are counted on. The slots
+		 * of the object path are the ids of the rules that won, in
+		 * increasing order.
+		 */
+		public int getRuleCount() {
+			return wins.length;
+		}
+
+		public int getRuleId(int slot) {
+			return ruleIds[slot];
+		}
+
+		/**
+		 * Lookups the rule of the given slot won
+		 */
+		public long getWins(int slot) {
+			return wins[slot];
+		}
+
+		/**
+		 * Returns the slots of the rules winning most lookups, by decreasing
+		 * wins then increasing slot, rules that never won excluded
+		 * @param n The largest number of slots returned
+		 */
+		public int[] getHotSlots(int n) {
+			List<Integer> slots = new ArrayList<>();
+			for (int slot = 0; slot < wins.length; slot++) {
+				if (wins[slot] > 0)
+					slots.add(slot);
+			}
+			slots.sort((slot1, slot2) -> wins[slot1] != wins[slot2] ? Long.compare(wins[slot2], wins[slot1])
+					: Integer.compare(slot1, slot2));
+			int[] hotSlots = new int[Math.min(n, slots.size())];
+			for (int i = 0; i < hotSlots.length; i++)
+				hotSlots[i] = slots.get(i);
+			return hotSlots;
+		}
+
+		/**
+		 * Statistics of the engine and of the caches and indexes it is made
+		 * of, by name, e.g. rules, cacheHits, cacheMisses, treeNodes,
+		 * treeDepth or intervals
+		 */
+		public Map<String, Long> getStatistics() {
+			return statistics;
+		}
+	}
+
+	/**
+	 * Metrics of every engine at some point in time, the counters of an
+	 * engine being read one after the other while lookups go on
+	 */
+	public static final class Snapshot {
+		private final Map<String, EngineSnapshot> engines = new LinkedHashMap<>();
+
+		Snapshot(Iterable<EngineMetrics> engineMetrics) {
+			for (EngineMetrics metrics : engineMetrics)
+				engines.put(metrics.name, new EngineSnapshot(metrics));
+		}
+
+		/**
+		 * The engines, by name
+		 */
+		public Map<String, EngineSnapshot> getEngines() {
+			return Collections.unmodifiableMap(engines);
+		}
+
+		/**
+		 * @return The metrics of the named engine, or null
+		 */
+		public EngineSnapshot getEngine(String name) {
+			return engines.get(name);
+		}
+
+		public long getLookups() {
+			long lookups = 0;
+			for (EngineSnapshot engine : engines.values())
+				lookups += engine.getLookups();
+			return lookups;
+		}
+
+		public long getNoMatches() {
+			long noMatches = 0;
+			for (EngineSnapshot engine : engines.values())
+				noMatches += engine.getNoMatches();
+			return noMatches;
+		}
+	}
+
+	private final Map<String, EngineMetrics> engines = new ConcurrentSkipListMap<>();
+	private volatile boolean enabled = true;
+
+	/**
+	 * Wraps an engine into one measured under the given name. An engine
+	 * instrumented again under the same name replaces the previous one in
+	 * the metrics, e.g. when the rules are compiled again.
+	 * @param name The name of the engine in the metrics
+	 * @param engine The engine to measure
+	 * @return The instrumented engine, which classifies as the given one
+	 */
+	public synchronized InstrumentedClassifier instrument(String name, CompiledClassifier engine) {
+		Validate.notNull(name, "Argument name cannot be null");
+		Validate.notNull(engine, "Argument engine cannot be null");
+		EngineMetrics metrics = engines.get(name);
+		if (metrics == null)
+			metrics = new EngineMetrics(name);
+		if (metrics.objectPath != null)
+			throw new IllegalStateException(name + " already measures the object path");
+
+		//Counters of up to 32 MB, reused when the rule count is unchanged. Lookups
+		//still running on the previous engine may be counted on the new rules.
+		//The wins are sized for and resolved against the rule set read here.
+		InstrumentedClassifier previous = metrics.classifier;
+		RuleSet ruleSet = engine.getRuleSet();
+		int rules = ruleSet.size();
+		StripedCounters wins;
+		if (previous != null && previous.getWins().length() == rules) {
+			wins = previous.getWins();
+			wins.reset();
+		} else {
+			wins = new StripedCounters(rules);
+		}
+		InstrumentedClassifier classifier = new InstrumentedClassifier(engine, ruleSet, this, metrics, wins);
+		metrics.classifier = classifier;
+		//Published once measuring, so that snapshots never see it empty
+		engines.put(name, metrics);
+		return classifier;
+	}
+
+	/**
+	 * Returns the object path measured under the given name. The latency
+	 * histogram and the no-match counter are kept as for engines.
+	 * @param name The name of the object path in the metrics
+	 * @param capacity The number of distinct rule ids the wins are counted
+	 * for, the wins of further rules are only reported as overflowWins
+	 * @return The object path, the same for every call with the same name
+	 */
+	public synchronized ObjectPathMetrics instrumentObjectPath(String name, int capacity) {
+		Validate.notNull(name, "Argument name cannot be null");
+		EngineMetrics metrics = engines.get(name);
+		if (metrics == null)
+			metrics = new EngineMetrics(name);
+		if (metrics.classifier != null)
+			throw new IllegalStateException(name + " already measures an engine");
+		if (metrics.objectPath == null)
+			metrics.objectPath = new ObjectPathMetrics(this, metrics, capacity);
+		engines.put(name, metrics);
+		return metrics.objectPath;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts or stops measuring, counters keep their values while disabled
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(engines.values());
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server
+	 * @param name The value of the name key of the object name, e.g. the name
+	 * of the node
+	 * @return The name the metrics are registered under, in {@link #DOMAIN}
+	 * @throws JMException If the name is invalid or already registered
+	 */
+	public ObjectName register(String name) throws JMException {
+		Validate.notNull(name, "Argument name cannot be null");
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=RoutingMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	@Override
+	public String[] getEngineNames() {
+		return engines.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long getLookups() {
+		long lookups = 0;
+		for (EngineMetrics metrics : engines.values()) {
+			for (long count : metrics.latency.getCounts())
+				lookups += count;
+		}
+		return lookups;
+	}
+
+	@Override
+	public long getNoMatches() {
+		long noMatches = 0;
+		for (EngineMetrics metrics : engines.values())
+			noMatches += metrics.noMatches.sum();
+		return noMatches;
+	}
+
+	@Override
+	public String[] getHotRules() {
+		List<String> lines = new ArrayList<>();
+		for (EngineSnapshot engine : snapshot().getEngines().values()) {
+			StringBuilder sb = new StringBuilder(engine.getName()).append(':');
+			String separator = " ";
+			for (int slot : engine.getHotSlots(HOT_RULES)) {
+				sb.append(separator).append(engine.getRuleId(slot)).append('=').append(engine.getWins(slot));
+				separator = ", ";
+			}
+			lines.add(sb.toString());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getLatencies() {
+		List<String> lines = new ArrayList<>();
+		for (EngineSnapshot engine : snapshot().getEngines().values()) {
+			StringBuilder sb = new StringBuilder(engine.getName()).append(':');
+			for (double percentile : PERCENTILES) {
+				String label = percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+						: String.valueOf(percentile);
+				sb.append(" p").append(label).append('=').append(engine.getLatencyPercentile(percentile));
+			}
+			sb.append(" max=").append(engine.getLatencyPercentile(100.0));
+			lines.add(sb.toString());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] getStatistics() {
+		List<String> lines = new ArrayList<>();
+		for (EngineMetrics metrics : engines.values()) {
+			StringBuilder sb = new StringBuilder(metrics.name).append(':');
+			Map<String, Long> statistics = metrics.classifier != null ? statistics(metrics.classifier)
+					: statistics(metrics.objectPath);
+			for (Map.Entry<String, Long> statistic : statistics.entrySet())
+				sb.append(' ').append(statistic.getKey()).append('=').append(statistic.getValue());
+			lines.add(sb.toString());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public long getLatencyPercentile(String engine, double percentile) {
+		EngineMetrics metrics = engine == null ? null : engines.get(engine);
+		if (metrics == null)
+			return -1L;
+		return LatencyHistogram.percentile(metrics.latency.getCounts(), percentile / 100.0);
+	}
+
+	/**
+	 * Zeroes every counter, lookups running meanwhile may be counted or not
+	 */
+	@Override
+	public void reset() {
+		for (EngineMetrics metrics : engines.values()) {
+			metrics.latency.reset();
+			metrics.noMatches.reset();
+			if (metrics.classifier != null)
+				metrics.classifier.getWins().reset();
+			else
+				metrics.objectPath.wins.reset();
+		}
+	}
+
+	/**
+	 * Statistics of the object path: the number of rules that won, and the
+	 * wins of the rules past the capacity
+	 */
+	static Map<String, Long> statistics(ObjectPathMetrics objectPath) {
+		Map<String, Long> statistics = new LinkedHashMap<>();
+		statistics.put("rules", (long) objectPath.wins.snapshot().ids.length);
+		statistics.put("overflowWins", objectPath.wins.getOverflow());
+		return statistics;
+	}
+
+	/**
+	 * Collects the statistics of an engine and of the engines it delegates to
+	 */
+	static Map<String, Long> statistics(CompiledClassifier engine) {
+		Map<String, Long> statistics = new LinkedHashMap<>();
+		statistics.put("rules", (long) engine.getRuleSet().size());
+		while (engine != null) {
+			CompiledClassifier next = null;
+			if (engine instanceof InstrumentedClassifier) {
+				next = ((InstrumentedClassifier) engine).getEngine();
+			} else if (engine instanceof FlowCache) {
+				FlowCache cache = (FlowCache) engine;
+				statistics.put("cacheHits", cache.getHits());
+				statistics.put("cacheMisses", cache.getMisses());
+				next = cache.getEngine();
+			} else if (engine instanceof DecisionTreeClassifier) {
+				DecisionTreeClassifier tree = (DecisionTreeClassifier) engine;
+				statistics.put("treeNodes", (long) tree.getNodeCount());
+				statistics.put("treeDepth", (long) tree.getDepth());
+			} else if (engine instanceof BitVectorClassifier) {
+				statistics.put("intervals", (long) ((BitVectorClassifier) engine).getIntervalCount());
+			}
+			engine = next;
+		}
+		return statistics;
+	}
+
+}
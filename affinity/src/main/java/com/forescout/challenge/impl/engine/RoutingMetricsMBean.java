@@ -0,0 +1,52 @@
+package com.forescout.challenge.impl.engine;
+
+/**
+ * Management interface of {@link RoutingMetrics}. Every array holds one
+ * line per instrumented engine, in the order of the engine names.
+ */
+public interface RoutingMetricsMBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	String[] getEngineNames();
+
+	/**
+	 * Lookups of every engine since the last reset
+	 */
+	long getLookups();
+
+	/**
+	 * Lookups no rule matched, of every engine since the last reset
+	 */
+	long getNoMatches();
+
+	/**
+	 * The rules winning most lookups, e.g. "tree: 12=5310, 4=877, 9=15"
+	 * for rule ids and their wins
+	 */
+	String[] getHotRules();
+
+	/**
+	 * Lookup latency percentiles in nanoseconds, e.g. "tree: p50=95 p90=127
+	 * p99=511 p99.9=1023 max=4095"
+	 */
+	String[] getLatencies();
+
+	/**
+	 * Statistics of the engines, caches and indexes, e.g. "cache: rules=100
+	 * cacheHits=1200 cacheMisses=80"
+	 */
+	String[] getStatistics();
+
+	/**
+	 * @param engine The name of an instrumented engine
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The latency in nanoseconds, or -1 for an unknown engine
+	 */
+	long getLatencyPercentile(String engine, double percentile);
+
+	void reset();
+
+}
@@ -0,0 +1,413 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Parsers;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+
+/**
+ * Immutable, pre-parsed form of a collection of {@link IRoutingRule}. Every
+ * CIDR, port range and protocol is parsed once when the rule set is compiled,
+ * so that classifying a packet only deals with primitive values.
+ *
+ * The rule set is a snapshot: changing the attributes of a rule after it has
+ * been compiled has no effect on the compiled form.
+ */
+public final class RuleSet extends CompiledClassifier {
+
+	static final byte ANY = (byte) AttributeOperator.Any.ordinal();
+	static final byte MATCHES = (byte) AttributeOperator.Matches.ordinal();
+	static final byte CONTAINS = (byte) AttributeOperator.Contains.ordinal();
+
+	/**
+	 * Network value used for a source pool that has no entry containing the
+	 * packet source address. It ranks below every real network.
+	 */
+	static final long NO_NETWORK = -1L;
+
+	/**
+	 * Rules in compilation order, a rule is addressed by its slot in this array
+	 */
+	final IRoutingRule[] rules;
+	final int[] ids;
+
+	final byte[] srcOperator;
+	final byte[] dstOperator;
+	final byte[] portOperator;
+	final byte[] protocolOperator;
+
+	/**
+	 * Source pools, the entries of the rule in slot i are stored in
+	 * [srcStart[i], srcStart[i + 1])
+	 */
+	final int[] srcStart;
+	final long[] srcNet;
+	final long[] srcNetMask;
+	final int[] srcMaskBits;
+
+	final long[] dstNet;
+	final long[] dstNetMask;
+	final int[] dstMaskBits;
+
+	final int[] portBegin;
+	final int[] portEnd;
+
+	/**
+	 * Protocols as coded by {@link ProtocolTable}
+	 */
+	final int[] protocolCode;
+
+	/**
+	 * Rules matching the dstAddress attribute, indexed by their network.
+	 * Rules matching any destination but the dstPort attribute are indexed
+	 * by their port range in portIndex, every other rule is listed in
+	 * unindexed.
+	 */
+	final PrefixTrie dstIndex = new PrefixTrie();
+	PortIndex portIndex;
+	int[] unindexed;
+
+	/**
+	 * Dense ranks of the rule ids, the lowest id having the highest rank, and
+	 * of the networks of the destinations and of the source pool entries, the
+	 * highest network then the widest mask having the highest rank, from 1.
+	 * Equal values have equal ranks.
+	 */
+	final int[] idRank;
+	final int[] dstRank;
+	final int[] srcRank;
+	int idRankBits;
+	int networkRankBits;
+
+	/**
+	 * Plans of the priorities classified with, by ordering code, built on
+	 * first use. Plans are immutable, a race only builds one twice.
+	 */
+	private final PriorityPlan[] plans = new PriorityPlan[PriorityPlan.ORDERINGS];
+
+	/**
+	 * Number of candidates an index lookup can return
+	 */
+	private int maxCandidates;
+
+	/**
+	 * Candidate slots of a lookup, shared by every rule set a thread
+	 * classifies with and grown to the largest of them, so that retired rule
+	 * sets leave no buffer behind
+	 */
+	private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[16]);
+
+	private RuleSet(int size, int srcEntries) {
+		rules = new IRoutingRule[size];
+		ids = new int[size];
+		srcOperator = new byte[size];
+		dstOperator = new byte[size];
+		portOperator = new byte[size];
+		protocolOperator = new byte[size];
+		srcStart = new int[size + 1];
+		srcNet = new long[srcEntries];
+		srcNetMask = new long[srcEntries];
+		srcMaskBits = new int[srcEntries];
+		dstNet = new long[size];
+		dstNetMask = new long[size];
+		dstMaskBits = new int[size];
+		portBegin = new int[size];
+		portEnd = new int[size];
+		protocolCode = new int[size];
+		idRank = new int[size];
+		dstRank = new int[size];
+		srcRank = new int[srcEntries];
+	}
+
+	/**
+	 * Compiles the given rules. The attribute values of every rule are read
+	 * once and stored in primitive form, so a rule changed by another thread
+	 * meanwhile is compiled with some of its changes only, but consistently.
+	 * @param rules The pool of rules to compile
+	 * @return The compiled rule set
+	 */
+	public static RuleSet compile(Collection<IRoutingRule> rules) {
+		Validate.notNull(rules, "Argument rules cannot be null");
+
+		Attribute<?>[][] pools = new Attribute<?>[rules.size()][];
+		int srcEntries = 0;
+		int slot = 0;
+		for (IRoutingRule rule : rules) {
+			pools[slot] = srcPool(rule).toArray(new Attribute<?>[0]);
+			srcEntries += pools[slot++].length;
+		}
+
+		RuleSet ruleSet = new RuleSet(rules.size(), srcEntries);
+		slot = 0;
+		int entry = 0;
+		for (IRoutingRule rule : rules) {
+			ruleSet.rules[slot] = rule;
+			ruleSet.ids[slot] = rule.getId();
+
+			ruleSet.srcOperator[slot] = operator(rule.getSrcAddresses());
+			ruleSet.dstOperator[slot] = singleOperator(rule.getDstAddress());
+			ruleSet.portOperator[slot] = singleOperator(rule.getDstPort());
+			ruleSet.protocolOperator[slot] = singleOperator(rule.getProtocol());
+
+			ruleSet.srcStart[slot] = entry;
+			for (Attribute<?> srcAddress : pools[slot]) {
+				long netAndMask = parseCidr((String) srcAddress.getArgument());
+				ruleSet.srcNet[entry] = Utility.packedNet(netAndMask);
+				ruleSet.srcMaskBits[entry] = Utility.packedMask(netAndMask);
+				ruleSet.srcNetMask[entry] = netMask(Utility.packedMask(netAndMask));
+				entry++;
+			}
+
+			long netAndMask = parseCidr((String) rule.getDstAddress().getArgument());
+			ruleSet.dstNet[slot] = Utility.packedNet(netAndMask);
+			ruleSet.dstMaskBits[slot] = Utility.packedMask(netAndMask);
+			ruleSet.dstNetMask[slot] = netMask(Utility.packedMask(netAndMask));
+
+			PortRange portRange = (PortRange) rule.getDstPort().getArgument();
+			ruleSet.portBegin[slot] = portRange.getBegin();
+			ruleSet.portEnd[slot] = portRange.getEnd();
+
+			ruleSet.protocolCode[slot] = ProtocolTable.register((String) rule.getProtocol().getArgument());
+			slot++;
+		}
+		ruleSet.srcStart[slot] = entry;
+		ruleSet.index();
+		ruleSet.rank();
+		return ruleSet;
+	}
+
+	private void index() {
+		int scanned = 0;
+		int[] scan = new int[rules.length];
+		int ported = 0;
+		int[] portSlots = new int[rules.length];
+		PortRange[] portRanges = new PortRange[rules.length];
+		for (int slot = 0; slot < rules.length; slot++) {
+			if (dstOperator[slot] == MATCHES && PrefixTrie.isIndexable(dstNet[slot], dstMaskBits[slot])) {
+				dstIndex.insert(dstNet[slot], dstMaskBits[slot], slot);
+			} else if (portOperator[slot] == MATCHES) {
+				portSlots[ported] = slot;
+				portRanges[ported++] = new PortRange(portBegin[slot], portEnd[slot]);
+			} else {
+				scan[scanned++] = slot;
+			}
+		}
+		portIndex = new PortIndex(Arrays.copyOf(portRanges, ported), Arrays.copyOf(portSlots, ported));
+		unindexed = Arrays.copyOf(scan, scanned);
+		maxCandidates = Math.max(dstIndex.size(), portIndex.maxCount());
+	}
+
+	private void rank() {
+		long[] idValues = new long[rules.length];
+		for (int slot = 0; slot < rules.length; slot++)
+			idValues[slot] = -(long) ids[slot];
+		idRankBits = rank(idValues, idRank);
+
+		long[] dstValues = new long[rules.length];
+		for (int slot = 0; slot < rules.length; slot++)
+			dstValues[slot] = networkValue(dstNet[slot], dstMaskBits[slot]);
+		long[] srcValues = new long[srcNet.length];
+		for (int entry = 0; entry < srcNet.length; entry++)
+			srcValues[entry] = networkValue(srcNet[entry], srcMaskBits[entry]);
+		networkRankBits = Math.max(rank(dstValues, dstRank), rank(srcValues, srcRank));
+	}
+
+	/**
+	 * Orders networks by the highest network, then the widest mask
+	 */
+	private static long networkValue(long net, int maskBits) {
+		return net << 6 | (63 - maskBits);
+	}
+
+	/**
+	 * Ranks the values from 1 for the lowest, equal values having equal ranks
+	 * @return The number of bits of the highest rank
+	 */
+	private static int rank(long[] values, int[] ranks) {
+		long[] distinct = values.clone();
+		Arrays.sort(distinct);
+		int count = 0;
+		for (int i = 0; i < distinct.length; i++) {
+			if (i == 0 || distinct[i] != distinct[count - 1])
+				distinct[count++] = distinct[i];
+		}
+		for (int i = 0; i < values.length; i++)
+			ranks[i] = Arrays.binarySearch(distinct, 0, count, values[i]) + 1;
+		return 32 - Integer.numberOfLeadingZeros(count);
+	}
+
+	/**
+	 * Returns the plan ranking the rules for the given priority, cached for
+	 * priorities of distinct attributes
+	 */
+	PriorityPlan plan(AttributeKey[] priority) {
+		int ordering = PriorityPlan.orderingCode(priority);
+		if (ordering < 0 || ordering >= plans.length)
+			return new PriorityPlan(this, priority);
+		PriorityPlan plan = plans[ordering];
+		if (plan == null)
+			plans[ordering] = plan = new PriorityPlan(this, priority);
+		return plan;
+	}
+
+	/**
+	 * Returns the slot of the rule with the highest matching score, scanning
+	 * the rules whose dstAddress network contains the destination address,
+	 * the rules matching any destination address whose port range contains
+	 * the destination port, and the remaining rules. The closest rule is the
+	 * first one with the highest key of the plan of the priority.
+	 */
+	@Override
+	public int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority) {
+		PriorityPlan plan = plan(priority);
+		int[] candidates = SCRATCH.get();
+		if (candidates.length < maxCandidates) {
+			candidates = new int[Math.max(maxCandidates, 2 * candidates.length)];
+			SCRATCH.set(candidates);
+		}
+		int best = NO_MATCH;
+		long bestKey = PriorityPlan.NO_KEY;
+		int indexed = dstIndex.lookup(dstAddr, candidates);
+		for (int i = 0; i < indexed; i++) {
+			int slot = candidates[i];
+			if (srcMatches(slot, srcAddr) && portMatches(slot, dstPort) && protocolMatches(slot, protocolCode)) {
+				long key = plan.key(slot, srcAddr);
+				if (key > bestKey) {
+					best = slot;
+					bestKey = key;
+				}
+			}
+		}
+		int ported = portIndex.collect(dstPort, candidates);
+		for (int i = 0; i < ported; i++) {
+			int slot = candidates[i];
+			if (dstMatches(slot, dstAddr) && srcMatches(slot, srcAddr) && protocolMatches(slot, protocolCode)) {
+				long key = plan.key(slot, srcAddr);
+				if (key > bestKey) {
+					best = slot;
+					bestKey = key;
+				}
+			}
+		}
+		for (int slot : unindexed) {
+			if (matches(slot, srcAddr, dstAddr, dstPort, protocolCode)) {
+				long key = plan.key(slot, srcAddr);
+				if (key > bestKey) {
+					best = slot;
+					bestKey = key;
+				}
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public RuleSet getRuleSet() {
+		return this;
+	}
+
+	/**
+	 * Number of compiled rules
+	 */
+	public int size() {
+		return rules.length;
+	}
+
+	/**
+	 * Returns the rule compiled in the given slot
+	 */
+	public IRoutingRule getRule(int slot) {
+		return rules[slot];
+	}
+
+	/**
+	 * Checks the four attributes of the rule in the given slot against the
+	 * packet fields, which is what discarding mismatched rules does.
+	 */
+	boolean matches(int slot, long srcAddr, long dstAddr, int dstPort, int protocolCode) {
+		return dstMatches(slot, dstAddr)
+				&& srcMatches(slot, srcAddr)
+				&& portMatches(slot, dstPort)
+				&& protocolMatches(slot, protocolCode);
+	}
+
+	boolean dstMatches(int slot, long dstAddr) {
+		return dstOperator[slot] == ANY || (dstAddr & dstNetMask[slot]) == (dstNet[slot] & dstNetMask[slot]);
+	}
+
+	boolean srcMatches(int slot, long srcAddr) {
+		if (srcOperator[slot] == ANY)
+			return true;
+		//A pool matched as a whole never scores, see CollectionAttributeImpl
+		return srcOperator[slot] == CONTAINS && srcEntry(slot, srcAddr) >= 0;
+	}
+
+	boolean portMatches(int slot, int dstPort) {
+		return portOperator[slot] == ANY || (dstPort >= portBegin[slot] && dstPort <= portEnd[slot]);
+	}
+
+	boolean protocolMatches(int slot, int protocolCode) {
+		return protocolOperator[slot] == ANY || this.protocolCode[slot] == protocolCode;
+	}
+
+	/**
+	 * Returns the first entry of the source pool in the given slot containing
+	 * the address, or -1 if there is none
+	 */
+	int srcEntry(int slot, long srcAddr) {
+		for (int entry = srcStart[slot]; entry < srcStart[slot + 1]; entry++) {
+			if ((srcAddr & srcNetMask[entry]) == (srcNet[entry] & srcNetMask[entry]))
+				return entry;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	static Collection<Attribute<?>> srcPool(IRoutingRule rule) {
+		return (Collection<Attribute<?>>) rule.getSrcAddresses().getArgument();
+	}
+
+	static byte operator(Attribute<?> attribute) {
+		return (byte) attribute.getOperator().ordinal();
+	}
+
+	static byte singleOperator(Attribute<?> attribute) {
+		AttributeOperator operator = attribute.getOperator();
+		if (operator == AttributeOperator.Contains)
+			throw new IllegalArgumentException("Contains operator only allowed with CollectionsAttribute");
+		return (byte) operator.ordinal();
+	}
+
+	/**
+	 * Parses a network in CIDR notation, a plain address is taken as a /32
+	 * @return The network and the mask, packed as by {@link Utility#cidrStringToPackedNetAndMask}
+	 */
+	static long parseCidr(String cidr) {
+		long netAndMask = Parsers.parseCidr(cidr, 0, cidr.length(), false);
+		if (netAndMask != Parsers.INVALID)
+			return netAndMask;
+		if (cidr.indexOf('/') < 0) {
+			if (!cidr.matches(Utility.STRICT_IP_MATCH_REGEX))
+				throw new IllegalArgumentException("Supplied string is not a valid CIDR notation");
+			return Utility.string2Ip(cidr) << 6 | 32;
+		}
+		return Utility.cidrStringToPackedNetAndMask(cidr);
+	}
+
+	/**
+	 * Bits to keep when comparing an address to a network, the same as the
+	 * shifts done by {@link Utility#isIpInsideNet(long, long, int)}
+	 */
+	static long netMask(int maskBits) {
+		return -1L << (32 - maskBits);
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Validate;
+
+/**
+ * Publishes versioned snapshots of a collection of rules in the style of
+ * read-copy-update. Every snapshot holds a compiled {@link RuleSet}, which
+ * is immutable, and the engine classifying against it. The current snapshot
+ * is held by a single atomic reference: readers never block, and always see
+ * one whole snapshot, however rules are changed meanwhile.
+ *
+ * Writers change the rule objects, then {@link #publish} them: the rules
+ * are compiled into a new snapshot, which then replaces the current one.
+ * Compiling reads every attribute once into the primitive columns of the
+ * rule set, so changing a rule object does not change how any snapshot
+ * ranks it before it is published. Snapshots return the rule objects that
+ * were published, mapped back from their slots, which callers may still be
+ * changing. Publishing is serialized, but readers keep using the previous
+ * snapshot until the new one is in place. A snapshot no reader holds
+ * anymore is reclaimed by the garbage collector.
+ */
+public final class RuleSetHolder {
+
+	/**
+	 * An immutable version of the rules, and the engine classifying against it
+	 */
+	public static final class Snapshot {
+		private final long version;
+		private final RuleSet ruleSet;
+		private final CompiledClassifier engine;
+
+		Snapshot(long version, RuleSet ruleSet, CompiledClassifier engine) {
+			this.version = version;
+			this.ruleSet = ruleSet;
+			this.engine = engine;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public RuleSet getRuleSet() {
+			return ruleSet;
+		}
+
+		public CompiledClassifier getEngine() {
+			return engine;
+		}
+
+		/**
+		 * Classifies the packet against the rules of this snapshot, see
+		 * {@link CompiledClassifier#classify}
+		 * @return The copy of the closest rule made when the snapshot was
+		 * published, with the id of the rule, or null
+		 */
+		public IRoutingRule classify(IPacket packet, LinkedHashSet<AttributeKey> attributesPriority) {
+			return engine.classify(packet, attributesPriority);
+		}
+	}
+
+	private final Function<RuleSet, CompiledClassifier> engineFactory;
+	private final AtomicReference<Snapshot> current = new AtomicReference<>();
+	private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Holds the given rules, classified by their {@link RuleSet}
+	 */
+	public RuleSetHolder(Collection<IRoutingRule> rules) {
+		this(rules, ruleSet -> ruleSet);
+	}
+
+	/**
+	 * @param rules The initial rules
+	 * @param engineFactory Builds the engine of every snapshot from its rule set
+	 */
+	public RuleSetHolder(Collection<IRoutingRule> rules, Function<RuleSet, CompiledClassifier> engineFactory) {
+		this.engineFactory = Validate.notNull(engineFactory, "Argument engineFactory cannot be null");
+		current.set(compile(1L, rules));
+	}
+
+	/**
+	 * Returns the current snapshot, readers classifying many packets should
+	 * keep it for the whole batch
+	 */
+	public Snapshot current() {
+		return current.get();
+	}
+
+	/**
+	 * Classifies the packet against the current snapshot
+	 */
+	public IRoutingRule classify(IPacket packet, LinkedHashSet<AttributeKey> attributesPriority) {
+		return current.get().classify(packet, attributesPriority);
+	}
+
+	/**
+	 * Compiles the given rules into a new snapshot and makes it current.
+	 * Every rule is read once, see {@link RuleSet#compile}: a rule changed by
+	 * another thread meanwhile may be compiled with some of its changes only.
+	 * @param rules The whole collection of rules of the new snapshot
+	 * @return The new snapshot
+	 */
+	public synchronized Snapshot publish(Collection<IRoutingRule> rules) {
+		Snapshot snapshot = compile(current.get().getVersion() + 1, rules);
+		current.set(snapshot);
+		for (Consumer<Snapshot> listener : listeners)
+			listener.accept(snapshot);
+		return snapshot;
+	}
+
+	private Snapshot compile(long version, Collection<IRoutingRule> rules) {
+		RuleSet ruleSet = RuleSet.compile(rules);
+		return new Snapshot(version, ruleSet, engineFactory.apply(ruleSet));
+	}
+
+	/**
+	 * Registers a listener called with every snapshot published from now on,
+	 * in version order, in the thread publishing it
+	 */
+	public void addListener(Consumer<Snapshot> listener) {
+		listeners.add(Validate.notNull(listener, "Argument listener cannot be null"));
+	}
+
+	public void removeListener(Consumer<Snapshot> listener) {
+		listeners.remove(listener);
+	}
+
+}
@@ -0,0 +1,202 @@
+package com.forescout.challenge.impl.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Validate;
+
+/**
+ * Binary file format of an {@link OffHeapRuleTable}. The file holds a header
+ * followed by the buffer of the table as is, its index included, so that
+ * loading a snapshot maps the file and checks it, without parsing or
+ * compiling any rule.
+ *
+ * Dynamic protocol codes are given in first seen order by every process,
+ * see {@link ProtocolTable}, so the table is followed by the names of the
+ * dynamic codes it holds. Loading a snapshot registers these names, and
+ * when a code differs in the loading process, the table is copied into
+ * direct memory with its codes translated.
+ *
+ * The file is little endian:
+ * <pre>
+ * int  magic     0x54524641, "AFRT"
+ * int  version   {@link #VERSION}
+ * long length    number of bytes of the table following the header
+ * int  crc       CRC32 of the bytes following the header
+ * int  protocols number of protocol names following the table
+ * byte[length]   the table
+ * then for every protocol name:
+ * int  code      the dynamic code in the table
+ * int  size      number of bytes of the name
+ * byte[size]     the name, in UTF-8
+ * </pre>
+ * Files of another version are rejected, a table laid out differently
+ * requires a new version.
+ */
+public final class RuleTableSnapshot {
+
+	/**
+	 * Version of the snapshots written
+	 */
+	public static final int VERSION = 2;
+
+	private static final int MAGIC = 0x54524641;
+	private static final int HEADER_LENGTH = 24;
+
+	private RuleTableSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot of the table, replacing the file if it exists
+	 * @param table The table to save
+	 * @param file The snapshot file
+	 */
+	public static void write(OffHeapRuleTable table, Path file) throws IOException {
+		write(table, file, ProtocolTable::name);
+	}
+
+	/**
+	 * Writes a snapshot of the table, naming its dynamic protocol codes with
+	 * the given function
+	 * @throws IllegalArgumentException If a dynamic protocol code has no name
+	 */
+	static void write(OffHeapRuleTable table, Path file, IntFunction<String> protocolNames) throws IOException {
+		Validate.notNull(table, "Argument table cannot be null");
+		Validate.notNull(file, "Argument file cannot be null");
+
+		Map<Integer, byte[]> names = new HashMap<>();
+		int namesLength = 0;
+		for (int slot = 0; slot < table.size(); slot++) {
+			int code = table.getProtocolCode(slot);
+			if (code >= ProtocolTable.FIRST_DYNAMIC_CODE && !names.containsKey(code)) {
+				String name = protocolNames.apply(code);
+				if (name == null)
+					throw new IllegalArgumentException("Protocol code " + code + " is not registered");
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				names.put(code, bytes);
+				namesLength += 8 + bytes.length;
+			}
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(namesLength).order(ByteOrder.LITTLE_ENDIAN);
+		for (Map.Entry<Integer, byte[]> name : names.entrySet())
+			trailer.putInt(name.getKey()).putInt(name.getValue().length).put(name.getValue());
+		trailer.flip();
+
+		ByteBuffer data = table.asReadOnlyBuffer();
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		crc.update(trailer.duplicate());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putLong(data.remaining()).putInt((int) crc.getValue()).putInt(names.size());
+		header.flip();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining())
+				channel.write(header);
+			while (data.hasRemaining())
+				channel.write(data);
+			while (trailer.hasRemaining())
+				channel.write(trailer);
+		}
+	}
+
+	/**
+	 * Maps a snapshot and checks its checksum
+	 * @param file The snapshot file
+	 * @return The table, backed by the mapping of the file
+	 * @throws IOException If the file is not a snapshot of this version, or is corrupt
+	 */
+	public static OffHeapRuleTable load(Path file) throws IOException {
+		return load(file, true);
+	}
+
+	/**
+	 * Maps a snapshot
+	 * @param file The snapshot file
+	 * @param verify Whether to check the checksum, which reads the whole file
+	 * @return The table, backed by the mapping of the file, or by a copy in
+	 * direct memory when its dynamic protocol codes had to be translated
+	 * @throws IOException If the file is not a snapshot of this version, or is corrupt
+	 */
+	public static OffHeapRuleTable load(Path file, boolean verify) throws IOException {
+		Validate.notNull(file, "Argument file cannot be null");
+
+		MappedByteBuffer mapping;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH || size > Integer.MAX_VALUE)
+				throw new IOException("Not a rule table snapshot: " + file);
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		mapping.order(ByteOrder.LITTLE_ENDIAN);
+		if (mapping.getInt(0) != MAGIC)
+			throw new IOException("Not a rule table snapshot: " + file);
+		int version = mapping.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version + ": " + file);
+		long length = mapping.getLong(8);
+		int protocols = mapping.getInt(20);
+		if (length < 0 || length > mapping.capacity() - HEADER_LENGTH || protocols < 0)
+			throw new IOException("Truncated snapshot: " + file);
+
+		if (verify) {
+			mapping.position(HEADER_LENGTH);
+			CRC32 crc = new CRC32();
+			crc.update(mapping.slice());
+			if ((int) crc.getValue() != mapping.getInt(16))
+				throw new IOException("Checksum mismatch: " + file);
+		}
+
+		int[] protocolCodes = new int[protocols];
+		String[] protocolNames = new String[protocols];
+		int position = HEADER_LENGTH + (int) length;
+		for (int i = 0; i < protocols; i++) {
+			if (mapping.capacity() - position < 8)
+				throw new IOException("Truncated snapshot: " + file);
+			int code = mapping.getInt(position);
+			int size = mapping.getInt(position + 4);
+			position += 8;
+			if (size < 0 || mapping.capacity() - position < size)
+				throw new IOException("Truncated snapshot: " + file);
+			byte[] name = new byte[size];
+			mapping.position(position);
+			mapping.get(name);
+			position += size;
+			protocolCodes[i] = code;
+			protocolNames[i] = new String(name, StandardCharsets.UTF_8);
+		}
+		if (position != mapping.capacity())
+			throw new IOException("Truncated snapshot: " + file);
+
+		mapping.position(HEADER_LENGTH);
+		mapping.limit(HEADER_LENGTH + (int) length);
+		OffHeapRuleTable table;
+		try {
+			table = new OffHeapRuleTable(mapping.slice());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt snapshot: " + file, e);
+		}
+
+		//Codes of the table mapped to the codes of the same names in this process
+		Map<Integer, Integer> codes = new HashMap<>();
+		for (int i = 0; i < protocols; i++) {
+			int local = ProtocolTable.register(protocolNames[i]);
+			if (local != protocolCodes[i])
+				codes.put(protocolCodes[i], local);
+		}
+		return codes.isEmpty() ? table : table.withProtocolCodes(code -> codes.getOrDefault(code, code));
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.forescout.challenge.impl.engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed array of counters updated by many threads. Every counter is split
+ * in stripes, a thread always incrementing the stripe its id selects, and
+ * a count is the sum of its stripes. Each stripe is a separate array padded
+ * at both ends, so threads of different stripes never write the same cache
+ * line.
+ *
+ * The stripes of every counter cost memory: their number is bounded so that
+ * a large array of counters stays within a few tens of megabytes.
+ */
+final class StripedCounters {
+
+	/**
+	 * Longs on each side of a stripe, two cache lines
+	 */
+	private static final int PAD = 16;
+
+	private static final int MAX_STRIPES = 16;
+
+	/**
+	 * Longs the stripes of one array may hold, 32 MB
+	 */
+	private static final int MAX_LONGS = 1 << 22;
+
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+	private final int length;
+
+	StripedCounters(int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("Length must be >= 0");
+		int processors = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+		int budget = Integer.highestOneBit(Math.max(1, MAX_LONGS / (length + 2 * PAD)));
+		int count = Math.min(MAX_STRIPES, Math.min(processors, budget));
+		stripes = new AtomicLongArray[count];
+		for (int stripe = 0; stripe < count; stripe++)
+			stripes[stripe] = new AtomicLongArray(length + 2 * PAD);
+		stripeMask = count - 1;
+		this.length = length;
+	}
+
+	int length() {
+		return length;
+	}
+
+	void increment(int index) {
+		stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(PAD + index);
+	}
+
+	long get(int index) {
+		long sum = 0;
+		for (AtomicLongArray stripe : stripes)
+			sum += stripe.get(PAD + index);
+		return sum;
+	}
+
+	/**
+	 * Sums every counter, counts incremented meanwhile may be missed
+	 */
+	long[] snapshot() {
+		long[] sums = new long[length];
+		for (AtomicLongArray stripe : stripes) {
+			for (int index = 0; index < length; index++)
+				sums[index] += stripe.get(PAD + index);
+		}
+		return sums;
+	}
+
+	void reset() {
+		for (AtomicLongArray stripe : stripes) {
+			for (int index = 0; index < length; index++)
+				stripe.set(PAD + index, 0L);
+		}
+	}
+
+}
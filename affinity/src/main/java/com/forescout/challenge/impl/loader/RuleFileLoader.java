@@ -0,0 +1,334 @@
+package com.forescout.challenge.impl.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Parsers;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.engine.OffHeapRuleTable;
+
+/**
+ * Loads a rule file into an {@link OffHeapRuleTable} in a single pass. The
+ * file is read in blocks of bytes and every field is parsed in place, so
+ * that no object is created per rule: no string, no attribute and no
+ * {@link IRoutingRule}.
+ *
+ * The file is ASCII and holds one rule per line, its fields separated by
+ * spaces or tabs:
+ * <pre>
+ * srcAddresses dstAddress protocol dstPort srcOperator dstOperator portOperator protocolOperator [priority]
+ * 10.1.0.0/16,192.168.0.0/16 10.2.1.0/24 TCP 1-1024 Contains Matches Matches Any
+ * 10.1.1.0/24 10.2.1.0/31 UDP 53 Contains Matches Matches Matches srcAddresses,dstAddress,dstPort,protocol
+ * </pre>
+ * The source pool is a comma separated list of networks, a network without
+ * a mask being a /32. The port is a single port or a range, the operators
+ * are the names of {@link AttributeOperator} values and the priority is a
+ * comma separated list of {@link AttributeKey} names, the default priority
+ * being {@link IRoutingRule#defaultAttributesPriority}. Blank lines and
+ * lines starting with # are ignored.
+ *
+ * The id of a rule is the number of its line in the file, from 1, and the
+ * entries of a source pool keep the order of the file. The first invalid
+ * line stops the load with a {@link RuleFormatException}.
+ */
+public final class RuleFileLoader {
+
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private static final int FIELDS = 8;
+	private static final int SRC_ADDRESSES = 0;
+	private static final int DST_ADDRESS = 1;
+	private static final int PROTOCOL = 2;
+	private static final int DST_PORT = 3;
+	private static final int OPERATORS = 4;
+	private static final int PRIORITY = 8;
+
+	private static final AttributeOperator[] OPERATOR_VALUES = AttributeOperator.values();
+	private static final byte[][] OPERATOR_NAMES = asciiNames(OPERATOR_VALUES);
+	private static final byte[][] KEY_NAMES = asciiNames(AttributeKey.values());
+	private static final AttributeKey[] DEFAULT_PRIORITY = IRoutingRule.defaultAttributesPriority.toArray(
+			new AttributeKey[IRoutingRule.defaultAttributesPriority.size()]);
+
+	private final OffHeapRuleTable.Builder builder = new OffHeapRuleTable.Builder();
+	private byte[] buffer;
+	private long line;
+
+	/**
+	 * Bounds of the fields of the current line, a tenth field is an error
+	 */
+	private final int[] fieldFrom = new int[FIELDS + 2];
+	private final int[] fieldTo = new int[FIELDS + 2];
+
+	/**
+	 * Source pool of the current line
+	 */
+	private long[] srcNets = new long[16];
+	private int[] srcMasks = new int[16];
+	private int srcCount;
+
+	/**
+	 * Protocol spellings seen so far and their codes, few in practice
+	 */
+	private byte[][] protocolNames = new byte[8][];
+	private int[] protocolCodes = new int[8];
+	private int protocols;
+
+	/**
+	 * Priorities seen so far, by the count of attributes in bits 8 to 10
+	 * and the ordinal of the attribute of rank i in bits 2i and 2i + 1
+	 */
+	private final AttributeKey[][] priorities = new AttributeKey[1 << 11][];
+
+	RuleFileLoader(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+
+	private static byte[][] asciiNames(Enum<?>[] values) {
+		byte[][] names = new byte[values.length][];
+		for (Enum<?> value : values)
+			names[value.ordinal()] = value.name().getBytes(StandardCharsets.US_ASCII);
+		return names;
+	}
+
+	/**
+	 * Loads a rule file
+	 * @param file The rule file
+	 * @return The compiled rules, in the order of the file
+	 * @throws RuleFormatException At the first invalid line
+	 */
+	public static OffHeapRuleTable load(Path file) throws IOException {
+		Validate.notNull(file, "Argument file cannot be null");
+		try (InputStream in = Files.newInputStream(file)) {
+			return load(in);
+		}
+	}
+
+	/**
+	 * Loads rules from a stream, which is read to its end and left open
+	 * @param in The rules, in the format of a rule file
+	 * @return The compiled rules, in the order of the stream
+	 * @throws RuleFormatException At the first invalid line
+	 */
+	public static OffHeapRuleTable load(InputStream in) throws IOException {
+		Validate.notNull(in, "Argument in cannot be null");
+		return new RuleFileLoader(DEFAULT_BUFFER_SIZE).read(in);
+	}
+
+	OffHeapRuleTable read(InputStream in) throws IOException {
+		//The bytes not yet parsed are in [start, end), and hold no line end before search
+		int start = 0;
+		int end = 0;
+		int search = 0;
+		boolean eof = false;
+		while (true) {
+			int newline = search;
+			while (newline < end && buffer[newline] != '\n')
+				newline++;
+			if (newline < end) {
+				parseLine(start, newline);
+				start = search = newline + 1;
+				continue;
+			}
+			if (eof) {
+				if (start < end)
+					parseLine(start, end);
+				return builder.build();
+			}
+			//Keeps the partial line at the start of the buffer, which grows for lines longer than it
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			if (end == buffer.length)
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			search = end;
+			int read = in.read(buffer, end, buffer.length - end);
+			if (read < 0)
+				eof = true;
+			else
+				end += read;
+		}
+	}
+
+	private void parseLine(int from, int to) throws RuleFormatException {
+		line++;
+		if (to > from && buffer[to - 1] == '\r')
+			to--;
+		int fields = 0;
+		int position = from;
+		while (fields < fieldFrom.length) {
+			while (position < to && isBlank(buffer[position]))
+				position++;
+			if (position == to)
+				break;
+			fieldFrom[fields] = position;
+			while (position < to && !isBlank(buffer[position]))
+				position++;
+			fieldTo[fields++] = position;
+		}
+		if (fields == 0 || buffer[fieldFrom[0]] == '#')
+			return;
+		if (fields < FIELDS || fields > FIELDS + 1)
+			throw error(fields < FIELDS ? "Expected at least " + FIELDS + " fields"
+					: "Expected at most " + (FIELDS + 1) + " fields");
+
+		srcCount = 0;
+		int entry = fieldFrom[SRC_ADDRESSES];
+		while (true) {
+			int comma = entry;
+			while (comma < fieldTo[SRC_ADDRESSES] && buffer[comma] != ',')
+				comma++;
+			long netAndMask = Parsers.parseCidr(buffer, entry, comma, false);
+			if (netAndMask == Parsers.INVALID)
+				throw error("Invalid source network '" + text(entry, comma) + "'");
+			addSource(netAndMask);
+			if (comma == fieldTo[SRC_ADDRESSES])
+				break;
+			entry = comma + 1;
+		}
+
+		long dstNetAndMask = Parsers.parseCidr(buffer, fieldFrom[DST_ADDRESS], fieldTo[DST_ADDRESS], false);
+		if (dstNetAndMask == Parsers.INVALID)
+			throw error("Invalid destination network '" + field(DST_ADDRESS) + "'");
+
+		int protocolCode = protocolCode(fieldFrom[PROTOCOL], fieldTo[PROTOCOL]);
+
+		long portRange = Parsers.parsePortRange(buffer, fieldFrom[DST_PORT], fieldTo[DST_PORT], true);
+		if (portRange == Parsers.INVALID)
+			throw error("Invalid port range '" + field(DST_PORT) + "'");
+
+		int srcOperator = operator(OPERATORS);
+		int dstOperator = singleOperator(OPERATORS + 1);
+		int portOperator = singleOperator(OPERATORS + 2);
+		int protocolOperator = singleOperator(OPERATORS + 3);
+
+		AttributeKey[] priority = fields > PRIORITY ? priority(fieldFrom[PRIORITY], fieldTo[PRIORITY]) : DEFAULT_PRIORITY;
+
+		for (int i = 0; i < srcCount; i++)
+			builder.addSource(srcNets[i], srcMasks[i]);
+		builder.addRule((int) line, OPERATOR_VALUES[srcOperator],
+				OPERATOR_VALUES[dstOperator], Utility.packedNet(dstNetAndMask), Utility.packedMask(dstNetAndMask),
+				OPERATOR_VALUES[portOperator], Parsers.portBegin(portRange), Parsers.portEnd(portRange),
+				OPERATOR_VALUES[protocolOperator], protocolCode, priority);
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private void addSource(long netAndMask) {
+		if (srcCount == srcNets.length) {
+			srcNets = Arrays.copyOf(srcNets, 2 * srcCount);
+			srcMasks = Arrays.copyOf(srcMasks, 2 * srcCount);
+		}
+		srcNets[srcCount] = Utility.packedNet(netAndMask);
+		srcMasks[srcCount++] = Utility.packedMask(netAndMask);
+	}
+
+	/**
+	 * Registers a protocol with {@link ProtocolTable}, a string being created
+	 * only the first time a spelling is seen
+	 */
+	private int protocolCode(int from, int to) {
+		for (int i = 0; i < protocols; i++) {
+			if (equals(protocolNames[i], from, to))
+				return protocolCodes[i];
+		}
+		if (protocols == protocolNames.length) {
+			protocolNames = Arrays.copyOf(protocolNames, 2 * protocols);
+			protocolCodes = Arrays.copyOf(protocolCodes, 2 * protocols);
+		}
+		protocolNames[protocols] = Arrays.copyOfRange(buffer, from, to);
+		protocolCodes[protocols] = ProtocolTable.register(text(from, to));
+		return protocolCodes[protocols++];
+	}
+
+	private boolean equals(byte[] name, int from, int to) {
+		if (name.length != to - from)
+			return false;
+		for (int i = 0; i < name.length; i++) {
+			if (name[i] != buffer[from + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The index of the name among the given names, or -1
+	 */
+	private int indexOf(byte[][] names, int from, int to) {
+		for (int i = 0; i < names.length; i++) {
+			if (equals(names[i], from, to))
+				return i;
+		}
+		return -1;
+	}
+
+	private int operator(int field) throws RuleFormatException {
+		int operator = indexOf(OPERATOR_NAMES, fieldFrom[field], fieldTo[field]);
+		if (operator < 0)
+			throw error("Invalid operator '" + field(field) + "'");
+		return operator;
+	}
+
+	private int singleOperator(int field) throws RuleFormatException {
+		int operator = operator(field);
+		if (operator == AttributeOperator.Contains.ordinal())
+			throw error("Contains operator only allowed with the source addresses");
+		return operator;
+	}
+
+	/**
+	 * Parses a comma separated list of distinct attribute keys
+	 */
+	private AttributeKey[] priority(int from, int to) throws RuleFormatException {
+		int code = 0;
+		int count = 0;
+		int seen = 0;
+		int key = from;
+		while (true) {
+			int comma = key;
+			while (comma < to && buffer[comma] != ',')
+				comma++;
+			int ordinal = indexOf(KEY_NAMES, key, comma);
+			if (ordinal < 0 || (seen & 1 << ordinal) != 0)
+				throw error("Invalid priority '" + text(from, to) + "'");
+			seen |= 1 << ordinal;
+			code |= ordinal << (2 * count++);
+			if (comma == to)
+				break;
+			key = comma + 1;
+		}
+		code |= count << 8;
+		if (priorities[code] == null) {
+			AttributeKey[] priority = new AttributeKey[count];
+			for (int i = 0; i < count; i++)
+				priority[i] = AttributeKey.values()[(code >> (2 * i)) & 3];
+			priorities[code] = priority;
+		}
+		return priorities[code];
+	}
+
+	private String field(int field) {
+		return text(fieldFrom[field], fieldTo[field]);
+	}
+
+	private String text(int from, int to) {
+		return new String(buffer, from, to - from, StandardCharsets.US_ASCII);
+	}
+
+	private RuleFormatException error(String message) {
+		return new RuleFormatException(line, message);
+	}
+
+}
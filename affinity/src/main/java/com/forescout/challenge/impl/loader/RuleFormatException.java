@@ -0,0 +1,30 @@
+package com.forescout.challenge.impl.loader;
+
+import java.io.IOException;
+
+/**
+ * Signals a line of a rule file that is not a valid rule
+ */
+public class RuleFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long line;
+
+	/**
+	 * @param line The number of the line in the file, from 1
+	 * @param message What is wrong with the line
+	 */
+	public RuleFormatException(long line, String message) {
+		super("Line " + line + ": " + message);
+		this.line = line;
+	}
+
+	/**
+	 * The number of the invalid line in the file, from 1
+	 */
+	public long getLine() {
+		return line;
+	}
+
+}
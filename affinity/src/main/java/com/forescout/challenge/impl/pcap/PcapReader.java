@@ -0,0 +1,379 @@
+package com.forescout.challenge.impl.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.Validate;
+import com.forescout.challenge.impl.Packet;
+import com.forescout.challenge.impl.PacketView;
+import com.forescout.challenge.impl.engine.CompiledClassifier;
+import com.forescout.challenge.impl.engine.RuleSet;
+
+/**
+ * Reads the records of a classic pcap file through a memory mapping of the
+ * file, without copying them. The file is mapped one window at a time and a
+ * window is mapped again from the current record when the next record does
+ * not fit in it, so captures of any size, beyond 2 GB, can be read.
+ *
+ * The IPv4 packet of the current record is exposed as a {@link PacketView}
+ * over the mapping, which is only valid until the next call to
+ * {@link #next}. Ethernet frames, with or without VLAN tags, and raw IP
+ * captures are supported.
+ *
+ * A reader is not thread safe.
+ */
+public final class PcapReader implements Closeable {
+
+	/**
+	 * Size of the windows mapped by default
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+	private static final int GLOBAL_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	private static final int MAGIC_MICROSECONDS = 0xA1B2C3D4;
+	private static final int MAGIC_NANOSECONDS = 0xA1B23C4D;
+
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_RAW = 101;
+	private static final int LINKTYPE_IPV4 = 228;
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int ETHERTYPE_QINQ = 0x88A8;
+
+	/**
+	 * Receives every IPv4 packet of a capture replayed against rules, and the
+	 * rule it was classified to
+	 */
+	public interface DecisionListener {
+		/**
+		 * @param record The index of the record in the capture, from 0
+		 * @param packet The packet, only valid during the call
+		 * @param rule The closest rule, or null if no rule matches the packet
+		 */
+		void decision(long record, IPacket packet, IRoutingRule rule);
+	}
+
+	/**
+	 * Counts of a capture replayed against rules
+	 */
+	public static final class ReplayResult {
+		private final Map<IRoutingRule, long[]> counts = new IdentityHashMap<>();
+		private long records;
+		private long packets;
+		private long unmatched;
+
+		void count(IRoutingRule rule) {
+			packets++;
+			if (rule == null) {
+				unmatched++;
+				return;
+			}
+			long[] count = counts.get(rule);
+			if (count == null)
+				counts.put(rule, count = new long[1]);
+			count[0]++;
+		}
+
+		/**
+		 * Number of records in the capture
+		 */
+		public long getRecords() {
+			return records;
+		}
+
+		/**
+		 * Number of IPv4 packets classified
+		 */
+		public long getPackets() {
+			return packets;
+		}
+
+		/**
+		 * Number of IPv4 packets no rule matches
+		 */
+		public long getUnmatched() {
+			return unmatched;
+		}
+
+		/**
+		 * Number of packets classified to every rule matching at least one
+		 */
+		public Map<IRoutingRule, Long> getCounts() {
+			Map<IRoutingRule, Long> result = new LinkedHashMap<>();
+			for (Map.Entry<IRoutingRule, long[]> entry : counts.entrySet())
+				result.put(entry.getKey(), entry.getValue()[0]);
+			return Collections.unmodifiableMap(result);
+		}
+
+		public long getCount(IRoutingRule rule) {
+			long[] count = counts.get(rule);
+			return count == null ? 0 : count[0];
+		}
+	}
+
+	private final FileChannel channel;
+	private final long size;
+	private final int windowSize;
+	private final ByteOrder order;
+	private final boolean nanoseconds;
+	private final int linkType;
+	private final int snapLength;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/**
+	 * Offset in the file of the next record header
+	 */
+	private long next = GLOBAL_HEADER_LENGTH;
+	private long record = -1;
+	private long timestamp;
+	private int capturedLength;
+	private int originalLength;
+	private boolean ipv4;
+	private final PacketView view = new PacketView();
+
+	public PcapReader(Path file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param file The pcap file
+	 * @param windowSize The size of the windows of the file mapped at once,
+	 * every record must fit in a window
+	 */
+	public PcapReader(Path file, int windowSize) throws IOException {
+		Validate.notNull(file, "Argument file cannot be null");
+		if (windowSize < GLOBAL_HEADER_LENGTH)
+			throw new IllegalArgumentException("Window size must be >= " + GLOBAL_HEADER_LENGTH);
+
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			this.size = channel.size();
+			this.windowSize = windowSize;
+			if (size < GLOBAL_HEADER_LENGTH)
+				throw new IOException("Not a pcap file: " + file);
+
+			map(0);
+			window.order(ByteOrder.BIG_ENDIAN);
+			int magic = window.getInt(0);
+			if (magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS) {
+				order = ByteOrder.BIG_ENDIAN;
+			} else if (Integer.reverseBytes(magic) == MAGIC_MICROSECONDS || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS) {
+				order = ByteOrder.LITTLE_ENDIAN;
+				magic = Integer.reverseBytes(magic);
+			} else {
+				throw new IOException("Not a pcap file: " + file);
+			}
+			window.order(order);
+			nanoseconds = magic == MAGIC_NANOSECONDS;
+			snapLength = window.getInt(16);
+			linkType = window.getInt(20) & 0x0FFFFFFF;
+			if (linkType != LINKTYPE_ETHERNET && linkType != LINKTYPE_RAW && linkType != LINKTYPE_IPV4)
+				throw new IOException("Unsupported link type " + linkType + ": " + file);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void map(long position) throws IOException {
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+		window.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+		windowStart = position;
+	}
+
+	/**
+	 * Moves to the next record
+	 * @return false at the end of the capture. A last record cut short, as
+	 * left by a capture that was interrupted, is ignored.
+	 */
+	public boolean next() throws IOException {
+		if (next + RECORD_HEADER_LENGTH > size)
+			return false;
+		if (next + RECORD_HEADER_LENGTH > windowStart + window.capacity())
+			map(next);
+
+		int header = (int) (next - windowStart);
+		window.limit(window.capacity());
+		long seconds = window.getInt(header) & 0xFFFFFFFFL;
+		long fraction = window.getInt(header + 4) & 0xFFFFFFFFL;
+		int captured = window.getInt(header + 8);
+		if (captured < 0 || captured > windowSize - RECORD_HEADER_LENGTH)
+			throw new IOException("Record " + (record + 1) + " of " + captured + " bytes does not fit a window");
+		if (next + RECORD_HEADER_LENGTH + captured > size)
+			return false;
+		if (next + RECORD_HEADER_LENGTH + captured > windowStart + window.capacity()) {
+			map(next);
+			header = 0;
+		}
+
+		record++;
+		timestamp = seconds * 1_000_000_000L + (nanoseconds ? fraction : fraction * 1000);
+		capturedLength = captured;
+		originalLength = window.getInt(header + 12);
+		next += RECORD_HEADER_LENGTH + captured;
+
+		int data = header + RECORD_HEADER_LENGTH;
+		int end = data + captured;
+		window.limit(end);
+		ipv4 = wrapIPv4(data, end);
+		return true;
+	}
+
+	private boolean wrapIPv4(int data, int end) {
+		int ip = data;
+		if (linkType == LINKTYPE_ETHERNET) {
+			int etherType = 12;
+			while (true) {
+				if (data + etherType + 2 > end)
+					return false;
+				int type = readUnsignedShort(data + etherType);
+				if (type != ETHERTYPE_VLAN && type != ETHERTYPE_QINQ) {
+					if (type != ETHERTYPE_IPV4)
+						return false;
+					break;
+				}
+				etherType += 4;
+			}
+			ip = data + etherType + 2;
+		}
+		if (ip + 20 > end || (window.get(ip) & 0xF0) != 0x40 || (window.get(ip) & 0x0F) < 5)
+			return false;
+		view.wrap(window, ip);
+		return true;
+	}
+
+	private int readUnsignedShort(int index) {
+		return ((window.get(index) & 0xFF) << 8) | (window.get(index + 1) & 0xFF);
+	}
+
+	/**
+	 * The index of the current record in the capture, from 0
+	 */
+	public long getRecord() {
+		return record;
+	}
+
+	/**
+	 * The capture time of the current record, in nanoseconds since the epoch
+	 */
+	public long getTimestampNanos() {
+		return timestamp;
+	}
+
+	public int getCapturedLength() {
+		return capturedLength;
+	}
+
+	public int getOriginalLength() {
+		return originalLength;
+	}
+
+	public int getSnapLength() {
+		return snapLength;
+	}
+
+	public int getLinkType() {
+		return linkType;
+	}
+
+	/**
+	 * Checks whether the current record holds an IPv4 packet
+	 */
+	public boolean isIPv4() {
+		return ipv4;
+	}
+
+	/**
+	 * Returns the IPv4 packet of the current record, valid until the next
+	 * call to {@link #next}
+	 * @return The packet, or null if the record holds no IPv4 packet
+	 */
+	public PacketView getPacket() {
+		return ipv4 ? view : null;
+	}
+
+	/**
+	 * Classifies every IPv4 packet from the current position to the end of
+	 * the capture, see {@link IPacket#getClosestAffinityNetwork}
+	 * @param rules The pool of rules the packets are classified against
+	 * @param attributesPriority A ordered set of attributes representing the
+	 * priority order in which attributes are evaluated
+	 * @param listener Receives every decision, or null
+	 */
+	public ReplayResult replay(Collection<IRoutingRule> rules, LinkedHashSet<AttributeKey> attributesPriority,
+			DecisionListener listener) throws IOException {
+		if (rules == null || attributesPriority == null)
+			throw new IllegalArgumentException();
+
+		ReplayResult result = new ReplayResult();
+		while (next()) {
+			result.records++;
+			if (ipv4) {
+				IRoutingRule rule = Packet.getClosestAffinityNetwork(view, rules, attributesPriority);
+				result.count(rule);
+				if (listener != null)
+					listener.decision(record, view, rule);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Classifies every IPv4 packet from the current position to the end of
+	 * the capture with the given engine, see {@link CompiledClassifier#classify}
+	 * @param engine The engine classifying the packets
+	 * @param attributesPriority A ordered set of attributes representing the
+	 * priority order in which attributes are evaluated
+	 * @param listener Receives every decision, or null
+	 */
+	public ReplayResult replay(CompiledClassifier engine, LinkedHashSet<AttributeKey> attributesPriority,
+			DecisionListener listener) throws IOException {
+		if (engine == null || attributesPriority == null)
+			throw new IllegalArgumentException();
+
+		if (attributesPriority.isEmpty() || engine.getRuleSet().size() == 0)
+			throw new AssertionError("Priority or Rules is empty");
+
+		RuleSet ruleSet = engine.getRuleSet();
+		AttributeKey[] priority = attributesPriority.toArray(new AttributeKey[attributesPriority.size()]);
+		ReplayResult result = new ReplayResult();
+		while (next()) {
+			result.records++;
+			if (ipv4) {
+				int slot = engine.lookup(view.getSrcAddr(), view.getDstAddr(), view.getDstPort(),
+						view.getProtocolCode(), priority);
+				IRoutingRule rule = slot == CompiledClassifier.NO_MATCH ? null : ruleSet.getRule(slot);
+				result.count(rule);
+				if (listener != null)
+					listener.decision(record, view, rule);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+}
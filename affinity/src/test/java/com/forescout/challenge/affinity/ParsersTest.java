@@ -0,0 +1,324 @@
+package com.forescout.challenge.affinity;
+
+import com.forescout.challenge.affinity.attributes.values.Pair;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Checks the parsers against the regular expressions and tokenizers they
+ * replace, on random strings close to the valid forms
+ */
+public class ParsersTest {
+
+    private static final int SAMPLES = 200000;
+
+    private static final Pattern CIDR = Pattern.compile("^(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})/(\\d{1,2})$");
+
+    private static final char[] NOISE = {'.', '/', '-', '0', '9', '5', ' ', '+', 'a', ','};
+
+    /**
+     * Creates a string near an address, a network or a port range: valid
+     * forms with out of range numbers, leading zeros, missing or extra parts,
+     * then a few random edits
+     */
+    private static String createString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int shape = random.nextInt(3);
+        if (shape < 2) {
+            int octets = random.nextInt(10) == 0 ? 3 + random.nextInt(3) : 4;
+            for (int i = 0; i < octets; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(number(random, 300));
+            }
+            if (shape == 1) {
+                sb.append('/').append(number(random, 40));
+            }
+        } else {
+            sb.append(number(random, 70000));
+            if (random.nextBoolean()) {
+                sb.append('-').append(number(random, 70000));
+            }
+        }
+        int edits = random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0;
+        for (int i = 0; i < edits; i++) {
+            int at = random.nextInt(sb.length() + 1);
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.insert(at, NOISE[random.nextInt(NOISE.length)]);
+                    break;
+                case 1:
+                    if (at < sb.length()) {
+                        sb.deleteCharAt(at);
+                    }
+                    break;
+                default:
+                    if (at < sb.length()) {
+                        sb.setCharAt(at, NOISE[random.nextInt(NOISE.length)]);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String number(Random random, int bound) {
+        String number = String.valueOf(random.nextInt(random.nextBoolean() ? bound : 10));
+        return random.nextInt(10) == 0 ? "0" + number : number;
+    }
+
+    private static boolean octetsInRange(Matcher m) {
+        for (int i = 1; i <= 4; i++) {
+            if (Integer.parseInt(m.group(i)) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The original {@link Utility#string2Ip(String)}, parsing with a tokenizer
+     */
+    private static long referenceString2Ip(String ip) {
+        try {
+            if (ip == null || ip.equals("") || ip.equals("-")) {
+                return 0L;
+            }
+            StringTokenizer st = new StringTokenizer(ip, ".");
+            long numParts = st.countTokens();
+            if (numParts == 0) {
+                throw new IllegalArgumentException("Invalid IP address: empty argument");
+            }
+            if (numParts > 4) {
+                throw new IllegalArgumentException("Invalid IP address: too many tokens");
+            }
+            long ipInt = 0;
+            while (st.hasMoreTokens()) {
+                long tokenVal = Integer.parseInt(st.nextToken());
+                ipInt = (ipInt << 8) + tokenVal;
+            }
+            return ipInt;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The original {@link Utility#cidrStringToNetAndMask(String)}, with substrings
+     */
+    private static Pair<Long, Integer> referenceCidrStringToNetAndMask(String cidrString) {
+        String cidrBitsStr;
+        String ip;
+        try {
+            ip = cidrString.substring(0, cidrString.indexOf('/'));
+            cidrBitsStr = cidrString.substring(cidrString.indexOf('/') + 1);
+        } catch (StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Supplied string is not a valid CIDR notation");
+        }
+        int cidrBits;
+        try {
+            cidrBits = Integer.parseInt(cidrBitsStr);
+            if (cidrBits < 0) {
+                throw new IllegalArgumentException("Negative CIDR bits");
+            }
+            if (cidrBits > 32) {
+                throw new IllegalArgumentException("CIDR bits > 32");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Argument address has invalid CIDR bits: " + e.getMessage());
+        }
+        return new Pair<>(referenceString2Ip(ip), cidrBits);
+    }
+
+    /**
+     * The original {@link PortRange#parse(String, boolean)}, with regular expressions
+     */
+    private static PortRange referencePortRange(String value, boolean acceptSingleRangePort) {
+        if (value.matches(PortRange.SINGLE_PORT_REGEX)) {
+            if (!PortRange.isValidPort(value)) {
+                throw new NumberFormatException("Invalid single port format");
+            }
+            return new PortRange(Integer.valueOf(value));
+        }
+        Matcher m = PortRange.portRangePattern.matcher(value);
+        if (m.matches() && PortRange.isValidPortRange(m.group(1), m.group(2), acceptSingleRangePort)) {
+            return new PortRange(Integer.valueOf(m.group(1)), Integer.valueOf(m.group(2)));
+        }
+        throw new NumberFormatException("Invalid port range format");
+    }
+
+    private static String message(RuntimeException e) {
+        return e.getClass().getName() + ": " + e.getMessage();
+    }
+
+    @Test
+    public void testParseIp() {
+        Random random = new Random(41);
+        for (int i = 0; i < SAMPLES; i++) {
+            String s = createString(random);
+            Matcher m = CIDR.matcher(s + "/0");
+            long expected = s.matches(Utility.STRICT_IP_MATCH_REGEX) && m.matches() && octetsInRange(m)
+                    ? referenceString2Ip(s) : Parsers.INVALID;
+            Assert.assertEquals(s, expected, Parsers.parseIp(s, 0, s.length()));
+
+            String padded = "1." + s + "/8";
+            byte[] bytes = padded.getBytes(StandardCharsets.US_ASCII);
+            Assert.assertEquals(s, expected, Parsers.parseIp(padded, 2, 2 + s.length()));
+            Assert.assertEquals(s, expected, Parsers.parseIp(bytes, 2, 2 + s.length()));
+
+            Assert.assertEquals(s, referenceString2Ip(s), Utility.string2Ip(s));
+        }
+    }
+
+    @Test
+    public void testParseCidr() {
+        Random random = new Random(43);
+        for (int i = 0; i < SAMPLES; i++) {
+            String s = createString(random);
+            Matcher m = CIDR.matcher(s);
+            long expected = m.matches() && octetsInRange(m) && Integer.parseInt(m.group(5)) <= 32
+                    ? referenceString2Ip(s.substring(0, s.indexOf('/'))) << 6 | Integer.parseInt(m.group(5))
+                    : Parsers.INVALID;
+            Assert.assertEquals(s, expected, Parsers.parseCidr(s, 0, s.length(), true));
+            Assert.assertEquals(s, expected, Parsers.parseCidr(s.getBytes(StandardCharsets.US_ASCII), 0, s.length(), true));
+
+            long expectedPlain = s.indexOf('/') < 0 && Parsers.parseIp(s, 0, s.length()) != Parsers.INVALID
+                    ? Parsers.parseIp(s, 0, s.length()) << 6 | 32 : expected;
+            Assert.assertEquals(s, expectedPlain, Parsers.parseCidr(s, 0, s.length(), false));
+            Assert.assertEquals(s, expectedPlain, Parsers.parseCidr(s.getBytes(StandardCharsets.US_ASCII), 0, s.length(), false));
+
+            String expectedMessage = null;
+            Pair<Long, Integer> expectedPair = null;
+            try {
+                expectedPair = referenceCidrStringToNetAndMask(s);
+            } catch (IllegalArgumentException e) {
+                expectedMessage = message(e);
+            }
+            try {
+                Assert.assertEquals(s, expectedPair, Utility.cidrStringToNetAndMask(s));
+                Assert.assertNull(s, expectedMessage);
+            } catch (IllegalArgumentException e) {
+                Assert.assertEquals(s, expectedMessage, message(e));
+            }
+        }
+    }
+
+    @Test
+    public void testValidateCIDR() {
+        Random random = new Random(47);
+        Pattern reference = Pattern.compile(Validate.STRICT_CIDR_MATCH_GROUP_OCT_REGEX);
+        for (int i = 0; i < SAMPLES; i++) {
+            String s = createString(random);
+            Matcher m = reference.matcher(s);
+            boolean valid;
+            try {
+                valid = s.isEmpty() || m.matches() && octetsInRange(m) && Integer.parseInt(m.group(5)) >= 0 && Integer.parseInt(m.group(5)) <= 32;
+            } catch (NumberFormatException e) {
+                valid = false;
+            }
+            try {
+                Validate.validateCIDR(s, false);
+                Assert.assertTrue(s, valid);
+            } catch (RuntimeException e) {
+                Assert.assertFalse(s, valid);
+            }
+        }
+    }
+
+    @Test
+    public void testParsePortRange() {
+        Random random = new Random(53);
+        for (int i = 0; i < SAMPLES; i++) {
+            String s = createString(random);
+            for (boolean acceptSingleRangePort : new boolean[]{false, true}) {
+                PortRange expected = null;
+                String expectedMessage = null;
+                try {
+                    expected = referencePortRange(s, acceptSingleRangePort);
+                } catch (NumberFormatException e) {
+                    expectedMessage = message(e);
+                }
+
+                long packed = Parsers.parsePortRange(s, 0, s.length(), acceptSingleRangePort);
+                Assert.assertEquals(s, packed, Parsers.parsePortRange(s.getBytes(StandardCharsets.US_ASCII), 0, s.length(), acceptSingleRangePort));
+                if (expected == null) {
+                    Assert.assertEquals(s, Parsers.INVALID, packed);
+                } else {
+                    Assert.assertEquals(s, expected, new PortRange(Parsers.portBegin(packed), Parsers.portEnd(packed)));
+                }
+
+                if (s.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Assert.assertEquals(s, expected, PortRange.parse(s, acceptSingleRangePort));
+                    Assert.assertNull(s, expectedMessage);
+                } catch (NumberFormatException e) {
+                    Assert.assertEquals(s, expectedMessage, message(e));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIsIpInsideNet() {
+        Random random = new Random(59);
+        for (int i = 0; i < SAMPLES; i++) {
+            String s = createString(random);
+            long ip = random.nextBoolean() ? random.nextInt() & 0xFFFFFFFFL : referenceString2Ip(s) + random.nextInt(3) - 1;
+            boolean expected;
+            StringTokenizer st = new StringTokenizer(s, "/");
+            if (st.countTokens() == 2) {
+                try {
+                    expected = Utility.isIpInsideNet(ip, referenceString2Ip(st.nextToken()), Integer.parseInt(st.nextToken()));
+                } catch (NumberFormatException e) {
+                    expected = false;
+                }
+            } else {
+                expected = s.matches(Utility.STRICT_IP_MATCH_REGEX) && referenceString2Ip(s) == ip;
+            }
+            Assert.assertEquals(s + " " + ip, expected, Utility.isIpInsideNet(ip, s));
+        }
+    }
+
+    @Test
+    public void testNoAllocation() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        String[] strings = {"10.2.1.1/32", "192.168.0.0/16", "1-1024", "60000", "8.8.8.8", "10.2.1/24"};
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 40; round++) {
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 1000; i++) {
+                String s = strings[i % strings.length];
+                byte[] b = bytes[i % strings.length];
+                sink += Parsers.parseCidr(s, 0, s.length(), false) + Parsers.parseCidr(b, 0, b.length, true)
+                        + Parsers.parsePortRange(s, 0, s.length(), false) + Parsers.parsePortRange(b, 0, b.length, true)
+                        + Utility.cidrStringToPackedNetAndMask(strings[i % 2]);
+            }
+            allocated = Math.min(allocated, allocationBean.getThreadAllocatedBytes(threadId) - before);
+        }
+        Assert.assertNotEquals(0, sink);
+        // The allocation counter itself allocates a little
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
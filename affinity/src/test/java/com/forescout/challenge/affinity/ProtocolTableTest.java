@@ -0,0 +1,65 @@
+package com.forescout.challenge.affinity;
+
+import com.forescout.challenge.impl.Packet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProtocolTableTest {
+
+    @Test
+    public void testIanaCodes() {
+        Assert.assertEquals(6, ProtocolTable.code("TCP"));
+        Assert.assertEquals(6, ProtocolTable.code("tcp"));
+        Assert.assertEquals(6, ProtocolTable.code("6"));
+        Assert.assertEquals(17, ProtocolTable.code("Udp"));
+        Assert.assertEquals(1, ProtocolTable.code("ICMP"));
+        Assert.assertEquals(200, ProtocolTable.code("200"));
+        Assert.assertEquals("TCP", ProtocolTable.name(6));
+        Assert.assertEquals(ProtocolTable.UNKNOWN, ProtocolTable.code(null));
+        Assert.assertEquals(6, ProtocolTable.register("Tcp"));
+    }
+
+    @Test
+    public void testDynamicCodes() {
+        int code = ProtocolTable.register("my-protocol");
+        Assert.assertTrue(code >= ProtocolTable.FIRST_DYNAMIC_CODE);
+        Assert.assertEquals(code, ProtocolTable.code("MY-PROTOCOL"));
+        Assert.assertEquals(code, ProtocolTable.register("My-Protocol"));
+        Assert.assertNotEquals(code, ProtocolTable.register("my-other-protocol"));
+        Assert.assertEquals("my-protocol", ProtocolTable.name(code));
+    }
+
+    /**
+     * Packet protocols are looked up, only rules register a protocol
+     */
+    @Test
+    public void testLookupDoesNotRegister() {
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(ProtocolTable.UNKNOWN, ProtocolTable.code("packet-protocol-" + i));
+        }
+        Assert.assertEquals(ProtocolTable.UNKNOWN, new Packet(1L, 2L, 3, "Packet-Protocol-1").getProtocolCode());
+    }
+
+    /**
+     * A packet created before a rule registered its protocol matches the rule
+     */
+    @Test
+    public void testLateRegistration() {
+        Packet packet = new Packet(1L, 2L, 3, "late-protocol");
+        Assert.assertEquals(ProtocolTable.UNKNOWN, packet.getProtocolCode());
+        int code = ProtocolTable.register("LATE-PROTOCOL");
+        Assert.assertEquals(code, packet.getProtocolCode());
+    }
+
+    @Test
+    public void testManyRegistrations() {
+        int first = ProtocolTable.register("bulk-protocol-0");
+        for (int i = 1; i < 2000; i++) {
+            Assert.assertEquals(first + i, ProtocolTable.register("bulk-protocol-" + i));
+        }
+        for (int i = 0; i < 2000; i++) {
+            Assert.assertEquals(first + i, ProtocolTable.code("BULK-PROTOCOL-" + i));
+        }
+        Assert.assertEquals(6, ProtocolTable.code("tcp"));
+    }
+}
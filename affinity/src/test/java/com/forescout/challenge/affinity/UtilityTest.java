@@ -0,0 +1,68 @@
+package com.forescout.challenge.affinity;
+
+import com.forescout.challenge.affinity.attributes.values.Pair;
+import java.util.StringTokenizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UtilityTest {
+
+    private static final String[] NETWORKS = {
+            "10.2.1.1/32", "10.2.1.0/31", "192.168.0.0/16", "0.0.0.0/0", "8.8.8.8/32", "172.0.0.0/8",
+            "10.2.1.1", "010.002.001.001/24", "999.1.1.1/8", "10.2.1/24", "10.2.1.1/33", "10.2.1.1/-1",
+            "10.2.1.1/024", "10.2..1/24", "10.2.1.1.1/24", "/24", "10.2.1.1/", "abc", "1.2.3.4/8/8", "+1.2.3.4/8"
+    };
+
+    private static final long[] ADDRESSES = {
+            Utility.string2Ip("10.2.1.1"), Utility.string2Ip("10.2.1.0"), Utility.string2Ip("192.168.7.1"),
+            Utility.string2Ip("8.8.8.8"), Utility.string2Ip("172.16.0.1"), Utility.string2Ip("1.1.1.1"), 0L
+    };
+
+    /**
+     * The reference implementation, parsing with a tokenizer and a regular expression
+     */
+    private static boolean isIpInsideNet(long ip, String ipAndNetmask) {
+        StringTokenizer st = new StringTokenizer(ipAndNetmask, "/");
+        if (st.countTokens() == 2) {
+            try {
+                long net = Utility.string2Ip(st.nextToken());
+                return Utility.isIpInsideNet(ip, net, Integer.parseInt(st.nextToken()));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        } else {
+            return ipAndNetmask.matches(Utility.STRICT_IP_MATCH_REGEX) && Utility.string2Ip(ipAndNetmask) == ip;
+        }
+    }
+
+    @Test
+    public void testIsIpInsideNet() {
+        for (String network : NETWORKS) {
+            for (long address : ADDRESSES) {
+                Assert.assertEquals(network + " " + address,
+                        isIpInsideNet(address, network), Utility.isIpInsideNet(address, network));
+            }
+        }
+    }
+
+    @Test
+    public void testCidrStringToPackedNetAndMask() {
+        for (String network : NETWORKS) {
+            Pair<Long, Integer> expected;
+            try {
+                expected = Utility.cidrStringToNetAndMask(network);
+            } catch (IllegalArgumentException e) {
+                try {
+                    Utility.cidrStringToPackedNetAndMask(network);
+                    Assert.fail(network);
+                } catch (IllegalArgumentException packedException) {
+                    Assert.assertEquals(e.getMessage(), packedException.getMessage());
+                }
+                continue;
+            }
+            long packed = Utility.cidrStringToPackedNetAndMask(network);
+            Assert.assertEquals(network, (long) expected.getFirst(), Utility.packedNet(packed));
+            Assert.assertEquals(network, (int) expected.getSecond(), Utility.packedMask(packed));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import com.forescout.challenge.impl.engine.RandomRules;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentClassificationTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testSameResultsAsSingleThreaded() throws Exception {
+        Random random = new Random(17);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 200);
+        // Any on a source pool not containing the packet address cannot be ranked
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = Factory.createRoutingRule1().getDefaultAttributesPriority();
+
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+        List<IRoutingRule> expected = new ArrayList<>();
+        for (IPacket packet : packets) {
+            expected.add(packet.getClosestAffinityNetwork(rules, priority));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<IRoutingRule>>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                futures.add(executor.submit(() -> {
+                    List<IRoutingRule> actual = new ArrayList<>();
+                    for (IPacket packet : packets) {
+                        actual.add(packet.getClosestAffinityNetwork(rules, priority));
+                    }
+                    return actual;
+                }));
+            }
+            for (Future<List<IRoutingRule>> future : futures) {
+                Assert.assertEquals(expected, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUniqueIds() throws Exception {
+        Callable<List<Integer>> createRules = () -> {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ids.add(new RoutingRule(Collections.singleton("10.0.0.0/8"), "10.2.1.0/24", "TCP",
+                        new PortRange(21)).getId());
+            }
+            return ids;
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<Integer>>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                futures.add(executor.submit(createRules));
+            }
+            Set<Integer> ids = new HashSet<>();
+            for (Future<List<Integer>> future : futures) {
+                ids.addAll(future.get());
+            }
+            Assert.assertEquals(THREADS * 1000, ids.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.engine.RandomRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecisionTracerTest {
+
+    private static List<String> events(DecisionTracer.Trace trace, DecisionTracer.EventType type) {
+        List<String> events = new ArrayList<>();
+        for (int event = 0; event < trace.getEventCount(); event++) {
+            if (trace.getEventType(event) == type) {
+                events.add(trace.getEventRuleId(event) + " " + trace.getEventAttribute(event));
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testDecisionPath() {
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        IRoutingRule rule3 = Factory.createRoutingRule3();
+        List<IRoutingRule> rules = Arrays.asList(rule1, rule2, rule3);
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+        DecisionTracer tracer = new DecisionTracer(1, 8, 64);
+
+        // The destination network decides
+        Assert.assertEquals(rule1, tracer.classify(packet, rules, IRoutingRule.defaultAttributesPriority));
+        // The source network decides
+        Assert.assertEquals(rule2, tracer.classify(packet, rules, rule2.getDefaultAttributesPriority()));
+        // The ports score first, then the address
+        LinkedHashSet<AttributeKey> portFirst = new LinkedHashSet<>(Arrays.asList(
+                AttributeKey.dstPort, AttributeKey.protocol, AttributeKey.dstAddress, AttributeKey.srcAddresses));
+        IRoutingRule portWinner = tracer.classify(packet, rules, portFirst);
+        // Two rules equal on every attribute evaluated
+        IRoutingRule copy = Factory.createRoutingRule1();
+        Assert.assertTrue(copy.getId() > rule1.getId());
+        LinkedHashSet<AttributeKey> singleAttributes = new LinkedHashSet<>(Arrays.asList(AttributeKey.dstPort, AttributeKey.protocol));
+        Assert.assertEquals(rule1, tracer.classify(packet, Arrays.asList(copy, rule1), singleAttributes));
+        // No rule
+        Assert.assertNull(tracer.classify(Factory.createPacket("1.1.1.1", "10.2.1.1", 512, "UDP"), rules, portFirst));
+
+        List<DecisionTracer.Trace> traces = tracer.dump();
+        Assert.assertEquals(5, traces.size());
+
+        DecisionTracer.Trace trace = traces.get(0);
+        Assert.assertEquals(0, trace.getSequence());
+        Assert.assertEquals(packet.getSrcAddr(), trace.getSrcAddr());
+        Assert.assertEquals(packet.getDstAddr(), trace.getDstAddr());
+        Assert.assertEquals(512, trace.getDstPort());
+        Assert.assertEquals(packet.getProtocolCode(), trace.getProtocolCode());
+        Assert.assertEquals(new ArrayList<>(IRoutingRule.defaultAttributesPriority), trace.getPriority());
+        Assert.assertEquals(Arrays.asList(rule3.getId() + " dstPort"), events(trace, DecisionTracer.EventType.DROPPED));
+        Assert.assertEquals(Arrays.asList(rule1.getId() + " dstAddress", rule2.getId() + " dstAddress"),
+                events(trace, DecisionTracer.EventType.NETWORK));
+        Assert.assertEquals(rule1.getId(), trace.getWinnerId());
+        Assert.assertTrue(trace.isCompleted());
+        Assert.assertTrue(trace.toString(), trace.toString().contains("dstAddress: " + rule1.getId() + "=10.2.1.1/32, "
+                + rule2.getId() + "=10.2.1.0/31"));
+        Assert.assertTrue(trace.toString(), trace.toString().endsWith("winner " + rule1.getId()));
+
+        trace = traces.get(1);
+        Assert.assertEquals(Arrays.asList(rule1.getId() + " srcAddresses", rule2.getId() + " srcAddresses"),
+                events(trace, DecisionTracer.EventType.NETWORK));
+        Assert.assertEquals(rule2.getId(), trace.getWinnerId());
+
+        trace = traces.get(2);
+        Assert.assertEquals(Arrays.asList(rule1.getId() + " dstPort", rule2.getId() + " dstPort"),
+                events(trace, DecisionTracer.EventType.SCORE).subList(0, 2));
+        Assert.assertEquals(portWinner.getId(), trace.getWinnerId());
+
+        trace = traces.get(3);
+        Assert.assertEquals(Arrays.asList(copy.getId() + " dstPort", rule1.getId() + " dstPort",
+                copy.getId() + " protocol", rule1.getId() + " protocol"), events(trace, DecisionTracer.EventType.SCORE));
+        Assert.assertEquals(2, events(trace, DecisionTracer.EventType.TIE_BREAK).size());
+        Assert.assertEquals(rule1.getId(), trace.getWinnerId());
+        Assert.assertTrue(trace.toString(), trace.toString().contains("lowest id of: " + copy.getId() + ", " + rule1.getId()));
+
+        trace = traces.get(4);
+        Assert.assertEquals(3, events(trace, DecisionTracer.EventType.DROPPED).size());
+        Assert.assertEquals(DecisionTracer.NO_RULE, trace.getWinnerId());
+        Assert.assertTrue(trace.toString(), trace.toString().endsWith("no rule"));
+    }
+
+    @Test
+    public void testSamplingAndRing() {
+        Random random = new Random(71);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 50);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        DecisionTracer tracer = new DecisionTracer(3, 10, 8);
+        List<IRoutingRule> winners = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            winners.add(tracer.classify(RandomRules.createPacket(random), rules, IRoutingRule.defaultAttributesPriority));
+        }
+
+        // Every third packet, the last ten kept
+        List<DecisionTracer.Trace> traces = tracer.dump();
+        Assert.assertEquals(10, traces.size());
+        for (int i = 0; i < traces.size(); i++) {
+            DecisionTracer.Trace trace = traces.get(i);
+            Assert.assertEquals(90 + i, trace.getSequence());
+            IRoutingRule winner = winners.get(3 * (90 + i) + 2);
+            Assert.assertEquals(winner == null ? DecisionTracer.NO_RULE : winner.getId(), trace.getWinnerId());
+            // Most of the 50 rules are dropped, past the 8 events of a record
+            Assert.assertEquals(8, trace.getEventCount());
+            Assert.assertTrue(trace.getLostEvents() > 0);
+        }
+
+        // Packets classified without the tracer are not traced, nor counted by its sampling
+        for (int i = 0; i < 3; i++) {
+            RandomRules.createPacket(random).getClosestAffinityNetwork(rules, IRoutingRule.defaultAttributesPriority);
+        }
+        Assert.assertEquals(traces.get(9).getSequence(), tracer.dump().get(9).getSequence());
+        tracer.classify(RandomRules.createPacket(random), rules, IRoutingRule.defaultAttributesPriority);
+        tracer.classify(RandomRules.createPacket(random), rules, IRoutingRule.defaultAttributesPriority);
+        Assert.assertEquals(traces.get(9).getSequence(), tracer.dump().get(9).getSequence());
+        tracer.classify(RandomRules.createPacket(random), rules, IRoutingRule.defaultAttributesPriority);
+        Assert.assertEquals(traces.get(9).getSequence() + 1, tracer.dump().get(9).getSequence());
+    }
+
+    @Test
+    public void testConcurrentTracing() throws Exception {
+        Random random = new Random(73);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 100);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        DecisionTracer tracer = new DecisionTracer(2, 4, 256);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                long seed = thread;
+                futures.add(executor.submit(() -> {
+                    Random threadRandom = new Random(seed);
+                    for (int i = 0; i < 5000; i++) {
+                        tracer.classify(RandomRules.createPacket(threadRandom), rules, IRoutingRule.defaultAttributesPriority);
+                    }
+                }));
+            }
+            // Dumps while the ring is written
+            while (!futures.stream().allMatch(Future::isDone)) {
+                for (DecisionTracer.Trace trace : tracer.dump()) {
+                    Assert.assertTrue(trace.getEventCount() <= 256);
+                    Assert.assertEquals(IRoutingRule.defaultAttributesPriority.size(), trace.getPriority().size());
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every trace explains the decision of its packet
+        for (DecisionTracer.Trace trace : tracer.dump()) {
+            IPacket packet = new Packet(trace.getSrcAddr(), trace.getDstAddr(), trace.getDstPort(),
+                    ProtocolTable.name(trace.getProtocolCode()));
+            IRoutingRule winner = packet.getClosestAffinityNetwork(rules, IRoutingRule.defaultAttributesPriority);
+            Assert.assertEquals(winner == null ? DecisionTracer.NO_RULE : winner.getId(), trace.getWinnerId());
+        }
+        Assert.assertEquals(4, tracer.dump().size());
+    }
+}
@@ -0,0 +1,84 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.engine.RandomRules;
+import com.forescout.challenge.impl.engine.RoutingMetrics;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class PacketTest {
+
+    private static final AttributeKey[] PRIORITY = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+
+    /**
+     * Classifies a packet against the rules along one of the object paths
+     */
+    private interface ObjectPath {
+        IRoutingRule classify(IPacket packet, List<IRoutingRule> rules);
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() {
+        assertNoAllocation((packet, rules) -> Packet.getClosestAffinityNetwork(packet, rules, PRIORITY));
+    }
+
+    @Test
+    public void testNoAllocationFromSet() {
+        // LinkedHashSet.toArray allocates an iterator before JDK 10
+        Assume.assumeFalse(System.getProperty("java.specification.version").startsWith("1."));
+        assertNoAllocation((packet, rules) -> packet.getClosestAffinityNetwork(rules, IRoutingRule.defaultAttributesPriority));
+    }
+
+    @Test
+    public void testNoAllocationWhileMeasured() {
+        RoutingMetrics.ObjectPathMetrics objectPath = new RoutingMetrics().instrumentObjectPath("objects", 4096);
+        assertNoAllocation((packet, rules) -> objectPath.classify(packet, rules, PRIORITY));
+    }
+
+    private static void assertNoAllocation(ObjectPath objectPath) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(3);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 1000);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        IPacket[] packets = new IPacket[256];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = RandomRules.createPacket(random);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        // Classes are loaded and the buffers of the thread grown on the first round
+        classify(objectPath, packets, rules);
+        long counter = allocationBean.getThreadAllocatedBytes(threadId);
+        counter = allocationBean.getThreadAllocatedBytes(threadId) - counter;
+        // The JIT replacing compiled code may allocate in the thread during a round, a path
+        // allocating per packet allocates in every round
+        long allocated = -1;
+        for (int round = 0; round < 3 && allocated != 0; round++) {
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            classify(objectPath, packets, rules);
+            allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - counter;
+        }
+        Assert.assertEquals(allocated + " bytes allocated", 0, allocated);
+    }
+
+    private static void classify(ObjectPath objectPath, IPacket[] packets, List<IRoutingRule> rules) {
+        for (IPacket packet : packets) {
+            objectPath.classify(packet, rules);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.engine.RandomRules;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PacketViewTest {
+
+    /**
+     * Writes an IPv4 header with options of the given length, followed by the
+     * first four bytes of a TCP or UDP header
+     */
+    static void putFrame(ByteBuffer buffer, IPacket packet, int optionsLength, int fragmentOffset) {
+        int headerLength = 20 + optionsLength;
+        buffer.put((byte) (0x40 | headerLength / 4));
+        buffer.put((byte) 0);
+        buffer.putShort((short) (headerLength + 4));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) fragmentOffset);
+        buffer.put((byte) 64);
+        buffer.put((byte) packet.getProtocolCode());
+        buffer.putShort((short) 0);
+        buffer.putInt((int) packet.getSrcAddr());
+        buffer.putInt((int) packet.getDstAddr());
+        for (int i = 0; i < optionsLength; i++) {
+            buffer.put((byte) 0);
+        }
+        buffer.putShort((short) 40000);
+        buffer.putShort((short) packet.getDstPort());
+    }
+
+    @Test
+    public void testFields() {
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 65000, "UDP");
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64))) {
+            buffer.position(8);
+            putFrame(buffer, packet, 8, 0);
+            buffer.flip();
+
+            PacketView view = new PacketView(buffer, 8);
+            Assert.assertEquals(packet.getSrcAddr(), view.getSrcAddr());
+            Assert.assertEquals(packet.getDstAddr(), view.getDstAddr());
+            Assert.assertEquals(65000, view.getDstPort());
+            Assert.assertEquals("UDP", view.getProtocol());
+            Assert.assertEquals(ProtocolTable.code("UDP"), view.getProtocolCode());
+            Assert.assertEquals(32, view.getTotalLength());
+            Assert.assertEquals(0, buffer.position());
+
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            Assert.assertEquals(Utility.string2Ip("192.168.1.1"), view.getSrcAddr());
+            Assert.assertEquals(65000, view.getDstPort());
+        }
+    }
+
+    @Test
+    public void testNoPort() {
+        ByteBuffer buffer = ByteBuffer.allocate(96);
+        putFrame(buffer, Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "ICMP"), 0, 0);
+        putFrame(buffer, Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "TCP"), 0, 185);
+        putFrame(buffer, Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "TCP"), 0, 0);
+
+        PacketView view = new PacketView();
+        Assert.assertEquals("ICMP", view.wrap(buffer, 0).getProtocol());
+        Assert.assertEquals(0, view.getDstPort());
+        Assert.assertEquals("Not the first fragment", 0, view.wrap(buffer, 24).getDstPort());
+        Assert.assertEquals(21, view.wrap(buffer, 48).getDstPort());
+        buffer.limit(70);
+        Assert.assertEquals("Truncated transport header", 0, view.getDstPort());
+    }
+
+    @Test
+    public void testNoIPv4Header() {
+        ByteBuffer buffer = ByteBuffer.allocate(40);
+        PacketView view = new PacketView();
+        try {
+            view.wrap(buffer, 0);
+            Assert.fail("Version 0");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        putFrame(buffer, Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "TCP"), 0, 0);
+        try {
+            view.wrap(buffer, 24);
+            Assert.fail("Past the limit");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testClassifySameAsPacket() {
+        Random random = new Random(17);
+        List<IRoutingRule> rules = Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2(),
+                Factory.createRoutingRule3(), Factory.createRoutingRule4());
+        List<IRoutingRule> randomRules = RandomRules.createRules(random, 200);
+        for (IRoutingRule rule : randomRules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        List<IPacket> packets = Arrays.asList(
+                Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP"),
+                Factory.createPacket("10.1.1.1", "10.2.1.0", 512, "TCP"),
+                Factory.createPacket("8.8.8.8", "10.2.1.1", 21, "TCP"),
+                Factory.createPacket("1.1.1.1", "10.2.1.1", 21, "UDP"));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(24 * 1000);
+        for (IPacket packet : packets) {
+            putFrame(buffer, packet, 0, 0);
+        }
+        while (buffer.remaining() >= 24) {
+            putFrame(buffer, RandomRules.createPacket(random), 0, 0);
+        }
+        buffer.flip();
+
+        PacketView view = new PacketView();
+        for (int offset = 0; offset + 24 <= buffer.limit(); offset += 24) {
+            view.wrap(buffer, offset);
+            Packet packet = view.toPacket();
+            List<IRoutingRule> pool = offset < 24 * packets.size() ? rules : randomRules;
+            for (IRoutingRule priorityRule : rules) {
+                Assert.assertEquals(packet.getClosestAffinityNetwork(pool, priorityRule.getDefaultAttributesPriority()),
+                        view.getClosestAffinityNetwork(pool, priorityRule.getDefaultAttributesPriority()));
+            }
+        }
+    }
+}
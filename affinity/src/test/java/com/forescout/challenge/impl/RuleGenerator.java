@@ -0,0 +1,300 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates rule sets and packet traces in the style of ClassBench, at any
+ * scale. Networks are drawn inside a few sites, so that rules nest and
+ * overlap as they do in production, with configurable distributions of
+ * prefix lengths, port ranges, protocols and operators. The output only
+ * depends on the configuration, including its seed, except for the rule
+ * ids: they are drawn from the global counter of {@link RoutingRule}, so
+ * they increase in the order rules are generated, and rank the same way on
+ * every run, but their values depend on the rules created before.
+ */
+public class RuleGenerator {
+
+    private static final int[] WELL_KNOWN_PORTS = {20, 21, 22, 23, 25, 53, 80, 110, 123, 143, 161, 443, 993, 3306, 8080};
+
+    /**
+     * Distributions the generator draws from. Weights are relative, they do
+     * not need to add up to one.
+     */
+    public static class Config {
+        private long seed = 1;
+        private int sites = 64;
+        private int sitePrefixLength = 16;
+        private double[] srcPrefixWeights = prefixWeights(8, 2, 16, 10, 24, 40, 28, 8, 32, 40);
+        private double[] dstPrefixWeights = prefixWeights(8, 1, 16, 5, 24, 30, 28, 10, 30, 14, 32, 40);
+        private int minPoolSize = 1;
+        private int maxPoolSize = 4;
+        private double singlePortWeight = 60;
+        private double wellKnownRangeWeight = 15;
+        private double wideRangeWeight = 10;
+        private double arbitraryRangeWeight = 15;
+        private int maxPort = 0xFFFF;
+        private String[] protocols = {"TCP", "UDP", "ICMP"};
+        private double[] protocolWeights = {70, 25, 5};
+        private double srcAnyRatio = 0.1;
+        private double dstAnyRatio = 0.05;
+        private double portAnyRatio = 0.2;
+        private double protocolAnyRatio = 0.1;
+        private double matchingPacketRatio = 0.9;
+
+        /**
+         * Distributions resembling production rule sets, the default
+         */
+        public static Config classBench() {
+            return new Config();
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param sites The number of sites networks are drawn in
+         * @param sitePrefixLength The prefix length of every site
+         */
+        public Config sites(int sites, int sitePrefixLength) {
+            this.sites = sites;
+            this.sitePrefixLength = sitePrefixLength;
+            return this;
+        }
+
+        /**
+         * @param weights The weight of every prefix length of the source
+         * pools, indexed by prefix length from 0 to 32
+         */
+        public Config srcPrefixWeights(double[] weights) {
+            this.srcPrefixWeights = checkPrefixWeights(weights);
+            return this;
+        }
+
+        /**
+         * @param weights The weight of every prefix length of the destination
+         * networks, indexed by prefix length from 0 to 32
+         */
+        public Config dstPrefixWeights(double[] weights) {
+            this.dstPrefixWeights = checkPrefixWeights(weights);
+            return this;
+        }
+
+        public Config poolSize(int minPoolSize, int maxPoolSize) {
+            this.minPoolSize = minPoolSize;
+            this.maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        /**
+         * @param singlePort Weight of single well known ports
+         * @param wellKnownRange Weight of ranges inside the well known ports
+         * @param wideRange Weight of wide ranges, as {@link Factory#createPortRange4}
+         * @param arbitraryRange Weight of ranges anywhere up to the largest port
+         */
+        public Config portMix(double singlePort, double wellKnownRange, double wideRange, double arbitraryRange) {
+            this.singlePortWeight = singlePort;
+            this.wellKnownRangeWeight = wellKnownRange;
+            this.wideRangeWeight = wideRange;
+            this.arbitraryRangeWeight = arbitraryRange;
+            return this;
+        }
+
+        public Config maxPort(int maxPort) {
+            this.maxPort = maxPort;
+            return this;
+        }
+
+        public Config protocolMix(String[] protocols, double[] weights) {
+            if (protocols.length != weights.length) {
+                throw new IllegalArgumentException("Protocols and weights differ in length");
+            }
+            this.protocols = protocols.clone();
+            this.protocolWeights = weights.clone();
+            return this;
+        }
+
+        /**
+         * Ratios of the rules using the Any operator on each attribute. The
+         * other rules use Contains on the source pool and Matches on the
+         * other attributes.
+         */
+        public Config anyRatios(double src, double dst, double port, double protocol) {
+            this.srcAnyRatio = src;
+            this.dstAnyRatio = dst;
+            this.portAnyRatio = port;
+            this.protocolAnyRatio = protocol;
+            return this;
+        }
+
+        /**
+         * @param ratio The ratio of packets built to match a rule, the other
+         * packets are drawn at random inside the sites
+         */
+        public Config matchingPacketRatio(double ratio) {
+            this.matchingPacketRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Builds prefix weights from pairs of prefix length and weight
+         */
+        public static double[] prefixWeights(double... lengthsAndWeights) {
+            double[] weights = new double[33];
+            for (int i = 0; i < lengthsAndWeights.length; i += 2) {
+                weights[(int) lengthsAndWeights[i]] = lengthsAndWeights[i + 1];
+            }
+            return weights;
+        }
+
+        private static double[] checkPrefixWeights(double[] weights) {
+            if (weights.length != 33) {
+                throw new IllegalArgumentException("A weight is needed for every prefix length from 0 to 32");
+            }
+            return weights.clone();
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final long[] sites;
+    private final List<IRoutingRule> generated = new ArrayList<>();
+
+    public RuleGenerator(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.sites = new long[config.sites];
+        long siteMask = mask(config.sitePrefixLength);
+        for (int i = 0; i < sites.length; i++) {
+            // Keep away from the multicast and reserved ranges
+            sites[i] = (0x0A000000L + (random.nextLong() & 0xFFFFFFFFL) % 0xD6000000L) & siteMask;
+        }
+    }
+
+    public List<IRoutingRule> createRules(int count) {
+        List<IRoutingRule> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rules.add(createRule());
+        }
+        return rules;
+    }
+
+    public IRoutingRule createRule() {
+        Set<String> srcAddresses = new HashSet<>();
+        int poolSize = config.minPoolSize + random.nextInt(config.maxPoolSize - config.minPoolSize + 1);
+        for (int i = 0; i < poolSize; i++) {
+            srcAddresses.add(createNetwork(config.srcPrefixWeights));
+        }
+        RoutingRule rule = new RoutingRule(srcAddresses, createNetwork(config.dstPrefixWeights),
+                config.protocols[pick(config.protocolWeights)], createPortRange());
+
+        rule.getSrcAddresses().setOperator(random.nextDouble() < config.srcAnyRatio ? AttributeOperator.Any : AttributeOperator.Contains);
+        rule.getDstAddress().setOperator(random.nextDouble() < config.dstAnyRatio ? AttributeOperator.Any : AttributeOperator.Matches);
+        rule.getDstPort().setOperator(random.nextDouble() < config.portAnyRatio ? AttributeOperator.Any : AttributeOperator.Matches);
+        rule.getProtocol().setOperator(random.nextDouble() < config.protocolAnyRatio ? AttributeOperator.Any : AttributeOperator.Matches);
+        generated.add(rule);
+        return rule;
+    }
+
+    public List<IPacket> createPackets(int count) {
+        List<IPacket> packets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            packets.add(createPacket());
+        }
+        return packets;
+    }
+
+    /**
+     * Creates a packet matching one of the rules generated so far, or a
+     * random packet inside the sites
+     */
+    public IPacket createPacket() {
+        if (generated.isEmpty() || random.nextDouble() >= config.matchingPacketRatio) {
+            return new Packet(createAddress(), createAddress(), random.nextInt(config.maxPort + 1),
+                    config.protocols[pick(config.protocolWeights)]);
+        }
+        IRoutingRule rule = generated.get(random.nextInt(generated.size()));
+        List<String> pool = new ArrayList<>();
+        for (Object srcAddress : (Iterable<?>) rule.getSrcAddresses().getArgument()) {
+            pool.add((String) ((Attribute<?>) srcAddress).getArgument());
+        }
+        // The pool lists the addresses in the iteration order of the set the rule was built from,
+        // sort it so that the output does not depend on that order
+        Collections.sort(pool);
+        PortRange portRange = (PortRange) rule.getDstPort().getArgument();
+        return new Packet(addressIn(pool.get(random.nextInt(pool.size()))),
+                addressIn((String) rule.getDstAddress().getArgument()),
+                portRange.getBegin() + random.nextInt(portRange.getEnd() - portRange.getBegin() + 1),
+                (String) rule.getProtocol().getArgument());
+    }
+
+    private String createNetwork(double[] prefixWeights) {
+        int length = pick(prefixWeights);
+        return Utility.ip2String(createAddress() & mask(length)) + "/" + length;
+    }
+
+    private long createAddress() {
+        long site = sites[random.nextInt(sites.length)];
+        return site | (random.nextLong() & ~mask(config.sitePrefixLength) & 0xFFFFFFFFL);
+    }
+
+    private long addressIn(String cidr) {
+        int slash = cidr.indexOf('/');
+        long net = Utility.string2Ip(cidr.substring(0, slash));
+        int length = Integer.parseInt(cidr.substring(slash + 1));
+        return (net & mask(length)) | (random.nextLong() & ~mask(length) & 0xFFFFFFFFL);
+    }
+
+    private PortRange createPortRange() {
+        switch (pick(new double[]{config.singlePortWeight, config.wellKnownRangeWeight,
+                config.wideRangeWeight, config.arbitraryRangeWeight})) {
+            case 0:
+                int port = WELL_KNOWN_PORTS[random.nextInt(WELL_KNOWN_PORTS.length)];
+                return new PortRange(port <= config.maxPort ? port : random.nextInt(config.maxPort + 1));
+            case 1:
+                int begin = random.nextInt(1000);
+                return new PortRange(begin, Math.min(config.maxPort, begin + random.nextInt(1024 - begin)));
+            case 2:
+                begin = 1 + random.nextInt(1024);
+                return new PortRange(begin, Math.max(begin, config.maxPort - random.nextInt(config.maxPort / 10 + 1)));
+            default:
+                begin = random.nextInt(config.maxPort + 1);
+                return new PortRange(begin, Math.min(config.maxPort, begin + random.nextInt(2000)));
+        }
+    }
+
+    private int pick(double[] weights) {
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        double draw = random.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            draw -= weights[i];
+            if (draw < 0) {
+                return i;
+            }
+        }
+        for (int i = weights.length - 1; ; i--) {
+            if (weights[i] > 0) {
+                return i;
+            }
+        }
+    }
+
+    private static long mask(int length) {
+        return (0xFFFFFFFFL << (32 - length)) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,97 @@
+package com.forescout.challenge.impl;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import com.forescout.challenge.impl.engine.BitVectorClassifier;
+import com.forescout.challenge.impl.engine.CompiledClassifier;
+import com.forescout.challenge.impl.engine.DecisionTreeClassifier;
+import com.forescout.challenge.impl.engine.RuleSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleGeneratorTest {
+
+    private static String describe(Attribute<?> attribute) {
+        return attribute.getOperator() + " " + attribute.getArgument();
+    }
+
+    private static String describe(IRoutingRule rule) {
+        Set<String> pool = new TreeSet<>();
+        for (Object srcAddress : (Iterable<?>) rule.getSrcAddresses().getArgument()) {
+            pool.add((String) ((Attribute<?>) srcAddress).getArgument());
+        }
+        return rule.getSrcAddresses().getOperator() + " " + pool
+                + " " + describe(rule.getDstAddress())
+                + " " + describe(rule.getDstPort())
+                + " " + describe(rule.getProtocol());
+    }
+
+    private static String describe(IPacket packet) {
+        return packet.getSrcAddr() + " " + packet.getDstAddr() + " " + packet.getDstPort() + " " + packet.getProtocol();
+    }
+
+    @Test
+    public void testDeterministic() {
+        RuleGenerator first = new RuleGenerator(RuleGenerator.Config.classBench().seed(5));
+        RuleGenerator second = new RuleGenerator(RuleGenerator.Config.classBench().seed(5));
+        List<IRoutingRule> firstRules = first.createRules(1000);
+        List<IRoutingRule> secondRules = second.createRules(1000);
+        for (int i = 0; i < firstRules.size(); i++) {
+            Assert.assertEquals(describe(firstRules.get(i)), describe(secondRules.get(i)));
+        }
+        List<IPacket> firstPackets = first.createPackets(1000);
+        List<IPacket> secondPackets = second.createPackets(1000);
+        for (int i = 0; i < firstPackets.size(); i++) {
+            Assert.assertEquals(describe(firstPackets.get(i)), describe(secondPackets.get(i)));
+        }
+
+        RuleGenerator other = new RuleGenerator(RuleGenerator.Config.classBench().seed(6));
+        Assert.assertNotEquals(describe(firstRules.get(0)), describe(other.createRule()));
+    }
+
+    @Test
+    public void testConfiguredMix() {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench()
+                .seed(3)
+                .dstPrefixWeights(RuleGenerator.Config.prefixWeights(24, 1))
+                .portMix(0, 0, 1, 0)
+                .protocolMix(new String[]{"UDP"}, new double[]{1})
+                .anyRatios(0, 0, 0, 1));
+        for (IRoutingRule rule : generator.createRules(500)) {
+            Assert.assertTrue(((String) rule.getDstAddress().getArgument()).endsWith("/24"));
+            Assert.assertEquals("UDP", rule.getProtocol().getArgument());
+            Assert.assertEquals(AttributeOperator.Contains, rule.getSrcAddresses().getOperator());
+            Assert.assertEquals(AttributeOperator.Matches, rule.getDstAddress().getOperator());
+            Assert.assertEquals(AttributeOperator.Any, rule.getProtocol().getOperator());
+            Assert.assertTrue(((PortRange) rule.getDstPort().getArgument()).getBegin() <= 1024);
+        }
+    }
+
+    /**
+     * Packets built to match a rule are matched by the compiled rules, and
+     * every engine agrees on the closest rule at scale
+     */
+    @Test
+    public void testEnginesAgree() {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(11).matchingPacketRatio(1));
+        RuleSet ruleSet = RuleSet.compile(generator.createRules(20000));
+        CompiledClassifier[] engines = {new DecisionTreeClassifier(ruleSet), new BitVectorClassifier(ruleSet)};
+        AttributeKey[] priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+        for (IPacket packet : generator.createPackets(2000)) {
+            int expected = ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+                    packet.getProtocolCode(), priority);
+            Assert.assertNotEquals(CompiledClassifier.NO_MATCH, expected);
+            for (CompiledClassifier engine : engines) {
+                Assert.assertEquals(expected, engine.lookup(packet.getSrcAddr(), packet.getDstAddr(),
+                        packet.getDstPort(), packet.getProtocolCode(), priority));
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import com.forescout.challenge.impl.Factory;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class AddressIndexTest {
+
+    private static void assertSameResults(Random random, List<IRoutingRule> rules, AddressIndex index) {
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = Factory.createRoutingRule2().getDefaultAttributesPriority();
+        for (int i = 0; i < 100; i++) {
+            IPacket packet = RandomRules.createPacket(random);
+            if (!RandomRules.isRankable(packet, rules)) {
+                continue;
+            }
+            Assert.assertEquals(packet.getClosestAffinityNetwork(rules, priority), index.classify(packet, priority));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIncrementalUpdates() {
+        Random random = new Random(41);
+        List<IRoutingRule> rules = new ArrayList<>(RandomRules.createRules(random, 30));
+        AddressIndex index = new AddressIndex(rules);
+        assertSameResults(random, rules, index);
+
+        for (int round = 0; round < 100; round++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    IRoutingRule added = RandomRules.createRules(random, 1).get(0);
+                    rules.add(added);
+                    Assert.assertTrue(index.add(added));
+                    break;
+                case 1:
+                    IRoutingRule removed = rules.remove(random.nextInt(rules.size()));
+                    Assert.assertTrue(index.remove(removed));
+                    break;
+                case 2:
+                    IRoutingRule changed = rules.get(random.nextInt(rules.size()));
+                    IRoutingRule other = RandomRules.createRules(random, 1).get(0);
+                    changed.getDstPort().setOperator(other.getDstPort().getOperator());
+                    ((Attribute<PortRange>) changed.getDstPort()).setArgument((PortRange) other.getDstPort().getArgument());
+                    changed.getProtocol().setOperator(other.getProtocol().getOperator());
+                    ((Attribute<String>) changed.getProtocol()).setArgument((String) other.getProtocol().getArgument());
+                    index.update(changed);
+                    break;
+                default:
+                    IRoutingRule updated = rules.get(random.nextInt(rules.size()));
+                    IRoutingRule model = RandomRules.createRules(random, 1).get(0);
+                    updated.getDstAddress().setOperator(model.getDstAddress().getOperator());
+                    ((Attribute<String>) updated.getDstAddress())
+                            .setArgument((String) model.getDstAddress().getArgument());
+                    index.update(updated);
+                    break;
+            }
+            Assert.assertEquals(rules.size(), index.size());
+            assertSameResults(random, rules, index);
+        }
+    }
+
+    @Test
+    public void testAddRemove() {
+        IRoutingRule routingRule = Factory.createRoutingRule1();
+        AddressIndex index = new AddressIndex();
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP");
+        IPacket otherDst = Factory.createPacket("192.168.1.1", "1.1.1.1", 21, "UDP");
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = routingRule.getDefaultAttributesPriority();
+
+        Assert.assertTrue(index.add(routingRule));
+        Assert.assertFalse(index.add(routingRule));
+        Assert.assertSame(routingRule, index.classify(packet, priority));
+        Assert.assertNull(index.classify(otherDst, priority));
+
+        routingRule.getDstAddress().setOperator(AttributeOperator.Any);
+        index.update(routingRule);
+        Assert.assertSame(routingRule, index.classify(otherDst, priority));
+
+        Assert.assertTrue(index.remove(routingRule));
+        Assert.assertFalse(index.remove(routingRule));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testInvalidUpdateKeepsRule() {
+        IRoutingRule routingRule = Factory.createRoutingRule1();
+        AddressIndex index = new AddressIndex(Arrays.asList(routingRule));
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP");
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = routingRule.getDefaultAttributesPriority();
+
+        ((Attribute<String>) routingRule.getDstAddress()).setArgument("not a network");
+        try {
+            index.update(routingRule);
+            Assert.fail("Invalid rule updated");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        Assert.assertEquals(1, index.size());
+        Assert.assertSame(routingRule, index.classify(packet, priority));
+    }
+
+    @Test
+    public void testSameAsRuleSet() {
+        Random random = new Random(47);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 300);
+        AddressIndex index = new AddressIndex(rules.subList(0, 200));
+        for (IRoutingRule rule : rules.subList(200, 300)) {
+            index.add(rule);
+        }
+        RuleSet ruleSet = RuleSet.compile(rules);
+        for (int i = 0; i < 1000; i++) {
+            IPacket packet = RandomRules.createPacket(random);
+            for (LinkedHashSet<IRoutingRule.AttributeKey> priority : Arrays.asList(
+                    Factory.createRoutingRule1().getDefaultAttributesPriority(),
+                    Factory.createRoutingRule2().getDefaultAttributesPriority())) {
+                Assert.assertSame(ruleSet.classify(packet, priority), index.classify(packet, priority));
+            }
+        }
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(5);
+        AddressIndex index = new AddressIndex(RandomRules.createRules(random, 1000));
+        IPacket[] packets = new IPacket[256];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = RandomRules.createPacket(random);
+        }
+        IRoutingRule.AttributeKey[] priority = IRoutingRule.defaultAttributesPriority
+                .toArray(new IRoutingRule.AttributeKey[0]);
+
+        long threadId = Thread.currentThread().getId();
+        // Classes are loaded and the buffer of the thread grown on the first round
+        classify(index, packets, priority);
+        long counter = allocationBean.getThreadAllocatedBytes(threadId);
+        counter = allocationBean.getThreadAllocatedBytes(threadId) - counter;
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        classify(index, packets, priority);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - counter;
+        Assert.assertEquals(allocated + " bytes allocated", 0, allocated);
+    }
+
+    private static void classify(AddressIndex index, IPacket[] packets, IRoutingRule.AttributeKey[] priority) {
+        for (IPacket packet : packets) {
+            index.classify(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(),
+                    priority);
+        }
+    }
+}
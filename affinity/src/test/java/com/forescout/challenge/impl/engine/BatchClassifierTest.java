@@ -0,0 +1,56 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.impl.Factory;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchClassifierTest {
+
+    @Test
+    public void testSameResultsAsClassify() {
+        Random random = new Random(19);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 500);
+        RuleSet ruleSet = RuleSet.compile(rules);
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = Factory.createRoutingRule1().getDefaultAttributesPriority();
+
+        int n = 1000;
+        IPacket[] packets = new IPacket[n];
+        long[] src = new long[n];
+        long[] dst = new long[n];
+        int[] port = new int[n];
+        int[] protocol = new int[n];
+        for (int i = 0; i < n; i++) {
+            packets[i] = RandomRules.createPacket(random);
+            src[i] = packets[i].getSrcAddr();
+            dst[i] = packets[i].getDstAddr();
+            port[i] = packets[i].getDstPort();
+            protocol[i] = packets[i].getProtocolCode();
+        }
+
+        for (CompiledClassifier engine : Arrays.asList(ruleSet, new DecisionTreeClassifier(ruleSet),
+                new BitVectorClassifier(ruleSet))) {
+            int[] ids = new int[n + 1];
+            ids[n] = 42;
+            new BatchClassifier(engine, priority).classify(src, dst, port, protocol, n, ids);
+            for (int i = 0; i < n; i++) {
+                IRoutingRule expected = ruleSet.classify(packets[i], priority);
+                Assert.assertEquals(expected == null ? BatchClassifier.NO_RULE : expected.getId(), ids[i]);
+            }
+            Assert.assertEquals("Only the first n packets are classified", 42, ids[n]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testColumnsTooShort() {
+        IRoutingRule rule = Factory.createRoutingRule1();
+        BatchClassifier classifier = new BatchClassifier(RuleSet.compile(Arrays.asList(rule)),
+                rule.getDefaultAttributesPriority());
+        classifier.classify(new long[2], new long[2], new int[1], new int[2], 2, new int[2]);
+    }
+}
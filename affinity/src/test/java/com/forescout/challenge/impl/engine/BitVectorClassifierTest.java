@@ -0,0 +1,39 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.impl.Factory;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitVectorClassifierTest {
+
+    @Test
+    public void testSameResultsAsRuleSet() {
+        Random random = new Random(13);
+        // Rule counts around word boundaries of the bitmaps
+        for (int count : new int[]{1, 63, 64, 65, 1000}) {
+            List<IRoutingRule> rules = RandomRules.createRules(random, count);
+            RuleSet ruleSet = RuleSet.compile(rules);
+            BitVectorClassifier classifier = new BitVectorClassifier(ruleSet);
+            for (int i = 0; i < 2000; i++) {
+                IPacket packet = RandomRules.createPacket(random);
+                for (LinkedHashSet<IRoutingRule.AttributeKey> priority : Arrays.asList(
+                        Factory.createRoutingRule1().getDefaultAttributesPriority(),
+                        Factory.createRoutingRule2().getDefaultAttributesPriority())) {
+                    Assert.assertEquals(ruleSet.classify(packet, priority), classifier.classify(packet, priority));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFactoryRules() {
+        List<IRoutingRule> rules = FactoryRules.createRules();
+        FactoryRules.assertClosestRules(rules, new BitVectorClassifier(RuleSet.compile(rules))::lookup);
+    }
+}
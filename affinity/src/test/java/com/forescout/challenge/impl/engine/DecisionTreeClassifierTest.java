@@ -0,0 +1,42 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.impl.Factory;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecisionTreeClassifierTest {
+
+    @Test
+    public void testSameResultsAsRuleSet() {
+        Random random = new Random(11);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 2000);
+        RuleSet ruleSet = RuleSet.compile(rules);
+
+        for (DecisionTreeClassifier tree : Arrays.asList(
+                new DecisionTreeClassifier(ruleSet),
+                new DecisionTreeClassifier(ruleSet, 4, 2.0),
+                new DecisionTreeClassifier(ruleSet, 64, 8.0))) {
+            for (int i = 0; i < 5000; i++) {
+                IPacket packet = RandomRules.createPacket(random);
+                for (LinkedHashSet<IRoutingRule.AttributeKey> priority : Arrays.asList(
+                        Factory.createRoutingRule1().getDefaultAttributesPriority(),
+                        Factory.createRoutingRule2().getDefaultAttributesPriority())) {
+                    Assert.assertEquals(ruleSet.classify(packet, priority), tree.classify(packet, priority));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFactoryRules() {
+        // Leaves of at most one rule, so that the tree cuts the four rules apart
+        List<IRoutingRule> rules = FactoryRules.createRules();
+        FactoryRules.assertClosestRules(rules, new DecisionTreeClassifier(RuleSet.compile(rules), 1, 4.0)::lookup);
+    }
+}
@@ -0,0 +1,45 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.impl.Factory;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+
+/**
+ * The rules of {@link Factory} and the packets every engine must classify
+ * the same way on them
+ */
+public class FactoryRules {
+
+    /**
+     * Looks up the slot of the closest rule, see {@link CompiledClassifier#lookup}
+     */
+    public interface Lookup {
+        int lookup(long srcAddr, long dstAddr, int dstPort, int protocolCode, AttributeKey[] priority);
+    }
+
+    public static List<IRoutingRule> createRules() {
+        return Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2(),
+                Factory.createRoutingRule3(), Factory.createRoutingRule4());
+    }
+
+    /**
+     * Checks the closest rules found by an engine compiled from the given
+     * rules, in their order
+     */
+    public static void assertClosestRules(List<IRoutingRule> rules, Lookup engine) {
+        assertSlot(engine, Factory.createPacket("8.8.8.8", "10.2.1.1", 21, "TCP"), rules.get(0), 3);
+        assertSlot(engine, Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP"), rules.get(1), 1);
+        assertSlot(engine, Factory.createPacket("1.1.1.1", "10.2.1.1", 21, "UDP"), rules.get(0),
+                CompiledClassifier.NO_MATCH);
+    }
+
+    private static void assertSlot(Lookup engine, IPacket packet, IRoutingRule priorityRule, int expected) {
+        AttributeKey[] priority = priorityRule.getDefaultAttributesPriority().toArray(new AttributeKey[0]);
+        Assert.assertEquals("Packet " + packet, expected, engine.lookup(packet.getSrcAddr(), packet.getDstAddr(),
+                packet.getDstPort(), packet.getProtocolCode(), priority));
+    }
+}
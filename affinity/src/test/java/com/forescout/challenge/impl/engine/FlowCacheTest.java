@@ -0,0 +1,204 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.impl.Factory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlowCacheTest {
+
+    private static final List<LinkedHashSet<IRoutingRule.AttributeKey>> PRIORITIES = Arrays.asList(
+            Factory.createRoutingRule1().getDefaultAttributesPriority(),
+            Factory.createRoutingRule2().getDefaultAttributesPriority());
+
+    /**
+     * Packets drawn from a few flows, the first flows being far more frequent
+     */
+    private static List<IPacket> createSkewedPackets(Random random, int flows, int count) {
+        List<IPacket> flowPackets = new ArrayList<>();
+        for (int i = 0; i < flows; i++) {
+            flowPackets.add(RandomRules.createPacket(random));
+        }
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double skew = random.nextDouble();
+            packets.add(flowPackets.get((int) (skew * skew * skew * flows)));
+        }
+        return packets;
+    }
+
+    @Test
+    public void testSameResultsAsEngine() {
+        Random random = new Random(29);
+        RuleSet ruleSet = RuleSet.compile(RandomRules.createRules(random, 300));
+        // A small cache keeps evicting, a large one holds every flow
+        int[] capacities = {1, 64, 4096};
+        double[] minHitRates = {0.0, 0.2, 0.9};
+        for (int i = 0; i < capacities.length; i++) {
+            FlowCache cache = new FlowCache(ruleSet, capacities[i]);
+            for (IPacket packet : createSkewedPackets(random, 1000, 20000)) {
+                for (LinkedHashSet<IRoutingRule.AttributeKey> priority : PRIORITIES) {
+                    Assert.assertEquals(ruleSet.classify(packet, priority), cache.classify(packet, priority));
+                }
+            }
+            Assert.assertEquals(40000, cache.getHits() + cache.getMisses());
+            Assert.assertTrue("Hit rate " + cache.getHitRate(), cache.getHitRate() >= minHitRates[i]);
+        }
+    }
+
+    @Test
+    public void testNewerCacheSharesTheWays() {
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        FlowCache cache = new FlowCache(RuleSet.compile(Arrays.asList(rule1)), 16);
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP");
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = rule1.getDefaultAttributesPriority();
+
+        Assert.assertEquals(rule1, cache.classify(packet, priority));
+        Assert.assertEquals(rule1, cache.classify(packet, priority));
+        Assert.assertEquals(1, cache.getHits());
+
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(rule2));
+        FlowCache newer = new FlowCache(cache, ruleSet);
+        Assert.assertSame(ruleSet, newer.getRuleSet());
+        Assert.assertEquals(ruleSet.classify(packet, priority), newer.classify(packet, priority));
+        Assert.assertEquals(ruleSet.classify(packet, priority), newer.classify(packet, priority));
+        Assert.assertEquals(1, newer.getHits());
+        Assert.assertEquals(1, newer.getMisses());
+        // The previous cache still answers for its rules, from its own decision
+        Assert.assertEquals(rule1, cache.classify(packet, priority));
+        Assert.assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * The previous cache no longer stores decisions, which would be evicted
+     * by the newer one
+     */
+    @Test
+    public void testPreviousCacheStopsStoring() {
+        IRoutingRule rule = Factory.createRoutingRule1();
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(rule));
+        FlowCache cache = new FlowCache(ruleSet, 16);
+        FlowCache newer = new FlowCache(cache, ruleSet);
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP");
+
+        Assert.assertEquals(rule, cache.classify(packet, rule.getDefaultAttributesPriority()));
+        Assert.assertEquals(rule, cache.classify(packet, rule.getDefaultAttributesPriority()));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(rule, newer.classify(packet, rule.getDefaultAttributesPriority()));
+        Assert.assertEquals(0, newer.getHits());
+    }
+
+    @Test
+    public void testNegativeResultsAreCached() {
+        IRoutingRule rule = Factory.createRoutingRule1();
+        FlowCache cache = new FlowCache(RuleSet.compile(Arrays.asList(rule)), 16);
+        IPacket packet = Factory.createPacket("1.1.1.1", "10.2.1.1", 21, "UDP");
+
+        Assert.assertNull(cache.classify(packet, rule.getDefaultAttributesPriority()));
+        Assert.assertNull(cache.classify(packet, rule.getDefaultAttributesPriority()));
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        Random random = new Random(31);
+        RuleSet ruleSet = RuleSet.compile(RandomRules.createRules(random, 300));
+        FlowCache cache = new FlowCache(ruleSet, 256);
+        List<IPacket> packets = createSkewedPackets(random, 2000, 20000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (IPacket packet : packets) {
+                        Assert.assertEquals(ruleSet.classify(packet, PRIORITIES.get(0)),
+                                cache.classify(packet, PRIORITIES.get(0)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCacheAcrossPublish() {
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        RuleSetHolder holder = new RuleSetHolder(Arrays.asList(rule1), FlowCache.factory(ruleSet -> ruleSet, 16));
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP");
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = rule1.getDefaultAttributesPriority();
+
+        FlowCache cache = (FlowCache) holder.current().getEngine();
+        Assert.assertEquals(rule1.getId(), cache.classify(packet, priority).getId());
+        Assert.assertEquals(rule1.getId(), cache.classify(packet, priority).getId());
+        Assert.assertEquals(1, cache.getHits());
+
+        RuleSetHolder.Snapshot published = holder.publish(Arrays.asList(rule2));
+        FlowCache publishedCache = (FlowCache) published.getEngine();
+        Assert.assertNotSame(cache, publishedCache);
+        Assert.assertSame(published.getRuleSet(), publishedCache.getRuleSet());
+        Assert.assertEquals(published.getRuleSet().classify(packet, priority), holder.classify(packet, priority));
+        Assert.assertEquals(published.getRuleSet().classify(packet, priority), holder.classify(packet, priority));
+        // The flow was frequent before the publish, so is admitted on its first miss
+        Assert.assertEquals(1, publishedCache.getHits());
+        // The cache of the previous snapshot still answers for its rules
+        Assert.assertEquals(rule1.getId(), cache.classify(packet, priority).getId());
+    }
+
+    @Test
+    public void testBatchAcrossSmallerPublish() {
+        Random random = new Random(37);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 200);
+        RuleSetHolder holder = new RuleSetHolder(rules, FlowCache.factory(ruleSet -> ruleSet, 4096));
+        LinkedHashSet<IRoutingRule.AttributeKey> priority = PRIORITIES.get(0);
+        BatchClassifier batch = new BatchClassifier(holder.current().getEngine(), priority);
+        RuleSet compiled = RuleSet.compile(rules);
+
+        int n = 1000;
+        List<IPacket> packets = createSkewedPackets(random, 300, n);
+        long[] src = new long[n];
+        long[] dst = new long[n];
+        int[] port = new int[n];
+        int[] protocol = new int[n];
+        for (int i = 0; i < n; i++) {
+            src[i] = packets.get(i).getSrcAddr();
+            dst[i] = packets.get(i).getDstAddr();
+            port[i] = packets.get(i).getDstPort();
+            protocol[i] = packets.get(i).getProtocolCode();
+        }
+        int[] ids = new int[n];
+        batch.classify(src, dst, port, protocol, n, ids);
+
+        // A batch classifier keeps classifying against the snapshot it was built on
+        holder.publish(rules.subList(100, 200));
+        int[] idsAfter = new int[n];
+        batch.classify(src, dst, port, protocol, n, idsAfter);
+        for (int i = 0; i < n; i++) {
+            IRoutingRule expected = compiled.classify(packets.get(i), priority);
+            Assert.assertEquals(expected == null ? BatchClassifier.NO_RULE : expected.getId(), ids[i]);
+            Assert.assertEquals(ids[i], idsAfter[i]);
+        }
+
+        RuleSet published = RuleSet.compile(rules.subList(100, 200));
+        new BatchClassifier(holder.current().getEngine(), priority).classify(src, dst, port, protocol, n, ids);
+        for (int i = 0; i < n; i++) {
+            IRoutingRule expected = published.classify(packets.get(i), priority);
+            Assert.assertEquals(expected == null ? BatchClassifier.NO_RULE : expected.getId(), ids[i]);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Factory;
+import com.forescout.challenge.impl.RuleGenerator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapRuleTableTest {
+
+    private static final List<LinkedHashSet<AttributeKey>> PRIORITIES = Arrays.asList(
+            Factory.createRoutingRule1().getDefaultAttributesPriority(),
+            Factory.createRoutingRule2().getDefaultAttributesPriority());
+
+    private static void assertSameSlots(RuleSet ruleSet, OffHeapRuleTable table, IPacket packet) {
+        for (LinkedHashSet<AttributeKey> attributesPriority : PRIORITIES) {
+            AttributeKey[] priority = attributesPriority.toArray(new AttributeKey[0]);
+            Assert.assertEquals("Packet " + packet,
+                    ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority),
+                    table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+        }
+    }
+
+    @Test
+    public void testSameResultsAsRuleSet() {
+        Random random = new Random(29);
+        for (int count : new int[]{1, 10, 1000}) {
+            List<IRoutingRule> rules = RandomRules.createRules(random, count);
+            RuleSet ruleSet = RuleSet.compile(rules);
+            OffHeapRuleTable table = OffHeapRuleTable.compile(rules);
+            Assert.assertEquals(rules.size(), table.size());
+            for (int i = 0; i < 2000; i++) {
+                assertSameSlots(ruleSet, table, RandomRules.createPacket(random));
+            }
+        }
+    }
+
+    @Test
+    public void testSameResultsOnGeneratedRules() {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(7));
+        List<IRoutingRule> rules = generator.createRules(20000);
+        RuleSet ruleSet = RuleSet.compile(rules);
+        OffHeapRuleTable table = OffHeapRuleTable.compile(rules);
+        for (IPacket packet : generator.createPackets(5000)) {
+            assertSameSlots(ruleSet, table, packet);
+        }
+    }
+
+    @Test
+    public void testFactoryRules() {
+        List<IRoutingRule> rules = FactoryRules.createRules();
+        OffHeapRuleTable table = OffHeapRuleTable.compile(rules);
+        FactoryRules.assertClosestRules(rules, table::lookup);
+
+        // Ids and priorities are stored in the table, by slot
+        for (int i = 0; i < rules.size(); i++) {
+            Assert.assertEquals(rules.get(i).getId(), table.getId(i));
+            Assert.assertEquals(Arrays.asList(rules.get(i).getDefaultAttributesPriority().toArray()),
+                    Arrays.asList(table.getAttributesPriority(i).toArray()));
+        }
+    }
+
+    @Test
+    public void testWrap() {
+        OffHeapRuleTable table = OffHeapRuleTable.compile(RandomRules.createRules(new Random(3), 100));
+        OffHeapRuleTable wrapped = new OffHeapRuleTable(table.asReadOnlyBuffer());
+        Assert.assertEquals(table.size(), wrapped.size());
+        Assert.assertEquals(table.byteSize(), wrapped.byteSize());
+        for (int slot = 0; slot < table.size(); slot++) {
+            Assert.assertEquals(table.getId(slot), wrapped.getId(slot));
+        }
+
+        ByteBuffer truncated = table.asReadOnlyBuffer();
+        truncated.limit(table.byteSize() - 1);
+        try {
+            new OffHeapRuleTable(truncated);
+            Assert.fail("Truncated table");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testInvalidRules() {
+        AttributeKey[] priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+        try {
+            new OffHeapRuleTable.Builder().addRule(1, AttributeOperator.Any, AttributeOperator.Contains, 0, 0,
+                    AttributeOperator.Any, 0, 0, AttributeOperator.Any, 0, priority);
+            Assert.fail("Contains on a single attribute");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new OffHeapRuleTable.Builder().addSource(0, 33);
+            Assert.fail("Mask wider than 32 bits");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.impl.Factory;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelClassifierTest {
+
+    @Test
+    public void testSameResultsAsBatch() {
+        Random random = new Random(23);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 500);
+        BatchClassifier batchClassifier = new BatchClassifier(new DecisionTreeClassifier(RuleSet.compile(rules)),
+                Factory.createRoutingRule2().getDefaultAttributesPriority());
+
+        int n = 20000;
+        long[] src = new long[n];
+        long[] dst = new long[n];
+        int[] port = new int[n];
+        int[] protocol = new int[n];
+        for (int i = 0; i < n; i++) {
+            IPacket packet = RandomRules.createPacket(random);
+            src[i] = packet.getSrcAddr();
+            dst[i] = packet.getDstAddr();
+            port[i] = packet.getDstPort();
+            protocol[i] = packet.getProtocolCode();
+        }
+        int[] expected = new int[n];
+        batchClassifier.classify(src, dst, port, protocol, n, expected);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int grainSize : new int[]{1, 100, 4096, n}) {
+                int[] actual = new int[n];
+                new ParallelClassifier(batchClassifier, pool, grainSize).classify(src, dst, port, protocol, n, actual);
+                Assert.assertArrayEquals(expected, actual);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
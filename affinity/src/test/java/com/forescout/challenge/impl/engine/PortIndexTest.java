@@ -0,0 +1,110 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PortIndexTest {
+
+    @Test
+    public void testMostSpecificFirst() {
+        PortIndex index = new PortIndex(new PortRange[]{
+                new PortRange(0, 65535),
+                new PortRange(20, 21),
+                new PortRange(21),
+                new PortRange(10, 30),
+                new PortRange(5, 3)
+        }, new int[]{1, 2, 3, 4, 5});
+
+        int[] out = new int[index.maxCount()];
+        int count = index.lookup(21, out);
+        Assert.assertArrayEquals(new int[]{3, 2, 4, 1}, Arrays.copyOf(out, count));
+
+        count = index.lookup(22, out);
+        Assert.assertArrayEquals(new int[]{4, 1}, Arrays.copyOf(out, count));
+
+        count = index.lookup(4, out);
+        Assert.assertArrayEquals(new int[]{1}, Arrays.copyOf(out, count));
+
+        count = index.lookup(70000, out);
+        Assert.assertEquals(0, count);
+        count = index.lookup(-1, out);
+        Assert.assertEquals(0, count);
+    }
+
+    @Test
+    public void testSameResultsAsLinearScan() {
+        Random random = new Random(5);
+        int size = 2000;
+        PortRange[] ranges = new PortRange[size];
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            int begin = random.nextInt(3000);
+            ranges[i] = random.nextBoolean() ? new PortRange(begin) : new PortRange(begin, begin + random.nextInt(500));
+            values[i] = i;
+        }
+        PortIndex index = new PortIndex(ranges, values);
+
+        int[] out = new int[index.maxCount()];
+        for (int port = -1; port < 3600; port++) {
+            int count = index.lookup(port, out);
+
+            int expected = 0;
+            for (PortRange range : ranges) {
+                if (range.matches(port)) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, count);
+            for (int i = 0; i < count; i++) {
+                Assert.assertTrue(ranges[out[i]].matches(port));
+                if (i > 0) {
+                    Assert.assertTrue(ranges[out[i - 1]].compareTo(ranges[out[i]]) <= 0);
+                }
+            }
+
+            int[] sorted = Arrays.copyOf(out, count);
+            Arrays.sort(sorted);
+            count = index.collect(port, out);
+            int[] collected = Arrays.copyOf(out, count);
+            Arrays.sort(collected);
+            Assert.assertArrayEquals(sorted, collected);
+        }
+    }
+
+    @Test
+    public void testOverlappingRangesScale() {
+        // Wide ranges all overlapping each other, as in rules differing only by port
+        Random random = new Random(7);
+        int size = 100000;
+        PortRange[] ranges = new PortRange[size];
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            int begin = random.nextInt(30000);
+            ranges[i] = new PortRange(begin, begin + 5000 + random.nextInt(30000));
+            values[i] = i;
+        }
+        PortIndex index = new PortIndex(ranges, values);
+
+        // At most two nodes per level of the tree for every range
+        int levels = 33 - Integer.numberOfLeadingZeros(4 * size);
+        Assert.assertTrue("Entries " + index.entryCount(), index.entryCount() <= (long) size * 2 * levels);
+
+        int[] out = new int[index.maxCount()];
+        for (int port : new int[]{0, 4999, 15000, 30000, 47000, 65535}) {
+            int expected = 0;
+            for (PortRange range : ranges) {
+                if (range.matches(port)) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, index.collect(port, out));
+            for (int i = 0; i < expected; i++) {
+                Assert.assertTrue(ranges[out[i]].matches(port));
+            }
+            Assert.assertEquals(expected, index.lookup(port, out));
+        }
+    }
+}
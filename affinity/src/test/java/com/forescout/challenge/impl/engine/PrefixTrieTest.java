@@ -0,0 +1,92 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.Utility;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+    @Test
+    public void testMostSpecificFirst() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.insert(Utility.string2Ip("10.0.0.0"), 8, 1);
+        trie.insert(Utility.string2Ip("10.2.1.0"), 31, 2);
+        trie.insert(Utility.string2Ip("10.2.1.1"), 32, 3);
+        trie.insert(Utility.string2Ip("0.0.0.0"), 0, 4);
+        trie.insert(Utility.string2Ip("192.168.0.0"), 16, 5);
+
+        int[] out = new int[trie.size()];
+        int count = trie.lookup(Utility.string2Ip("10.2.1.1"), out);
+        Assert.assertArrayEquals(new int[]{3, 2, 1, 4}, Arrays.copyOf(out, count));
+
+        count = trie.lookup(Utility.string2Ip("10.2.1.0"), out);
+        Assert.assertArrayEquals(new int[]{2, 1, 4}, Arrays.copyOf(out, count));
+
+        count = trie.lookup(Utility.string2Ip("8.8.8.8"), out);
+        Assert.assertArrayEquals(new int[]{4}, Arrays.copyOf(out, count));
+    }
+
+    @Test
+    public void testSameResultsAsLinearScan() {
+        Random random = new Random(42);
+        int prefixes = 2000;
+        long[] nets = new long[prefixes];
+        int[] masks = new int[prefixes];
+        PrefixTrie trie = new PrefixTrie();
+        for (int i = 0; i < prefixes; i++) {
+            // Keep the networks close to each other so that prefixes nest
+            nets[i] = 0x0A000000L | (random.nextInt() & 0x00FFFFFF);
+            masks[i] = 8 + random.nextInt(25);
+            trie.insert(nets[i], masks[i], i);
+        }
+
+        int[] out = new int[trie.size()];
+        for (int probe = 0; probe < 10000; probe++) {
+            long address = 0x0A000000L | (random.nextInt() & 0x00FFFFFF);
+            int count = trie.lookup(address, out);
+
+            int expected = 0;
+            for (int i = 0; i < prefixes; i++) {
+                if (Utility.isIpInsideNet(address, nets[i], masks[i])) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, count);
+            for (int i = 0; i < count; i++) {
+                Assert.assertTrue(Utility.isIpInsideNet(address, nets[out[i]], masks[out[i]]));
+                if (i > 0) {
+                    Assert.assertTrue(masks[out[i - 1]] >= masks[out[i]]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.insert(Utility.string2Ip("10.0.0.0"), 8, 1);
+        trie.insert(Utility.string2Ip("10.2.1.0"), 24, 2);
+        trie.insert(Utility.string2Ip("10.2.2.0"), 24, 3);
+        trie.insert(Utility.string2Ip("10.2.1.0"), 24, 4);
+
+        Assert.assertTrue(trie.remove(Utility.string2Ip("10.2.1.0"), 24, 2));
+        Assert.assertFalse(trie.remove(Utility.string2Ip("10.2.1.0"), 24, 2));
+        Assert.assertFalse(trie.remove(Utility.string2Ip("10.2.0.0"), 16, 1));
+        Assert.assertEquals(3, trie.size());
+
+        int[] out = new int[4];
+        int count = trie.lookup(Utility.string2Ip("10.2.1.1"), out);
+        Assert.assertArrayEquals(new int[]{4, 1}, Arrays.copyOf(out, count));
+
+        // Removing the networks splices out the nodes left empty
+        Assert.assertTrue(trie.remove(Utility.string2Ip("10.0.0.0"), 8, 1));
+        Assert.assertTrue(trie.remove(Utility.string2Ip("10.2.1.0"), 24, 4));
+        count = trie.lookup(Utility.string2Ip("10.2.2.2"), out);
+        Assert.assertArrayEquals(new int[]{3}, Arrays.copyOf(out, count));
+        Assert.assertTrue(trie.remove(Utility.string2Ip("10.2.2.0"), 24, 3));
+        Assert.assertEquals(0, trie.size());
+        Assert.assertEquals(0, trie.lookup(Utility.string2Ip("10.2.2.2"), out));
+    }
+}
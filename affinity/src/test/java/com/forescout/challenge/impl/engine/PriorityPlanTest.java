@@ -0,0 +1,178 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.impl.Factory;
+import com.forescout.challenge.impl.RuleGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PriorityPlanTest {
+
+    /**
+     * Every priority of distinct attributes, the 24 orderings of the four
+     * attributes and the orderings of their subsets
+     */
+    private static List<AttributeKey[]> priorities() {
+        List<AttributeKey[]> priorities = new ArrayList<>();
+        addPriorities(new AttributeKey[0], priorities);
+        return priorities;
+    }
+
+    private static void addPriorities(AttributeKey[] prefix, List<AttributeKey[]> priorities) {
+        if (prefix.length > 0) {
+            priorities.add(prefix);
+        }
+        for (AttributeKey attributeKey : AttributeKey.values()) {
+            if (!Arrays.asList(prefix).contains(attributeKey)) {
+                AttributeKey[] priority = Arrays.copyOf(prefix, prefix.length + 1);
+                priority[prefix.length] = attributeKey;
+                addPriorities(priority, priorities);
+            }
+        }
+    }
+
+    /**
+     * The pairwise ranking of the engines not using plans, over the rules of
+     * a rule set
+     */
+    private static AffinityRanking ranking(RuleSet ruleSet) {
+        return new AffinityRanking() {
+            @Override
+            int id(int slot) {
+                return ruleSet.ids[slot];
+            }
+
+            @Override
+            byte portOperator(int slot) {
+                return ruleSet.portOperator[slot];
+            }
+
+            @Override
+            byte protocolOperator(int slot) {
+                return ruleSet.protocolOperator[slot];
+            }
+
+            @Override
+            long dstNet(int slot) {
+                return ruleSet.dstNet[slot];
+            }
+
+            @Override
+            int dstMaskBits(int slot) {
+                return ruleSet.dstMaskBits[slot];
+            }
+
+            @Override
+            int srcEntry(int slot, long srcAddr) {
+                return ruleSet.srcEntry(slot, srcAddr);
+            }
+
+            @Override
+            long srcNet(int slot, int entry) {
+                return ruleSet.srcNet[entry];
+            }
+
+            @Override
+            int srcMaskBits(int slot, int entry) {
+                return ruleSet.srcMaskBits[entry];
+            }
+        };
+    }
+
+    /**
+     * Asserts that the keys of the plans order every two rules matching a
+     * packet as {@link AffinityRanking} does
+     */
+    private static void assertSameOrder(RuleSet ruleSet, List<IPacket> packets) {
+        AffinityRanking ranking = ranking(ruleSet);
+        List<AttributeKey[]> priorities = priorities();
+        Assert.assertEquals(64, priorities.size());
+        for (AttributeKey[] priority : priorities) {
+            PriorityPlan plan = ruleSet.plan(priority);
+            Assert.assertSame(plan, ruleSet.plan(priority.clone()));
+            for (IPacket packet : packets) {
+                long srcAddr = packet.getSrcAddr();
+                List<Integer> matching = new ArrayList<>();
+                for (int slot = 0; slot < ruleSet.size(); slot++) {
+                    if (ruleSet.matches(slot, srcAddr, packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode())) {
+                        matching.add(slot);
+                    }
+                }
+                for (int slot1 : matching) {
+                    for (int slot2 : matching) {
+                        long key1 = plan.key(slot1, srcAddr);
+                        long key2 = plan.key(slot2, srcAddr);
+                        Assert.assertTrue(key1 >= 0);
+                        int preferred = ranking.preferred(slot1, slot2, srcAddr, priority);
+                        String message = Arrays.toString(priority) + " " + packet + " " + slot1 + " " + slot2;
+                        if (key1 != key2) {
+                            Assert.assertEquals(message, key1 > key2 ? slot1 : slot2, preferred);
+                            Assert.assertEquals(message, preferred, ranking.preferred(slot2, slot1, srcAddr, priority));
+                        } else {
+                            // Neither rule is closer, the rule found first is kept
+                            Assert.assertEquals(message, slot1, preferred);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFactoryRules() {
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2(),
+                Factory.createRoutingRule3(), Factory.createRoutingRule4()));
+        assertSameOrder(ruleSet, Arrays.asList(
+                Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP"),
+                Factory.createPacket("10.1.1.1", "10.2.1.0", 21, "TCP"),
+                Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP"),
+                Factory.createPacket("8.8.8.8", "10.2.1.1", 21, "TCP")));
+    }
+
+    @Test
+    public void testRandomRules() {
+        Random random = new Random(79);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 150);
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+        assertSameOrder(RuleSet.compile(rules), packets);
+    }
+
+    @Test
+    public void testGeneratedRules() {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(83));
+        RuleSet ruleSet = RuleSet.compile(generator.createRules(300));
+        assertSameOrder(ruleSet, generator.createPackets(100));
+    }
+
+    /**
+     * Rules with the same id or the same networks have the same ranks
+     */
+    @Test
+    public void testRanks() {
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(rule2, rule1, rule1));
+        Assert.assertEquals(ruleSet.idRank[1], ruleSet.idRank[2]);
+        Assert.assertTrue(ruleSet.idRank[1] > ruleSet.idRank[0]);
+        Assert.assertEquals(ruleSet.dstRank[1], ruleSet.dstRank[2]);
+        // 10.2.1.1/32 is above 10.2.1.0/31
+        Assert.assertTrue(ruleSet.dstRank[1] > ruleSet.dstRank[0]);
+        Assert.assertEquals(2, ruleSet.idRankBits);
+
+        AttributeKey[] priority = {AttributeKey.dstPort, AttributeKey.protocol};
+        PriorityPlan plan = ruleSet.plan(priority);
+        Assert.assertEquals(plan.key(1, 0L), plan.key(2, 0L));
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+        Assert.assertEquals(1, ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(),
+                packet.getProtocolCode(), priority));
+    }
+}
@@ -0,0 +1,81 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.Utility;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.affinity.attributes.values.PortRange;
+import com.forescout.challenge.impl.Factory;
+import com.forescout.challenge.impl.RoutingRule;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Random rules and packets drawn from a small address space, so that rules
+ * overlap and packets hit several of them
+ */
+public class RandomRules {
+
+    private static final String[] PROTOCOLS = {"TCP", "UDP", "ICMP"};
+
+    public static List<IRoutingRule> createRules(Random random, int count) {
+        List<IRoutingRule> rules = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Set<String> srcAddresses = new HashSet<>();
+            int poolSize = 1 + random.nextInt(3);
+            for (int j = 0; j < poolSize; j++) {
+                srcAddresses.add(createNetwork(random));
+            }
+            int begin = random.nextInt(1100);
+            PortRange portRange = random.nextBoolean()
+                    ? new PortRange(begin)
+                    : new PortRange(begin, begin + random.nextInt(2000));
+            RoutingRule rule = new RoutingRule(srcAddresses, createNetwork(random),
+                    PROTOCOLS[random.nextInt(PROTOCOLS.length)], portRange);
+
+            rule.getSrcAddresses().setOperator(random.nextInt(4) == 0 ? AttributeOperator.Any : AttributeOperator.Contains);
+            rule.getDstAddress().setOperator(random.nextInt(4) == 0 ? AttributeOperator.Any : AttributeOperator.Matches);
+            rule.getDstPort().setOperator(random.nextInt(3) == 0 ? AttributeOperator.Any : AttributeOperator.Matches);
+            rule.getProtocol().setOperator(random.nextInt(3) == 0 ? AttributeOperator.Any : AttributeOperator.Matches);
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    public static IPacket createPacket(Random random) {
+        return Factory.createPacket(createAddress(random), createAddress(random), random.nextInt(3000),
+                PROTOCOLS[random.nextInt(PROTOCOLS.length)]);
+    }
+
+    private static String createNetwork(Random random) {
+        return createAddress(random) + "/" + (16 + random.nextInt(17));
+    }
+
+    private static String createAddress(Random random) {
+        return "10." + random.nextInt(2) + "." + random.nextInt(4) + "." + random.nextInt(256);
+    }
+
+    /**
+     * Rules whose source pool does not contain the packet address, with the Any
+     * operator, cannot be ranked by the object model, see {@link RuleSet}
+     */
+    public static boolean isRankable(IPacket packet, List<IRoutingRule> rules) {
+        for (IRoutingRule rule : rules) {
+            if (rule.getSrcAddresses().getOperator() != AttributeOperator.Any) {
+                continue;
+            }
+            boolean inPool = false;
+            for (Object srcAddress : (Iterable<?>) rule.getSrcAddresses().getArgument()) {
+                inPool |= Utility.isIpInsideNet(packet.getSrcAddr(), (String) ((Attribute<?>) srcAddress).getArgument());
+            }
+            if (!inPool) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
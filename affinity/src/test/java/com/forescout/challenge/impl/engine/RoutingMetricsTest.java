@@ -0,0 +1,314 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Factory;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoutingMetricsTest {
+
+    private static final LinkedHashSet<IRoutingRule.AttributeKey> PRIORITY =
+            Factory.createRoutingRule1().getDefaultAttributesPriority();
+
+    @Test
+    public void testCounts() throws Exception {
+        Random random = new Random(67);
+        RuleSet ruleSet = RuleSet.compile(RandomRules.createRules(random, 200));
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+        long[] expectedWins = new long[ruleSet.size()];
+        long expectedNoMatches = 0;
+        for (IPacket packet : packets) {
+            int slot = ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(),
+                    PRIORITY.toArray(new IRoutingRule.AttributeKey[0]));
+            if (slot == CompiledClassifier.NO_MATCH) {
+                expectedNoMatches++;
+            } else {
+                expectedWins[slot]++;
+            }
+        }
+
+        RoutingMetrics metrics = new RoutingMetrics();
+        InstrumentedClassifier engine = metrics.instrument("tree", new DecisionTreeClassifier(ruleSet));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int first = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < packets.size(); i += 4) {
+                        Assert.assertEquals(ruleSet.classify(packets.get(i), PRIORITY), engine.classify(packets.get(i), PRIORITY));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        RoutingMetrics.EngineSnapshot snapshot = metrics.snapshot().getEngine("tree");
+        Assert.assertEquals(packets.size(), snapshot.getLookups());
+        Assert.assertEquals(expectedNoMatches, snapshot.getNoMatches());
+        Assert.assertEquals(ruleSet.size(), snapshot.getRuleCount());
+        long wins = 0;
+        for (int slot = 0; slot < ruleSet.size(); slot++) {
+            Assert.assertEquals(expectedWins[slot], snapshot.getWins(slot));
+            Assert.assertEquals(ruleSet.getRule(slot).getId(), snapshot.getRuleId(slot));
+            wins += snapshot.getWins(slot);
+        }
+        Assert.assertEquals(packets.size(), wins + expectedNoMatches);
+
+        int[] hotSlots = snapshot.getHotSlots(5);
+        for (int i = 1; i < hotSlots.length; i++) {
+            Assert.assertTrue(snapshot.getWins(hotSlots[i - 1]) >= snapshot.getWins(hotSlots[i]));
+        }
+        Assert.assertTrue(snapshot.getLatencyPercentile(50) <= snapshot.getLatencyPercentile(99));
+        Assert.assertTrue(snapshot.getLatencyPercentile(99) <= snapshot.getLatencyPercentile(100));
+        Assert.assertEquals((long) ruleSet.size(), (long) snapshot.getStatistics().get("rules"));
+        Assert.assertTrue(snapshot.getStatistics().containsKey("treeNodes"));
+
+        metrics.reset();
+        snapshot = metrics.snapshot().getEngine("tree");
+        Assert.assertEquals(0, snapshot.getLookups());
+        Assert.assertEquals(0, snapshot.getNoMatches());
+        Assert.assertEquals(0, snapshot.getHotSlots(5).length);
+    }
+
+    @Test
+    public void testDisabled() {
+        RoutingMetrics metrics = new RoutingMetrics();
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2()));
+        InstrumentedClassifier engine = metrics.instrument("rules", ruleSet);
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+
+        metrics.setEnabled(false);
+        Assert.assertEquals(ruleSet.classify(packet, PRIORITY), engine.classify(packet, PRIORITY));
+        Assert.assertEquals(0, metrics.snapshot().getLookups());
+
+        metrics.setEnabled(true);
+        Assert.assertEquals(ruleSet.classify(packet, PRIORITY), engine.classify(packet, PRIORITY));
+        Assert.assertEquals(1, metrics.snapshot().getLookups());
+    }
+
+    /**
+     * An engine instrumented again, e.g. for new rules, keeps the latencies
+     * of the name but counts the wins of its own rules
+     */
+    @Test
+    public void testReplacedEngine() {
+        RoutingMetrics metrics = new RoutingMetrics();
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+        Function<RuleSet, CompiledClassifier> caches = FlowCache.factory(ruleSet -> ruleSet, 64);
+        RuleSetHolder holder = new RuleSetHolder(Arrays.asList(rule1, rule2),
+                ruleSet -> metrics.instrument("cache", caches.apply(ruleSet)));
+
+        holder.classify(packet, PRIORITY);
+        holder.classify(packet, PRIORITY);
+        RoutingMetrics.EngineSnapshot snapshot = metrics.snapshot().getEngine("cache");
+        Assert.assertEquals(2, snapshot.getLookups());
+        Assert.assertEquals(2, snapshot.getRuleCount());
+        Assert.assertEquals(1L, (long) snapshot.getStatistics().get("cacheHits"));
+        Assert.assertEquals(1L, (long) snapshot.getStatistics().get("cacheMisses"));
+
+        holder.publish(Arrays.asList(rule1));
+        holder.classify(packet, PRIORITY);
+        snapshot = metrics.snapshot().getEngine("cache");
+        Assert.assertEquals(3, snapshot.getLookups());
+        Assert.assertEquals(1, snapshot.getRuleCount());
+        Assert.assertEquals(1, snapshot.getWins(0));
+        Assert.assertEquals(1L, (long) snapshot.getStatistics().get("cacheMisses"));
+        Assert.assertEquals(Arrays.asList("cache"), Arrays.asList(metrics.getEngineNames()));
+    }
+
+    /**
+     * Readers still holding a previous snapshot keep classifying while rule
+     * sets of other sizes are published, and every snapshot of the metrics
+     * resolves the wins against the rules the current engine was built on
+     */
+    @Test
+    public void testPublishOtherSizes() {
+        Random random = new Random(73);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 200);
+        RoutingMetrics metrics = new RoutingMetrics();
+        Function<RuleSet, CompiledClassifier> caches = FlowCache.factory(ruleSet -> ruleSet, 256);
+        RuleSetHolder holder = new RuleSetHolder(rules,
+                ruleSet -> metrics.instrument("cache", caches.apply(ruleSet)));
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+
+        for (List<IRoutingRule> published : Arrays.asList(rules.subList(100, 200), rules.subList(0, 50), rules)) {
+            RuleSetHolder.Snapshot previous = holder.current();
+            RuleSetHolder.Snapshot current = holder.publish(published);
+            BatchClassifier batch = new BatchClassifier(previous.getEngine(), PRIORITY);
+            int[] ids = new int[1];
+            for (IPacket packet : packets) {
+                batch.classify(new long[]{packet.getSrcAddr()}, new long[]{packet.getDstAddr()},
+                        new int[]{packet.getDstPort()}, new int[]{packet.getProtocolCode()}, 1, ids);
+                IRoutingRule expected = previous.getRuleSet().classify(packet, PRIORITY);
+                Assert.assertEquals(expected == null ? BatchClassifier.NO_RULE : expected.getId(), ids[0]);
+                current.classify(packet, PRIORITY);
+            }
+
+            RoutingMetrics.EngineSnapshot snapshot = metrics.snapshot().getEngine("cache");
+            Assert.assertEquals(published.size(), snapshot.getRuleCount());
+            long wins = 0;
+            for (int slot = 0; slot < snapshot.getRuleCount(); slot++) {
+                Assert.assertEquals(current.getRuleSet().getRule(slot).getId(), snapshot.getRuleId(slot));
+                wins += snapshot.getWins(slot);
+            }
+            Assert.assertTrue(wins > 0);
+        }
+    }
+
+    /**
+     * Instrumenting again for as many rules reuses the counters of the wins
+     */
+    @Test
+    public void testReusedWins() {
+        RoutingMetrics metrics = new RoutingMetrics();
+        IRoutingRule rule1 = Factory.createRoutingRule1();
+        IRoutingRule rule2 = Factory.createRoutingRule2();
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+        InstrumentedClassifier first = metrics.instrument("rules", RuleSet.compile(Arrays.asList(rule1, rule2)));
+        first.classify(packet, PRIORITY);
+
+        InstrumentedClassifier second = metrics.instrument("rules", RuleSet.compile(Arrays.asList(rule2, rule1)));
+        Assert.assertSame(first.getWins(), second.getWins());
+        RoutingMetrics.EngineSnapshot snapshot = metrics.snapshot().getEngine("rules");
+        Assert.assertEquals(0, snapshot.getHotSlots(2).length);
+        Assert.assertEquals(1, snapshot.getLookups());
+
+        InstrumentedClassifier third = metrics.instrument("rules", RuleSet.compile(Arrays.asList(rule1)));
+        Assert.assertNotSame(second.getWins(), third.getWins());
+        Assert.assertEquals(1, metrics.snapshot().getEngine("rules").getRuleCount());
+    }
+
+    @Test
+    public void testObjectPath() {
+        Random random = new Random(71);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 50);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        RoutingMetrics metrics = new RoutingMetrics();
+        RoutingMetrics.ObjectPathMetrics objectPath = metrics.instrumentObjectPath("objects", 16);
+        Assert.assertSame(objectPath, metrics.instrumentObjectPath("objects", 16));
+
+        Map<Integer, Long> expectedWins = new HashMap<>();
+        long expectedNoMatches = 0;
+        for (int i = 0; i < 2000; i++) {
+            IPacket packet = RandomRules.createPacket(random);
+            IRoutingRule rule = objectPath.classify(packet, rules, PRIORITY);
+            Assert.assertSame(packet.getClosestAffinityNetwork(rules, PRIORITY), rule);
+            if (rule == null) {
+                expectedNoMatches++;
+            } else {
+                expectedWins.merge(rule.getId(), 1L, Long::sum);
+            }
+        }
+        metrics.setEnabled(false);
+        objectPath.classify(RandomRules.createPacket(random), rules, PRIORITY);
+
+        RoutingMetrics.EngineSnapshot snapshot = metrics.snapshot().getEngine("objects");
+        Assert.assertEquals(2000, snapshot.getLookups());
+        Assert.assertEquals(expectedNoMatches, snapshot.getNoMatches());
+        // Wins of the rules past the capacity are only counted as overflow
+        long wins = snapshot.getStatistics().get("overflowWins");
+        for (int slot = 0; slot < snapshot.getRuleCount(); slot++) {
+            Assert.assertEquals(expectedWins.get(snapshot.getRuleId(slot)), Long.valueOf(snapshot.getWins(slot)));
+            Assert.assertTrue(slot == 0 || snapshot.getRuleId(slot - 1) < snapshot.getRuleId(slot));
+            wins += snapshot.getWins(slot);
+        }
+        Assert.assertEquals(Math.min(16, expectedWins.size()), snapshot.getRuleCount());
+        Assert.assertEquals(2000, wins + expectedNoMatches);
+
+        try {
+            metrics.instrument("objects", RuleSet.compile(rules));
+            Assert.fail("Instrumented the object path as an engine");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        metrics.reset();
+        Assert.assertEquals(0, metrics.snapshot().getEngine("objects").getLookups());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        RoutingMetrics metrics = new RoutingMetrics();
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2()));
+        InstrumentedClassifier engine = metrics.instrument("rules", ruleSet);
+        engine.classify(Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP"), PRIORITY);
+        engine.classify(Factory.createPacket("1.1.1.1", "10.2.1.1", 22, "UDP"), PRIORITY);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.register("test");
+        try {
+            Assert.assertEquals(2L, server.getAttribute(name, "Lookups"));
+            Assert.assertEquals(1L, server.getAttribute(name, "NoMatches"));
+            Assert.assertArrayEquals(new String[]{"rules: " + ruleSet.getRule(0).getId() + "=1"},
+                    (String[]) server.getAttribute(name, "HotRules"));
+            Assert.assertArrayEquals(new String[]{"rules: rules=2"}, (String[]) server.getAttribute(name, "Statistics"));
+            Assert.assertTrue(((String[]) server.getAttribute(name, "Latencies"))[0].startsWith("rules: p50="));
+            Assert.assertEquals(-1L, server.invoke(name, "getLatencyPercentile",
+                    new Object[]{"unknown", 50.0}, new String[]{String.class.getName(), double.class.getName()}));
+
+            server.setAttribute(name, new javax.management.Attribute("Enabled", false));
+            Assert.assertFalse(metrics.isEnabled());
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            Assert.assertEquals(0L, metrics.getLookups());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lowerBound = LatencyHistogram.lowerBound(bucket);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            Assert.assertEquals(previousUpperBound + 1, lowerBound);
+            Assert.assertEquals(bucket, LatencyHistogram.bucket(lowerBound));
+            Assert.assertEquals(bucket, LatencyHistogram.bucket(upperBound));
+            // Log-linear: a bucket is at most an eighth of its lower bound wide
+            Assert.assertTrue(bucket == LatencyHistogram.BUCKETS - 1 || upperBound - lowerBound <= Math.max(0, lowerBound / 8));
+            previousUpperBound = upperBound;
+        }
+        Assert.assertEquals(0, LatencyHistogram.bucket(-5));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        long[] counts = histogram.getCounts();
+        Assert.assertEquals(0, LatencyHistogram.percentile(new long[LatencyHistogram.BUCKETS], 0.5));
+        long median = LatencyHistogram.percentile(counts, 0.5);
+        Assert.assertTrue("Median " + median, median >= 500000 && median <= 500000 * 9 / 8);
+        long max = LatencyHistogram.percentile(counts, 1.0);
+        Assert.assertTrue("Max " + max, max >= 1000000 && max <= 1000000 * 9 / 8);
+    }
+}
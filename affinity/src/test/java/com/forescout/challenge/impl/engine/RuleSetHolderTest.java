@@ -0,0 +1,142 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Factory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleSetHolderTest {
+
+    @Test
+    public void testPublish() {
+        IRoutingRule routingRule = Factory.createRoutingRule1();
+        List<IRoutingRule> rules = Arrays.asList(routingRule);
+        RuleSetHolder holder = new RuleSetHolder(rules);
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.2", 21, "UDP");
+
+        List<Long> published = new ArrayList<>();
+        holder.addListener(snapshot -> published.add(snapshot.getVersion()));
+
+        RuleSetHolder.Snapshot first = holder.current();
+        Assert.assertEquals(1L, first.getVersion());
+        Assert.assertNull(holder.classify(packet, routingRule.getDefaultAttributesPriority()));
+
+        routingRule.getDstAddress().setOperator(AttributeOperator.Any);
+        Assert.assertNull("Changes are not visible before they are published",
+                holder.classify(packet, routingRule.getDefaultAttributesPriority()));
+
+        RuleSetHolder.Snapshot second = holder.publish(rules);
+        Assert.assertEquals(2L, second.getVersion());
+        Assert.assertSame(second, holder.current());
+        Assert.assertSame(routingRule, holder.classify(packet, routingRule.getDefaultAttributesPriority()));
+        Assert.assertNull("Old snapshots are left unchanged",
+                first.classify(packet, routingRule.getDefaultAttributesPriority()));
+        Assert.assertEquals(Arrays.asList(2L), published);
+    }
+
+    @Test
+    public void testReadersSeeWholeSnapshots() throws Exception {
+        Random random = new Random(37);
+        List<List<IRoutingRule>> versions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            versions.add(RandomRules.createRules(random, 200));
+        }
+        RuleSetHolder holder = new RuleSetHolder(versions.get(0), DecisionTreeClassifier::new);
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+
+        AtomicBoolean publishing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                readers.add(executor.submit(() -> {
+                    long lastVersion = 0;
+                    while (publishing.get()) {
+                        RuleSetHolder.Snapshot snapshot = holder.current();
+                        Assert.assertTrue(snapshot.getVersion() >= lastVersion);
+                        lastVersion = snapshot.getVersion();
+                        for (IPacket packet : packets) {
+                            Assert.assertEquals(snapshot.getRuleSet().classify(packet, IRoutingRule.defaultAttributesPriority),
+                                    snapshot.classify(packet, IRoutingRule.defaultAttributesPriority));
+                        }
+                    }
+                }));
+            }
+            for (int i = 1; i < 50; i++) {
+                holder.publish(versions.get(i % versions.size()));
+            }
+            publishing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(50L, holder.current().getVersion());
+    }
+
+    /**
+     * Rules changed by a writer without being published do not change how
+     * a snapshot ranks them, and the snapshot still returns the published
+     * rule objects
+     */
+    @Test
+    public void testUnpublishedChanges() throws Exception {
+        Random random = new Random(41);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 100);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        RuleSetHolder holder = new RuleSetHolder(rules, DecisionTreeClassifier::new);
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+        RuleSetHolder.Snapshot snapshot = holder.current();
+        List<IRoutingRule> expected = new ArrayList<>();
+        for (IPacket packet : packets) {
+            expected.add(snapshot.classify(packet, IRoutingRule.defaultAttributesPriority));
+        }
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                while (writing.get()) {
+                    for (int i = 0; i < packets.size(); i++) {
+                        IRoutingRule rule = snapshot.classify(packets.get(i), IRoutingRule.defaultAttributesPriority);
+                        Assert.assertSame(expected.get(i), rule);
+                        Assert.assertTrue(rule == null || rules.contains(rule));
+                    }
+                }
+            });
+            Future<?> writer = executor.submit(() -> {
+                for (int round = 0; round < 200; round++) {
+                    for (IRoutingRule rule : rules) {
+                        rule.getSrcAddresses().setOperator(round % 2 == 0 ? AttributeOperator.Matches : AttributeOperator.Contains);
+                        rule.getDstAddress().setOperator(round % 2 == 0 ? AttributeOperator.Any : AttributeOperator.Matches);
+                    }
+                }
+            });
+            writer.get();
+            writing.set(false);
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertSame(snapshot, holder.current());
+    }
+}
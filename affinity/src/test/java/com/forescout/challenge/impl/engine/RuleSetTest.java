@@ -0,0 +1,115 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Factory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleSetTest {
+
+    private static final List<IPacket> PACKETS = Arrays.asList(
+            Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP"),
+            Factory.createPacket("192.168.1.1", "10.2.1.1", 512, "UDP"),
+            Factory.createPacket("192.168.1.1", "10.2.1.2", 21, "UDP"),
+            Factory.createPacket("172.130.2.5", "10.2.1.1", 21, "UDP"),
+            Factory.createPacket("172.130.2.5", "10.2.1.1", 2021, "UDP"),
+            Factory.createPacket("8.8.8.8", "10.2.1.1", 21, "UDP"),
+            Factory.createPacket("8.8.8.8", "10.2.1.1", 21, "TCP"),
+            Factory.createPacket("1.1.1.1", "10.2.1.1", 21, "UDP"),
+            Factory.createPacket("192.168.2.1", "10.2.1.1", 21, "UDP"),
+            Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP"),
+            Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "TCP"),
+            Factory.createPacket("10.1.1.1", "10.2.1.0", 512, "UDP"),
+            Factory.createPacket("10.1.1.1", "10.2.1.0", 512, "tcp")
+    );
+
+    /**
+     * Asserts that the compiled rules classify every packet exactly like
+     * {@link IPacket#getClosestAffinityNetwork} does on the rule objects
+     */
+    static void assertSameResults(Collection<IRoutingRule> rules) {
+        RuleSet ruleSet = RuleSet.compile(rules);
+        for (IRoutingRule priorityRule : rules) {
+            for (IPacket packet : PACKETS) {
+                IRoutingRule expected = packet.getClosestAffinityNetwork(rules, priorityRule.getDefaultAttributesPriority());
+                IRoutingRule actual = ruleSet.classify(packet, priorityRule.getDefaultAttributesPriority());
+                Assert.assertEquals("Packet " + packet, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testSameResultsAsPacket() {
+        IRoutingRule routingRule1 = Factory.createRoutingRule1();
+        IRoutingRule routingRule2 = Factory.createRoutingRule2();
+        IRoutingRule routingRule3 = Factory.createRoutingRule3();
+        IRoutingRule routingRule4 = Factory.createRoutingRule4();
+
+        assertSameResults(Arrays.asList(routingRule1));
+        assertSameResults(Arrays.asList(routingRule1, routingRule2));
+        assertSameResults(Arrays.asList(routingRule1, routingRule2, routingRule3));
+        assertSameResults(Arrays.asList(routingRule1, routingRule2, routingRule3, routingRule4));
+        assertSameResults(Arrays.asList(routingRule4, routingRule3, routingRule2, routingRule1));
+    }
+
+    @Test
+    public void testRandomRules() {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            List<IRoutingRule> rules = RandomRules.createRules(random, 50);
+            RuleSet ruleSet = RuleSet.compile(rules);
+            for (int i = 0; i < 200; i++) {
+                IPacket packet = RandomRules.createPacket(random);
+                if (!RandomRules.isRankable(packet, rules)) {
+                    continue;
+                }
+                for (IRoutingRule priorityRule : Arrays.asList(Factory.createRoutingRule1(), Factory.createRoutingRule2())) {
+                    IRoutingRule expected = packet.getClosestAffinityNetwork(rules, priorityRule.getDefaultAttributesPriority());
+                    Assert.assertEquals(expected, ruleSet.classify(packet, priorityRule.getDefaultAttributesPriority()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRelaxedOperators() {
+        IRoutingRule routingRule1 = Factory.createRoutingRule1();
+        IRoutingRule routingRule3 = Factory.createRoutingRule3();
+        IRoutingRule routingRule4 = Factory.createRoutingRule4();
+        Collection<IRoutingRule> rules = Arrays.asList(routingRule1, routingRule3, routingRule4);
+
+        routingRule1.getDstAddress().setOperator(AttributeOperator.Any);
+        assertSameResults(rules);
+
+        routingRule1.getDstPort().setOperator(AttributeOperator.Any);
+        assertSameResults(rules);
+
+        routingRule1.getProtocol().setOperator(AttributeOperator.Any);
+        assertSameResults(rules);
+    }
+
+    @Test
+    public void testCompiledRulesAreSnapshots() {
+        IRoutingRule routingRule = Factory.createRoutingRule1();
+        RuleSet ruleSet = RuleSet.compile(Arrays.asList(routingRule));
+        IPacket packet = Factory.createPacket("192.168.1.1", "10.2.1.2", 21, "UDP");
+
+        routingRule.getDstAddress().setOperator(AttributeOperator.Any);
+        Assert.assertNull(ruleSet.classify(packet, routingRule.getDefaultAttributesPriority()));
+        Assert.assertEquals(routingRule, RuleSet.compile(Arrays.asList(routingRule))
+                .classify(packet, routingRule.getDefaultAttributesPriority()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testContainsOnSingleAttribute() {
+        IRoutingRule routingRule = Factory.createRoutingRule1();
+        routingRule.getDstPort().setOperator(AttributeOperator.Contains);
+        RuleSet.compile(Arrays.asList(routingRule));
+    }
+}
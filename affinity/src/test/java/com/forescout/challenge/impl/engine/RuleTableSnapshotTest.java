@@ -0,0 +1,133 @@
+package com.forescout.challenge.impl.engine;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.ProtocolTable;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Packet;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.loader.RuleFileLoader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RuleTableSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertLoadFails(Path file) {
+        try {
+            RuleTableSnapshot.load(file);
+            Assert.fail("Loaded " + file);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(31));
+        List<IRoutingRule> rules = generator.createRules(5000);
+        OffHeapRuleTable table = OffHeapRuleTable.compile(rules);
+        Path file = folder.newFile().toPath();
+        RuleTableSnapshot.write(table, file);
+        OffHeapRuleTable loaded = RuleTableSnapshot.load(file);
+
+        Assert.assertEquals(table.size(), loaded.size());
+        Assert.assertEquals(table.byteSize(), loaded.byteSize());
+        AttributeKey[] priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+        for (IPacket packet : generator.createPackets(2000)) {
+            Assert.assertEquals(
+                    table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority),
+                    loaded.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+        }
+        for (int slot = 0; slot < table.size(); slot++) {
+            Assert.assertEquals(table.getId(slot), loaded.getId(slot));
+            Assert.assertEquals(table.getAttributesPriority(slot), loaded.getAttributesPriority(slot));
+        }
+    }
+
+    @Test
+    public void testCorruptFiles() throws IOException {
+        Path file = folder.newFile().toPath();
+        RuleTableSnapshot.write(OffHeapRuleTable.compile(RandomRules.createRules(new java.util.Random(5), 50)), file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        byte[] flipped = bytes.clone();
+        flipped[bytes.length / 2] ^= 1;
+        Files.write(file, flipped);
+        assertLoadFails(file);
+
+        byte[] version = bytes.clone();
+        version[4] = 1;
+        Files.write(file, version);
+        assertLoadFails(file);
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertLoadFails(file);
+
+        Files.write(file, new byte[16]);
+        assertLoadFails(file);
+
+        Files.write(file, bytes);
+        Assert.assertEquals(50, RuleTableSnapshot.load(file).size());
+    }
+
+    private static int lookup(OffHeapRuleTable table, String protocol) {
+        IPacket packet = new Packet(0x0A010101L, 0x0A020101L, 80, protocol);
+        return table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(),
+                IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]));
+    }
+
+    /**
+     * A table loaded from a rule file in a process where the dynamic code of
+     * its protocol named another protocol is translated on load
+     */
+    @Test
+    public void testDynamicProtocolCodes() throws IOException {
+        OffHeapRuleTable table = RuleFileLoader.load(new ByteArrayInputStream(
+                "10.1.1.0/24 10.2.1.0/24 snapshot-foo 80 Any Matches Matches Matches\n".getBytes(StandardCharsets.US_ASCII)));
+        int foo = ProtocolTable.code("snapshot-foo");
+        int bar = ProtocolTable.register("snapshot-bar");
+        Assert.assertTrue(foo >= ProtocolTable.FIRST_DYNAMIC_CODE);
+        Assert.assertEquals(0, lookup(table, "snapshot-foo"));
+        Assert.assertEquals(CompiledClassifier.NO_MATCH, lookup(table, "snapshot-bar"));
+
+        // Saved and loaded by the same process
+        Path file = folder.newFile().toPath();
+        RuleTableSnapshot.write(table, file);
+        OffHeapRuleTable loaded = RuleTableSnapshot.load(file);
+        Assert.assertEquals(0, lookup(loaded, "snapshot-foo"));
+        Assert.assertEquals(CompiledClassifier.NO_MATCH, lookup(loaded, "snapshot-bar"));
+
+        // Saved by a process where the code of snapshot-foo names snapshot-bar
+        RuleTableSnapshot.write(table, file, code -> code == foo ? "snapshot-bar" : ProtocolTable.name(code));
+        loaded = RuleTableSnapshot.load(file);
+        Assert.assertEquals(bar, loaded.getProtocolCode(0));
+        Assert.assertEquals(0, lookup(loaded, "snapshot-bar"));
+        Assert.assertEquals(CompiledClassifier.NO_MATCH, lookup(loaded, "snapshot-foo"));
+        Assert.assertEquals(table.getId(0), loaded.getId(0));
+
+        // Codes no process named cannot be saved
+        OffHeapRuleTable unnamed = new OffHeapRuleTable.Builder()
+                .addRule(1, AttributeOperator.Any, AttributeOperator.Any, 0L, 0, AttributeOperator.Any, 0, 0,
+                        AttributeOperator.Matches, Integer.MAX_VALUE, new AttributeKey[] {AttributeKey.protocol})
+                .build();
+        try {
+            RuleTableSnapshot.write(unnamed, file);
+            Assert.fail("Wrote an unnamed protocol code");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.forescout.challenge.impl.loader;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.IRoutingRule.AttributeKey;
+import com.forescout.challenge.affinity.attributes.Attribute;
+import com.forescout.challenge.impl.Factory;
+import com.forescout.challenge.impl.RuleGenerator;
+import com.forescout.challenge.impl.engine.CompiledClassifier;
+import com.forescout.challenge.impl.engine.OffHeapRuleTable;
+import com.forescout.challenge.impl.engine.RuleSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleFileLoaderTest {
+
+    @SuppressWarnings("unchecked")
+    private static String format(IRoutingRule rule) {
+        String srcPool = ((Collection<Attribute<?>>) rule.getSrcAddresses().getArgument()).stream()
+                .map(srcAddress -> (String) srcAddress.getArgument())
+                .collect(Collectors.joining(","));
+        return String.join(" ", srcPool,
+                (String) rule.getDstAddress().getArgument(),
+                (String) rule.getProtocol().getArgument(),
+                rule.getDstPort().getArgument().toString(),
+                rule.getSrcAddresses().getOperator().name(),
+                rule.getDstAddress().getOperator().name(),
+                rule.getDstPort().getOperator().name(),
+                rule.getProtocol().getOperator().name());
+    }
+
+    private static OffHeapRuleTable load(String text, int bufferSize) throws IOException {
+        return new RuleFileLoader(bufferSize).read(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void assertInvalid(String line, long expectedLine) {
+        try {
+            load("# comment\n\n" + line + "\n", RuleFileLoader.DEFAULT_BUFFER_SIZE);
+            Assert.fail("Loaded " + line);
+        } catch (RuleFormatException e) {
+            Assert.assertEquals(line, expectedLine, e.getLine());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Loads generated rules through buffers smaller than some lines, and
+     * checks every lookup against the rule set compiled from the rules
+     */
+    @Test
+    public void testSameResultsAsRuleSet() throws IOException {
+        RuleGenerator generator = new RuleGenerator(RuleGenerator.Config.classBench().seed(61));
+        List<IRoutingRule> rules = generator.createRules(3000);
+        String text = rules.stream().map(RuleFileLoaderTest::format).collect(Collectors.joining("\n"));
+        RuleSet ruleSet = RuleSet.compile(rules);
+        List<IPacket> packets = generator.createPackets(2000);
+
+        for (int bufferSize : new int[]{16, 1000, RuleFileLoader.DEFAULT_BUFFER_SIZE}) {
+            OffHeapRuleTable table = load(text, bufferSize);
+            Assert.assertEquals(rules.size(), table.size());
+            for (int slot = 0; slot < table.size(); slot++) {
+                Assert.assertEquals(slot + 1, table.getId(slot));
+            }
+            for (LinkedHashSet<AttributeKey> attributesPriority : Arrays.asList(
+                    Factory.createRoutingRule1().getDefaultAttributesPriority(),
+                    Factory.createRoutingRule2().getDefaultAttributesPriority())) {
+                AttributeKey[] priority = attributesPriority.toArray(new AttributeKey[0]);
+                for (IPacket packet : packets) {
+                    Assert.assertEquals(
+                            ruleSet.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority),
+                            table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFormat() throws IOException {
+        OffHeapRuleTable table = load("# Rules\r\n"
+                + "192.168.1.0/24,10.1.0.0/16,172.0.0.0/8,8.8.8.8 10.2.1.1/32 UDP 1-1024 Contains Matches Matches Matches\r\n"
+                + "\r\n"
+                + "  192.168.0.0/16,10.1.1.0/24\t10.2.1.0/31 TCP 512-1024 Contains Matches Matches Any srcAddresses,dstAddress,dstPort,protocol\r\n"
+                + "0.0.0.0/0 0.0.0.0/0 tcp 21 Any Any Matches Matches dstPort", RuleFileLoader.DEFAULT_BUFFER_SIZE);
+
+        Assert.assertEquals(3, table.size());
+        Assert.assertEquals(2, table.getId(0));
+        Assert.assertEquals(4, table.getId(1));
+        Assert.assertEquals(5, table.getId(2));
+        Assert.assertEquals(IRoutingRule.defaultAttributesPriority, table.getAttributesPriority(0));
+        Assert.assertEquals(Arrays.asList(AttributeKey.srcAddresses, AttributeKey.dstAddress, AttributeKey.dstPort, AttributeKey.protocol),
+                Arrays.asList(table.getAttributesPriority(1).toArray()));
+        Assert.assertEquals(Arrays.asList(AttributeKey.dstPort), Arrays.asList(table.getAttributesPriority(2).toArray()));
+
+        // The same decisions as the factory rules these lines describe
+        AttributeKey[] priority = IRoutingRule.defaultAttributesPriority.toArray(new AttributeKey[0]);
+        IPacket packet = Factory.createPacket("10.1.1.1", "10.2.1.1", 512, "UDP");
+        Assert.assertEquals(0, table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+        packet = Factory.createPacket("10.1.1.1", "10.2.1.0", 512, "TCP");
+        Assert.assertEquals(1, table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+        packet = Factory.createPacket("1.1.1.1", "10.2.1.1", 22, "UDP");
+        Assert.assertEquals(CompiledClassifier.NO_MATCH,
+                table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+        packet = Factory.createPacket("1.1.1.1", "10.2.1.1", 21, "TCP");
+        Assert.assertEquals(2, table.lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getDstPort(), packet.getProtocolCode(), priority));
+    }
+
+    @Test
+    public void testInvalidLines() {
+        String valid = "10.1.0.0/16 10.2.1.0/24 TCP 1-1024 Contains Matches Matches Any";
+        Assert.assertTrue(valid.split(" ").length == 8);
+        assertInvalid("10.1.0.0/16 10.2.1.0/24 TCP 1-1024 Contains Matches Matches", 3);
+        assertInvalid(valid + " dstPort extra", 3);
+        assertInvalid(valid.replace("10.1.0.0/16", "10.1.0.0/16,"), 3);
+        assertInvalid(valid.replace("10.1.0.0/16", "10.1.256.0/16"), 3);
+        assertInvalid(valid.replace("10.1.0.0/16", "10.1.0/16"), 3);
+        assertInvalid(valid.replace("10.1.0.0/16", "10.1.0.0/33"), 3);
+        assertInvalid(valid.replace("10.1.0.0/16", "10.1.0.0/"), 3);
+        assertInvalid(valid.replace("10.2.1.0/24", "10.2.1.0/24x"), 3);
+        assertInvalid(valid.replace("10.2.1.0/24", "1000.2.1.0/24"), 3);
+        assertInvalid(valid.replace("1-1024", "1024-1"), 3);
+        assertInvalid(valid.replace("1-1024", "1-65536"), 3);
+        assertInvalid(valid.replace("1-1024", "-1"), 3);
+        assertInvalid(valid.replace("1-1024", "http"), 3);
+        assertInvalid(valid.replace("Contains", "contains"), 3);
+        assertInvalid(valid.replace("Any", "Contains"), 3);
+        assertInvalid(valid + " dstPort,dstPort", 3);
+        assertInvalid(valid + " dstPort,", 3);
+        assertInvalid(valid + " dstport", 3);
+        try {
+            load(valid + "\n" + valid + "\n" + valid.replace("TCP 1-1024", "TCP 70000"), 16);
+            Assert.fail("Invalid port");
+        } catch (IOException e) {
+            Assert.assertEquals(3, ((RuleFormatException) e).getLine());
+            Assert.assertEquals("Line 3: Invalid port range '70000'", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.forescout.challenge.impl.pcap;
+
+import com.forescout.challenge.affinity.IPacket;
+import com.forescout.challenge.affinity.IRoutingRule;
+import com.forescout.challenge.affinity.attributes.AttributeOperator;
+import com.forescout.challenge.impl.Factory;
+import com.forescout.challenge.impl.Packet;
+import com.forescout.challenge.impl.engine.RandomRules;
+import com.forescout.challenge.impl.engine.RuleSet;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PcapReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a capture of the given packets. Every third frame has a VLAN tag
+     * and every fifth frame is ARP when the link type is Ethernet.
+     */
+    private Path writeCapture(List<IPacket> packets, ByteOrder order, int linkType, boolean truncateLast) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(24 + packets.size() * 128).order(order);
+        buffer.putInt(0xA1B2C3D4);
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 4);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(65535);
+        buffer.putInt(linkType);
+        for (int i = 0; i < packets.size(); i++) {
+            ByteBuffer frame = ByteBuffer.allocate(96);
+            if (linkType == 1) {
+                frame.put(new byte[12]);
+                if (i % 3 == 0) {
+                    frame.putShort((short) 0x8100);
+                    frame.putShort((short) 42);
+                }
+                frame.putShort((short) (i % 5 == 4 ? 0x0806 : 0x0800));
+            }
+            IPacket packet = packets.get(i);
+            frame.put((byte) 0x45).put((byte) 0).putShort((short) 24).putInt(0);
+            frame.put((byte) 64).put((byte) packet.getProtocolCode()).putShort((short) 0);
+            frame.putInt((int) packet.getSrcAddr()).putInt((int) packet.getDstAddr());
+            frame.putShort((short) 40000).putShort((short) packet.getDstPort());
+            frame.flip();
+
+            buffer.putInt(1600000000 + i);
+            buffer.putInt(i);
+            buffer.putInt(frame.remaining());
+            buffer.putInt(frame.remaining());
+            buffer.put(frame);
+        }
+        buffer.flip();
+        if (truncateLast) {
+            buffer.limit(buffer.limit() - 3);
+        }
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.copyOf(buffer.array(), buffer.limit()));
+        return file;
+    }
+
+    private static List<IPacket> createPackets(Random random, int count) {
+        List<IPacket> packets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            packets.add(RandomRules.createPacket(random));
+        }
+        return packets;
+    }
+
+    @Test
+    public void testRecords() throws IOException {
+        List<IPacket> packets = Arrays.asList(
+                Factory.createPacket("192.168.1.1", "10.2.1.1", 21, "UDP"),
+                Factory.createPacket("10.1.1.1", "10.2.1.0", 512, "TCP"));
+        for (ByteOrder order : Arrays.asList(ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN)) {
+            try (PcapReader reader = new PcapReader(writeCapture(packets, order, 1, false))) {
+                Assert.assertEquals(1, reader.getLinkType());
+                Assert.assertEquals(65535, reader.getSnapLength());
+                for (int i = 0; i < packets.size(); i++) {
+                    Assert.assertTrue(reader.next());
+                    Assert.assertEquals(i, reader.getRecord());
+                    Assert.assertEquals((1600000000L + i) * 1_000_000_000L + i * 1000L, reader.getTimestampNanos());
+                    Assert.assertTrue(reader.isIPv4());
+                    Assert.assertEquals(packets.get(i).getSrcAddr(), reader.getPacket().getSrcAddr());
+                    Assert.assertEquals(packets.get(i).getDstAddr(), reader.getPacket().getDstAddr());
+                    Assert.assertEquals(packets.get(i).getDstPort(), reader.getPacket().getDstPort());
+                    Assert.assertEquals(packets.get(i).getProtocol(), reader.getPacket().getProtocol());
+                }
+                Assert.assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test
+    public void testNotPcap() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[64]);
+        try {
+            new PcapReader(file).close();
+            Assert.fail("Bad magic number");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Replays a capture mapped in small windows, so that windows are mapped
+     * again many times, and checks the decisions against the object model
+     */
+    @Test
+    public void testReplay() throws IOException {
+        Random random = new Random(23);
+        List<IRoutingRule> rules = RandomRules.createRules(random, 100);
+        for (IRoutingRule rule : rules) {
+            rule.getSrcAddresses().setOperator(AttributeOperator.Contains);
+        }
+        List<IPacket> packets = createPackets(random, 2000);
+        RuleSet ruleSet = RuleSet.compile(rules);
+
+        for (int linkType : new int[]{1, 101}) {
+            Path file = writeCapture(packets, ByteOrder.LITTLE_ENDIAN, linkType, true);
+            List<IRoutingRule> decisions = new ArrayList<>();
+            List<Long> records = new ArrayList<>();
+            PcapReader.ReplayResult result;
+            try (PcapReader reader = new PcapReader(file, 200)) {
+                result = reader.replay(rules, IRoutingRule.defaultAttributesPriority, (record, packet, rule) -> {
+                    records.add(record);
+                    decisions.add(rule);
+                });
+            }
+            PcapReader.ReplayResult engineResult;
+            try (PcapReader reader = new PcapReader(file, 1000)) {
+                engineResult = reader.replay(ruleSet, IRoutingRule.defaultAttributesPriority, null);
+            }
+
+            Assert.assertEquals("The last record is cut short", packets.size() - 1, result.getRecords());
+            long unmatched = 0;
+            int decision = 0;
+            for (int i = 0; i < packets.size() - 1; i++) {
+                if (linkType == 1 && i % 5 == 4) {
+                    continue;
+                }
+                IPacket packet = packets.get(i);
+                // Only TCP and UDP headers carry a port
+                if (!packet.getProtocol().equals("TCP") && !packet.getProtocol().equals("UDP")) {
+                    packet = new Packet(packet.getSrcAddr(), packet.getDstAddr(), 0, packet.getProtocol());
+                }
+                IRoutingRule expected = packet.getClosestAffinityNetwork(rules, IRoutingRule.defaultAttributesPriority);
+                Assert.assertEquals(i, (long) records.get(decision));
+                Assert.assertEquals(expected, decisions.get(decision++));
+                if (expected == null) {
+                    unmatched++;
+                }
+            }
+            Assert.assertEquals(decision, result.getPackets());
+            Assert.assertEquals(unmatched, result.getUnmatched());
+            Assert.assertEquals(result.getPackets(), engineResult.getPackets());
+            Assert.assertEquals(result.getCounts(), engineResult.getCounts());
+            long counted = 0;
+            for (long count : result.getCounts().values()) {
+                counted += count;
+            }
+            Assert.assertEquals(result.getPackets() - unmatched, counted);
+        }
+    }
+}